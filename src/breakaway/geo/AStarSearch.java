@@ -0,0 +1,68 @@
+package breakaway.geo;
+
+/**
+ * A* point to point search on a compact graph. Nodes are expanded in order of distance from the source
+ * plus a lower bound on the distance to the target, so the search is drawn towards the target instead
+ * of growing uniformly in all directions.
+ *
+ * The great circle bound is the angle between node centres times the smallest weight per radian over
+ * all edges, which never overestimates, also when edges are scaled below their great circle length.
+ * Landmarks (ALT) give a bound that stays tight for non-geometric weights. When both are available
+ * the largest is used.
+ */
+class AStarSearch {
+	final CompactGraph graph;
+	/** multiplier for angle between node centres, 0 if great circle bound is not used **/
+	final double weightPerRadian;
+	/** null if landmark bound is not used **/
+	final Landmarks landmarks;
+
+	AStarSearch(CompactGraph graph, boolean useGreatCircle, Landmarks landmarks) {
+		this.graph = graph;
+		// shave off a little to guard against rounding making the bound exceed the true distance
+		this.weightPerRadian = useGreatCircle ? graph.getMinWeightPerRadian() * (1 - 1e-12) : 0;
+		this.landmarks = landmarks;
+	}
+
+	/** lower bound on distance from v to t **/
+	double lowerBound(int v, int t) {
+		double bound = weightPerRadian > 0 ? weightPerRadian * graph.angle(v, t) : 0;
+		if (landmarks != null) {
+			bound = Math.max(bound, landmarks.lowerBound(v, t));
+		}
+		return bound;
+	}
+
+	/** find shortest path from source to target.
+	 * On return, the distance to target and the path back from target through prev are in the workspace.
+	 * @return number of nodes settled, or -1 if target cannot be reached **/
+	int search(int source, int target, SearchWorkspace workspace) {
+		final int [] offsets = graph.offsets;
+		final int [] targets = graph.targets;
+		final double [] weights = graph.weights;
+		final IndexedMinHeap heap = workspace.heap;
+		final double [] dist = workspace.dist;
+
+		workspace.reset();
+		workspace.reach(source, 0, source);
+		heap.offer(source, lowerBound(source, target));
+		int settled = 0;
+		while (!heap.isEmpty()) {
+			int u = heap.poll();
+			settled++;
+			if (u == target) {
+				return settled;
+			}
+			double du = dist[u];
+			for (int e = offsets[u]; e < offsets[u + 1]; e++) {
+				int t = targets[e];
+				double d = du + weights[e];
+				if (d < workspace.getDistance(t)) {
+					workspace.reach(t, d, u);
+					heap.offer(t, d + lowerBound(t, target));
+				}
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,347 @@
+package breakaway.geo;
+
+import java.util.Arrays;
+
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Input.Validate;
+import beast.base.inference.parameter.IntegerParameter;
+
+/**
+ * Every level pairs up adjacent nodes of the same type greedily, matching each node with its nearest unmatched
+ * neighbour, so a level roughly halves the number of nodes. The centre of a super-node is the mean of the
+ * centres of the fine nodes it contains, projected onto the sphere.
+ *
+ * Edges between super-nodes A and B aggregate all fine edges u -> v with u in A and v in B. Their weight is
+ * the angle between the centres of A and B times the mean weight per radian of those fine edges, so the cost
+ * of travelling a given distance stays the same as in the fine graph.
+ *
+ * Coarse distances only approximate fine ones, since paths run between centres of super-nodes instead of fine
+ * nodes, and each coarse edge has the mean cost of the fine edges it aggregates. On a 30x30 grid with edge weights
+ * stretched randomly by up to a factor 2, the ratio of coarse to fine distance ranged from 0.71 to 1.28 with one
+ * level and from 0.54 to 1.56 with three, for nodes at least a quarter of the grid apart. For nearby nodes it
+ * ranged from 0.4 to 6, so locations refined from the coarse graph need further burn in on the fine graph.
+ *
+ * Nodes are CompactGraphNodes, so the coarse graph can be used wherever a Graph is used, and
+ * refine() maps locations sampled on the coarse graph back to the fine graph.
+ */
+@Description("graph with adjacent nodes of a finer graph merged into super-nodes, e.g. for cheap burn in before "
+		+ "continuing on the fine graph")
+public class CoarseGraph extends Graph {
+	public Input<Graph> fineGraphInput = new Input<Graph>("fineGraph", "graph of which nodes are merged", Validate.REQUIRED);
+	public Input<Integer> levelsInput = new Input<Integer>("levels", "number of times pairs of adjacent nodes are merged, "
+			+ "each of which roughly halves the number of nodes", 1);
+
+	Graph fineGraph;
+	/** parents[l][i] is the node at level l + 1 containing node i at level l, where level 0 is the fine graph **/
+	int [][] parents;
+	/** super-node of every fine node **/
+	int [] coarseNode;
+	/** fine nodes of super-node c are fineNodes[fineOffsets[c]] to fineNodes[fineOffsets[c+1]-1] **/
+	int [] fineOffsets;
+	int [] fineNodes;
+	/** fine node closest to the centre of every super-node **/
+	int [] representative;
+
+	@Override
+	public void initAndValidate() {
+		fineGraph = fineGraphInput.get();
+		int levels = levelsInput.get();
+		if (levels < 1) {
+			throw new IllegalArgumentException("levels should be at least 1, not " + levels);
+		}
+		CompactGraph fine = fineGraph.getCompactGraph();
+		CompactGraph graph = fine;
+		parents = new int[levels][];
+		// number of fine nodes in every node of the current level, used to weight centres
+		int [] size = new int[fine.n];
+		Arrays.fill(size, 1);
+		for (int l = 0; l < levels; l++) {
+			parents[l] = match(graph);
+			int [] coarseSize = new int[max(parents[l]) + 1];
+			for (int i = 0; i < graph.n; i++) {
+				coarseSize[parents[l][i]] += size[i];
+			}
+			graph = coarsen(graph, parents[l], size, coarseSize.length);
+			size = coarseSize;
+		}
+
+		coarseNode = new int[fine.n];
+		for (int i = 0; i < fine.n; i++) {
+			int c = i;
+			for (int [] parent : parents) {
+				c = parent[c];
+			}
+			coarseNode[i] = c;
+		}
+		fineOffsets = new int[graph.n + 1];
+		for (int i = 0; i < fine.n; i++) {
+			fineOffsets[coarseNode[i] + 1]++;
+		}
+		for (int c = 0; c < graph.n; c++) {
+			fineOffsets[c + 1] += fineOffsets[c];
+		}
+		fineNodes = new int[fine.n];
+		int [] next = Arrays.copyOf(fineOffsets, graph.n);
+		for (int i = 0; i < fine.n; i++) {
+			fineNodes[next[coarseNode[i]]++] = i;
+		}
+		representative = new int[graph.n];
+		for (int c = 0; c < graph.n; c++) {
+			double best = Double.NEGATIVE_INFINITY;
+			for (int k = fineOffsets[c]; k < fineOffsets[c + 1]; k++) {
+				int i = fineNodes[k];
+				double dot = fine.x[i] * graph.x[c] + fine.y[i] * graph.y[c] + fine.z[i] * graph.z[c];
+				if (dot > best) {
+					best = dot;
+					representative[c] = i;
+				}
+			}
+		}
+
+		nodes = new CompactGraphNode.NodeList(graph, this);
+		super.initAndValidate();
+	}
+
+	private static int max(int [] values) {
+		int max = -1;
+		for (int v : values) {
+			max = Math.max(max, v);
+		}
+		return max;
+	}
+
+	/** greedy matching of every node with its nearest unmatched neighbour of the same type,
+	 * visiting nodes with fewest neighbours first since they have the fewest options
+	 * @return node of next level for every node **/
+	static int [] match(CompactGraph graph) {
+		int n = graph.n;
+		Integer [] order = new Integer[n];
+		for (int i = 0; i < n; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, (i, j) -> graph.getDegree(i) != graph.getDegree(j) ?
+				Integer.compare(graph.getDegree(i), graph.getDegree(j)) : Integer.compare(i, j));
+		int [] parent = new int[n];
+		Arrays.fill(parent, -1);
+		int count = 0;
+		for (int i : order) {
+			if (parent[i] >= 0) {
+				continue;
+			}
+			int best = -1;
+			double bestAngle = Double.POSITIVE_INFINITY;
+			for (int e = graph.offsets[i]; e < graph.offsets[i + 1]; e++) {
+				int j = graph.targets[e];
+				if (j != i && parent[j] < 0 && graph.types[j] == graph.types[i]) {
+					double angle = graph.angle(i, j);
+					if (angle < bestAngle) {
+						bestAngle = angle;
+						best = j;
+					}
+				}
+			}
+			parent[i] = count;
+			if (best >= 0) {
+				parent[best] = count;
+			}
+			count++;
+		}
+		// number super-nodes in order of their lowest node, so coarse ids follow the fine ones
+		int [] renumber = new int[count];
+		Arrays.fill(renumber, -1);
+		count = 0;
+		for (int i = 0; i < n; i++) {
+			if (renumber[parent[i]] < 0) {
+				renumber[parent[i]] = count++;
+			}
+			parent[i] = renumber[parent[i]];
+		}
+		return parent;
+	}
+
+	/** graph with nodes merged according to parent, and edges aggregated as described above **/
+	static CompactGraph coarsen(CompactGraph graph, int [] parent, int [] size, int m) {
+		int n = graph.n;
+		// nodes of graph grouped by parent
+		int [] childOffsets = new int[m + 1];
+		for (int i = 0; i < n; i++) {
+			childOffsets[parent[i] + 1]++;
+		}
+		for (int c = 0; c < m; c++) {
+			childOffsets[c + 1] += childOffsets[c];
+		}
+		int [] children = new int[n];
+		int [] next = Arrays.copyOf(childOffsets, m);
+		for (int i = 0; i < n; i++) {
+			children[next[parent[i]]++] = i;
+		}
+
+		double [] latitude = new double[m], longitude = new double[m];
+		double [] x = new double[m], y = new double[m], z = new double[m];
+		int [] types = new int[m];
+		for (int c = 0; c < m; c++) {
+			double [] mean = new double[3];
+			for (int k = childOffsets[c]; k < childOffsets[c + 1]; k++) {
+				int i = children[k];
+				mean[0] += size[i] * graph.x[i];
+				mean[1] += size[i] * graph.y[i];
+				mean[2] += size[i] * graph.z[i];
+			}
+			GraphNode.normalise(mean);
+			x[c] = mean[0];
+			y[c] = mean[1];
+			z[c] = mean[2];
+			double [] center = SphericalMath.cartesian2Sperical(mean);
+			latitude[c] = center[0];
+			longitude[c] = center[1];
+			types[c] = graph.types[children[childOffsets[c]]];
+		}
+
+		// per source super-node, sum of weight per radian and count of fine edges to every target super-node,
+		// with slot[t] valid if stamp[t] == source + 1
+		int [] stamp = new int[m];
+		int [] slot = new int[m];
+		int [] slotTarget = new int[16];
+		double [] slotRatio = new double[16];
+		double [] slotWeight = new double[16];
+		int [] slotCount = new int[16];
+		int [] offsets = new int[m + 1];
+		int [] targets = new int[16];
+		double [] weights = new double[16];
+		int edgeCount = 0;
+		for (int c = 0; c < m; c++) {
+			int slots = 0;
+			for (int k = childOffsets[c]; k < childOffsets[c + 1]; k++) {
+				int i = children[k];
+				for (int e = graph.offsets[i]; e < graph.offsets[i + 1]; e++) {
+					int t = parent[graph.targets[e]];
+					if (t == c) {
+						continue;
+					}
+					if (stamp[t] != c + 1) {
+						stamp[t] = c + 1;
+						if (slots == slotTarget.length) {
+							slotTarget = Arrays.copyOf(slotTarget, slots * 2);
+							slotRatio = Arrays.copyOf(slotRatio, slots * 2);
+							slotWeight = Arrays.copyOf(slotWeight, slots * 2);
+							slotCount = Arrays.copyOf(slotCount, slots * 2);
+						}
+						slot[t] = slots;
+						slotTarget[slots] = t;
+						slotRatio[slots] = 0;
+						slotWeight[slots] = 0;
+						slotCount[slots] = 0;
+						slots++;
+					}
+					int s = slot[t];
+					double angle = graph.angle(i, graph.targets[e]);
+					if (angle > 0) {
+						slotRatio[s] += graph.weights[e] / angle;
+						slotCount[s]++;
+					}
+					slotWeight[s] = Math.max(slotWeight[s], graph.weights[e]);
+				}
+			}
+			if (edgeCount + slots > targets.length) {
+				targets = Arrays.copyOf(targets, Math.max(targets.length * 2, edgeCount + slots));
+				weights = Arrays.copyOf(weights, targets.length);
+			}
+			for (int s = 0; s < slots; s++) {
+				int t = slotTarget[s];
+				double angle = angle(x, y, z, c, t);
+				targets[edgeCount] = t;
+				// fall back to the largest fine weight for edges between coinciding centres
+				weights[edgeCount] = slotCount[s] > 0 && angle > 0 ? angle * slotRatio[s] / slotCount[s] : slotWeight[s];
+				edgeCount++;
+			}
+			offsets[c + 1] = edgeCount;
+		}
+		return new CompactGraph(offsets, Arrays.copyOf(targets, edgeCount), Arrays.copyOf(weights, edgeCount),
+				latitude, longitude, x, y, z, types);
+	}
+
+	private static double angle(double [] x, double [] y, double [] z, int i, int j) {
+		double dot = x[i] * x[j] + y[i] * y[j] + z[i] * z[j];
+		double cx = y[i] * z[j] - z[i] * y[j];
+		double cy = z[i] * x[j] - x[i] * z[j];
+		double cz = x[i] * y[j] - y[i] * x[j];
+		return Math.atan2(Math.sqrt(cx * cx + cy * cy + cz * cz), dot);
+	}
+
+	public Graph getFineGraph() {
+		return fineGraph;
+	}
+
+	/** number of times nodes were merged **/
+	public int getLevelCount() {
+		return parents.length;
+	}
+
+	/** node at level + 1 containing node i at level, where level 0 is the fine graph and
+	 * getLevelCount() this graph **/
+	public int getParent(int level, int i) {
+		return parents[level][i];
+	}
+
+	/** super-node containing fine node **/
+	public int getCoarseNode(int fineNodeID) {
+		return coarseNode[fineNodeID];
+	}
+
+	/** ids of fine nodes merged into super-node **/
+	public int [] getFineNodes(int coarseNodeID) {
+		return Arrays.copyOfRange(fineNodes, fineOffsets[coarseNodeID], fineOffsets[coarseNodeID + 1]);
+	}
+
+	/** fine node closest to the centre of super-node **/
+	public int getRepresentative(int coarseNodeID) {
+		return representative[coarseNodeID];
+	}
+
+	/** set fine locations to the super-nodes in coarse locations, keeping fine locations that are already inside
+	 * their super-node, and otherwise using the representative of the super-node. 
+	 * Bounds of fine are set to the nodes of the fine graph.
+	 * @throws IllegalArgumentException if dimensions differ or a coarse location is not a super-node, before fine is changed **/
+	public void refine(IntegerParameter coarse, IntegerParameter fine) {
+		if (coarse.getDimension() != fine.getDimension()) {
+			throw new IllegalArgumentException("Expected parameters of the same dimension, but got " +
+					coarse.getDimension() + " and " + fine.getDimension());
+		}
+		checkLocations(coarse, getSize(), "coarse");
+		fine.setBounds(0, fineGraph.getSize() - 1);
+		for (int k = 0; k < coarse.getDimension(); k++) {
+			int c = coarse.getValue(k);
+			int f = fine.getValue(k);
+			if (f < 0 || f >= coarseNode.length || coarseNode[f] != c) {
+				fine.setValue(k, representative[c]);
+			}
+		}
+	}
+
+	/** set coarse locations to the super-nodes containing fine locations.
+	 * Bounds of coarse are set to the super-nodes.
+	 * @throws IllegalArgumentException if dimensions differ or a fine location is not a node of the fine graph, before coarse is changed **/
+	public void coarsen(IntegerParameter fine, IntegerParameter coarse) {
+		if (coarse.getDimension() != fine.getDimension()) {
+			throw new IllegalArgumentException("Expected parameters of the same dimension, but got " +
+					fine.getDimension() + " and " + coarse.getDimension());
+		}
+		checkLocations(fine, coarseNode.length, "fine");
+		coarse.setBounds(0, getSize() - 1);
+		for (int k = 0; k < fine.getDimension(); k++) {
+			coarse.setValue(k, coarseNode[fine.getValue(k)]);
+		}
+	}
+
+	/** @throws IllegalArgumentException if a value of locations is outside 0 ... size-1 **/
+	private static void checkLocations(IntegerParameter locations, int size, String level) {
+		for (int k = 0; k < locations.getDimension(); k++) {
+			int location = locations.getValue(k);
+			if (location < 0 || location >= size) {
+				throw new IllegalArgumentException("Expected " + level + " locations in 0 ... " + (size - 1) + 
+						", but location " + k + " is " + location);
+			}
+		}
+	}
+}
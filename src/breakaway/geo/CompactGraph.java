@@ -0,0 +1,237 @@
+package breakaway.geo;
+
+import java.util.Arrays;
+import java.util.List;
+
+import beast.base.core.Description;
+
+/**
+ * Edges of node i are targets[offsets[i]] ... targets[offsets[i+1]-1] with corresponding
+ * weights, in the same order as GraphNode.getNeighbour(), so edge offsets[i]+k corresponds to
+ * GraphNode.getDistance(k). Node centres are kept as separate arrays (structure of arrays)
+ * so searches do not need to call GraphNode.getCenter().
+ */
+@Description("Flattened compressed sparse row representation of a graph for fast searches")
+public class CompactGraph {
+	/** number of nodes **/
+	final int n;
+
+	/** edges of node i are in range offsets[i] (inclusive) to offsets[i+1] (exclusive) **/
+	final int [] offsets;
+	/** node id at the end of an edge **/
+	final int [] targets;
+	/** weight of an edge **/
+	final double [] weights;
+
+	/** centre of nodes in degrees **/
+	final double [] latitude;
+	final double [] longitude;
+	/** centre of nodes as unit vector in Cartesian coordinates **/
+	final double [] x;
+	final double [] y;
+	final double [] z;
+
+	/** node type, see GraphNode.type **/
+	final int [] types;
+
+	CompactGraph(List<GraphNode> nodes) {
+		n = nodes.size();
+		offsets = new int[n + 1];
+		boolean [] seen = new boolean[n];
+		for (GraphNode node : nodes) {
+			if (seen[node.id]) {
+				System.err.println("duplicate id found " + node.id);
+			}
+			seen[node.id] = true;
+			offsets[node.id + 1] = node.getNeighbourCount();
+		}
+		for (int i = 0; i < n; i++) {
+			offsets[i + 1] += offsets[i];
+		}
+		targets = new int[offsets[n]];
+		weights = new double[offsets[n]];
+		latitude = new double[n];
+		longitude = new double[n];
+		x = new double[n];
+		y = new double[n];
+		z = new double[n];
+		types = new int[n];
+
+		for (GraphNode node : nodes) {
+			int i = node.id;
+			int e = offsets[i];
+			for (int k = 0; k < node.getNeighbourCount(); k++) {
+				targets[e + k] = node.getNeighbourID(k);
+				weights[e + k] = node.getDistance(k);
+			}
+			double [] center = node.getCenter();
+			latitude[i] = center[0];
+			longitude[i] = center[1];
+			double [] cart = SphericalMath.spherical2Cartesian(center[0], center[1]);
+			x[i] = cart[0];
+			y[i] = cart[1];
+			z[i] = cart[2];
+			types[i] = node.type;
+		}
+	}
+
+	/** graph with nodes centred at latitude and longitude (in degrees), and directed edges e from sources[e] to targets[e] 
+	 * with weight weights[e], for setting up a Graph without GraphNodes, see Graph.setCompactGraph(). 
+	 * Edges of a node keep their relative order. **/
+	public static CompactGraph fromEdges(double [] latitude, double [] longitude, int [] sources, int [] targets, double [] weights) {
+		int n = latitude.length;
+		if (longitude.length != n || targets.length != sources.length || weights.length != sources.length) {
+			throw new IllegalArgumentException("Expected " + n + " longitudes and " + sources.length + " targets and weights, but got " 
+					+ longitude.length + ", " + targets.length + " and " + weights.length);
+		}
+		int [] offsets = new int[n + 1];
+		for (int e = 0; e < sources.length; e++) {
+			if (sources[e] < 0 || sources[e] >= n || targets[e] < 0 || targets[e] >= n) {
+				throw new IllegalArgumentException("Edge " + e + " from " + sources[e] + " to " + targets[e] + " has an end outside 0 ... " + (n - 1));
+			}
+			offsets[sources[e] + 1]++;
+		}
+		for (int i = 0; i < n; i++) {
+			offsets[i + 1] += offsets[i];
+		}
+		int [] next = Arrays.copyOf(offsets, n);
+		int [] csrTargets = new int[sources.length];
+		double [] csrWeights = new double[sources.length];
+		for (int e = 0; e < sources.length; e++) {
+			int k = next[sources[e]]++;
+			csrTargets[k] = targets[e];
+			csrWeights[k] = weights[e];
+		}
+		double [] x = new double[n], y = new double[n], z = new double[n];
+		for (int i = 0; i < n; i++) {
+			double [] cart = SphericalMath.spherical2Cartesian(latitude[i], longitude[i]);
+			x[i] = cart[0];
+			y[i] = cart[1];
+			z[i] = cart[2];
+		}
+		return new CompactGraph(offsets, csrTargets, csrWeights, latitude.clone(), longitude.clone(), x, y, z, new int[n]);
+	}
+
+	/** graph from arrays as read from a GraphSnapshot **/
+	CompactGraph(int [] offsets, int [] targets, double [] weights, double [] latitude, double [] longitude,
+			double [] x, double [] y, double [] z, int [] types) {
+		this.n = latitude.length;
+		this.offsets = offsets;
+		this.targets = targets;
+		this.weights = weights;
+		this.latitude = latitude;
+		this.longitude = longitude;
+		this.x = x;
+		this.y = y;
+		this.z = z;
+		this.types = types;
+	}
+
+	/** graph with given adjacency, sharing node centres and types with other **/
+	CompactGraph(CompactGraph other, int [] offsets, int [] targets, double [] weights) {
+		this.n = other.n;
+		this.offsets = offsets;
+		this.targets = targets;
+		this.weights = weights;
+		latitude = other.latitude;
+		longitude = other.longitude;
+		x = other.x;
+		y = other.y;
+		z = other.z;
+		types = other.types;
+	}
+
+	/** graph with all edges reversed, so a search on it finds distances towards a node **/
+	CompactGraph reverse() {
+		int [] rOffsets = new int[n + 1];
+		for (int e = 0; e < targets.length; e++) {
+			rOffsets[targets[e] + 1]++;
+		}
+		for (int i = 0; i < n; i++) {
+			rOffsets[i + 1] += rOffsets[i];
+		}
+		int [] next = Arrays.copyOf(rOffsets, n);
+		int [] rTargets = new int[targets.length];
+		double [] rWeights = new double[targets.length];
+		for (int i = 0; i < n; i++) {
+			for (int e = offsets[i]; e < offsets[i + 1]; e++) {
+				int k = next[targets[e]]++;
+				rTargets[k] = i;
+				rWeights[k] = weights[e];
+			}
+		}
+		return new CompactGraph(this, rOffsets, rTargets, rWeights);
+	}
+
+	/** Dijkstra search for minimal distances from source into dist, 
+	 * which are infinite for nodes that cannot be reached.
+	 * The heap can be reused between calls, and is empty on return. **/
+	void dijkstra(int source, double [] dist, IndexedMinHeap heap) {
+		Arrays.fill(dist, Double.POSITIVE_INFINITY);
+		heap.clear();
+		dist[source] = 0;
+		heap.offer(source, 0);
+		while (!heap.isEmpty()) {
+			double d0 = heap.peekKey();
+			int u = heap.poll();
+			for (int e = offsets[u]; e < offsets[u + 1]; e++) {
+				int t = targets[e];
+				double d = d0 + weights[e];
+				if (d < dist[t]) {
+					dist[t] = d;
+					heap.offer(t, d);
+				}
+			}
+		}
+	}
+
+	/** angle in radians between centres of nodes i and j **/
+	double angle(int i, int j) {
+		double dot = x[i] * x[j] + y[i] * y[j] + z[i] * z[j];
+		double cx = y[i] * z[j] - z[i] * y[j];
+		double cy = z[i] * x[j] - x[i] * z[j];
+		double cz = x[i] * y[j] - y[i] * x[j];
+		return Math.atan2(Math.sqrt(cx * cx + cy * cy + cz * cz), dot);
+	}
+
+	/** smallest ratio of edge weight to angle between centres of its nodes over all edges, so that 
+	 * this ratio times the angle between any two nodes is a lower bound on the distance between them **/
+	double getMinWeightPerRadian() {
+		double ratio = Double.POSITIVE_INFINITY;
+		for (int i = 0; i < n; i++) {
+			for (int e = offsets[i]; e < offsets[i + 1]; e++) {
+				double angle = angle(i, targets[e]);
+				if (angle > 0) {
+					ratio = Math.min(ratio, weights[e] / angle);
+				}
+			}
+		}
+		return Double.isInfinite(ratio) ? 0 : ratio;
+	}
+
+	public int getNodeCount() {
+		return n;
+	}
+
+	public int getEdgeCount() {
+		return targets.length;
+	}
+
+	public int getDegree(int i) {
+		return offsets[i + 1] - offsets[i];
+	}
+
+	/** index of edge from node i to node j, or -1 if they are not adjacent **/
+	public int getEdge(int i, int j) {
+		for (int e = offsets[i]; e < offsets[i + 1]; e++) {
+			if (targets[e] == j) {
+				return e;
+			}
+		}
+		return -1;
+	}
+
+	public double [] getCenter(int i) {
+		return new double[]{latitude[i], longitude[i]};
+	}
+}
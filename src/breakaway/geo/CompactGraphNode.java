@@ -0,0 +1,134 @@
+package breakaway.geo;
+
+import java.util.AbstractList;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Node of a graph loaded from a GraphSnapshot. Instead of neighbour and distance arrays of its own,
+ * it looks up centre and adjacency in the compact graph, and edge weights in an array shared by
+ * all nodes of the snapshot, so that scaleDistance() followed by Graph.updateDistances() works as
+ * for other nodes. Neighbours are looked up in the node list of the snapshot.
+ */
+public class CompactGraphNode extends GraphNode {
+	final CompactGraph graph;
+	/** edge weights as seen through getDistance(), indexed like graph.weights **/
+	final double [] weights;
+	/** all nodes of the snapshot, used to look up neighbours **/
+	final NodeList nodes;
+
+	CompactGraphNode(int id, NodeList nodes) {
+		this.id = id;
+		this.graph = nodes.graph;
+		this.weights = nodes.weights;
+		this.nodes = nodes;
+		this.owner = nodes.owner;
+		this.type = graph.types[id];
+	}
+
+	@Override
+	public double [] getCenter() {
+		return graph.getCenter(id);
+	}
+
+	@Override
+	public double getDistance(int i) {
+		return weights[graph.offsets[id] + i];
+	}
+
+	@Override
+	public int getNeighbourCount() {
+		return graph.getDegree(id);
+	}
+
+	@Override
+	public GraphNode getNeighbour(int i) {
+		return nodes.get(getNeighbourID(i));
+	}
+
+	@Override
+	public int getNeighbourID(int i) {
+		return graph.targets[graph.offsets[id] + i];
+	}
+
+	@Override
+	public boolean isNeighbour(GraphNode sourceNode) {
+		return graph.getEdge(id, sourceNode.id) >= 0;
+	}
+
+	@Override
+	public void scaleDistance(double scale) {
+		for (int i = 0; i < graph.getDegree(id); i++) {
+			scaleDistance(scale, i);
+		}
+	}
+
+	@Override
+	public void scaleDistance(double scale, int i) {
+		int e = graph.offsets[id] + i;
+		double d = weights[e] * scale;
+		if (owner != null) {
+			owner.setEdgeWeight(id, i, d);
+		}
+		weights[e] = d;
+	}
+
+	/** only the centre is known, so this checks whether the centre is inside **/
+	@Override
+	public boolean hasPointsInside(double minLat, double minLong, double maxLat, double maxLong) {
+		double lat = graph.latitude[id];
+		double long_ = graph.longitude[id];
+		return lat >= minLat && lat <= maxLat && long_ >= minLong && long_ <= maxLong;
+	}
+
+	/** neighbours come from the snapshot **/
+	@Override
+	void calcNeighbours(boolean allNeighborsInput, boolean useGreatCircleDistance) {
+	}
+
+	@Override
+	void setUpDistances(boolean useGreatCircle) {
+	}
+
+	/** only the centre is known, so it is the only vertex **/
+	@Override
+	public void addVertices(Set<Vertex> vertices) {
+		vertices.add(new Vertex(graph.latitude[id], graph.longitude[id]));
+	}
+
+	/** nodes of a snapshot, created when first accessed **/
+	static class NodeList extends AbstractList<GraphNode> {
+		final CompactGraph graph;
+		final double [] weights;
+		final AtomicReferenceArray<GraphNode> nodes;
+		/** graph the nodes belong to, see GraphNode.owner **/
+		final Graph owner;
+
+		NodeList(CompactGraph graph, Graph owner) {
+			this.graph = graph;
+			this.owner = owner;
+			this.weights = graph.weights.clone();
+			nodes = new AtomicReferenceArray<>(graph.n);
+		}
+
+		@Override
+		public GraphNode get(int i) {
+			GraphNode node = nodes.get(i);
+			if (node == null) {
+				nodes.compareAndSet(i, null, new CompactGraphNode(i, this));
+				node = nodes.get(i);
+			}
+			return node;
+		}
+
+		@Override
+		public int size() {
+			return graph.n;
+		}
+
+		/** compact graph with current weights of the nodes **/
+		CompactGraph toCompactGraph() {
+			return new CompactGraph(graph, graph.offsets, graph.targets, weights.clone());
+		}
+	}
+}
@@ -0,0 +1,163 @@
+package breakaway.geo;
+
+import beast.base.core.Description;
+
+/**
+ * With float32 precision, every entry is stored as a float.
+ * With int16 precision, every row is quantised to 65536 levels between its smallest and largest
+ * entry, so d = rowOffset[i] + code * rowScale[i], which has an absolute error of at most rowScale[i]/2.
+ * The largest absolute and relative errors introduced are recorded while rows are stored, so the effect
+ * on a likelihood can be bounded, see DistanceBasedDiffusionModel.getLogLErrorBound().
+ */
+@Description("distance matrix stored with reduced precision to save memory")
+public class CompressedDistanceMatrix extends DistanceMatrix {
+	private static final long serialVersionUID = 1L;
+
+	final static int LEVELS = 65535;
+
+	final Precision precision;
+	final int n;
+
+	private float [][] floatRows;
+	private char [][] shortRows;
+	private double [] rowOffset;
+	private double [] rowScale;
+
+	private double maxError;
+	private double maxRelativeError;
+	private double maxDistance;
+
+	/** empty matrix to be filled with putRow() or setRow() **/
+	CompressedDistanceMatrix(int n, Precision precision) {
+		this.n = n;
+		this.precision = precision;
+		switch (precision) {
+		case float32:
+			floatRows = new float[n][];
+			break;
+		case int16:
+			shortRows = new char[n][];
+			rowOffset = new double[n];
+			rowScale = new double[n];
+			break;
+		default:
+			throw new IllegalArgumentException("CompressedDistanceMatrix cannot store " + precision + " precision");
+		}
+	}
+
+	/** copy of matrix with reduced precision **/
+	CompressedDistanceMatrix(DistanceMatrix matrix, Precision precision) {
+		this(matrix.getSize(), precision);
+		double [] row = new double[n];
+		for (int i = 0; i < n; i++) {
+			putRow(i, matrix.getRow(i, row));
+		}
+	}
+
+	@Override
+	public int getSize() {
+		return n;
+	}
+
+	@Override
+	public double getDistance(int i, int j) {
+		if (floatRows != null) {
+			return floatRows[i][j];
+		}
+		return rowOffset[i] + shortRows[i][j] * rowScale[i];
+	}
+
+	@Override
+	public double [] getRow(int i, double [] row) {
+		if (row == null) {
+			row = new double[n];
+		}
+		if (floatRows != null) {
+			float [] f = floatRows[i];
+			for (int j = 0; j < n; j++) {
+				row[j] = f[j];
+			}
+		} else {
+			char [] s = shortRows[i];
+			double offset = rowOffset[i];
+			double scale = rowScale[i];
+			for (int j = 0; j < n; j++) {
+				row[j] = offset + s[j] * scale;
+			}
+		}
+		return row;
+	}
+
+	/** store row i with reduced precision, so getRow() returns approximately, not exactly, what was set.
+	 * DistanceMatrixRepair takes this into account by recalculating changed rows instead of updating stored values. **/
+	@Override
+	public void setRow(int i, double [] row) {
+		putRow(i, row);
+	}
+
+	/** store row i with reduced precision. Safe to call from multiple threads for different rows. **/
+	@Override
+	void putRow(int i, double [] row) {
+		double rowMaxError = 0;
+		double rowMaxRelativeError = 0;
+		double rowMax = 0;
+		if (floatRows != null) {
+			float [] f = new float[n];
+			for (int j = 0; j < n; j++) {
+				f[j] = (float) row[j];
+				double error = Math.abs(f[j] - row[j]);
+				rowMaxError = Math.max(rowMaxError, error);
+				if (row[j] > 0) {
+					rowMaxRelativeError = Math.max(rowMaxRelativeError, error / row[j]);
+				}
+				rowMax = Math.max(rowMax, row[j]);
+			}
+			floatRows[i] = f;
+		} else {
+			double min = row[0], max = row[0];
+			for (int j = 1; j < n; j++) {
+				min = Math.min(min, row[j]);
+				max = Math.max(max, row[j]);
+			}
+			double scale = (max - min) / LEVELS;
+			char [] s = new char[n];
+			for (int j = 0; j < n; j++) {
+				int code = scale > 0 ? (int) Math.round((row[j] - min) / scale) : 0;
+				s[j] = (char) Math.min(LEVELS, Math.max(0, code));
+				double error = Math.abs(min + s[j] * scale - row[j]);
+				rowMaxError = Math.max(rowMaxError, error);
+				if (row[j] > 0) {
+					rowMaxRelativeError = Math.max(rowMaxRelativeError, error / row[j]);
+				}
+			}
+			rowMax = max;
+			rowOffset[i] = min;
+			rowScale[i] = scale;
+			shortRows[i] = s;
+		}
+		synchronized (this) {
+			maxError = Math.max(maxError, rowMaxError);
+			maxRelativeError = Math.max(maxRelativeError, rowMaxRelativeError);
+			maxDistance = Math.max(maxDistance, rowMax);
+		}
+	}
+
+	public Precision getPrecision() {
+		return precision;
+	}
+
+	/** largest absolute difference between a stored and original distance **/
+	public synchronized double getMaxError() {
+		return maxError;
+	}
+
+	/** largest difference between a stored and original distance relative to the original distance **/
+	public synchronized double getMaxRelativeError() {
+		return maxRelativeError;
+	}
+
+	/** largest original distance stored **/
+	public synchronized double getMaxDistance() {
+		return maxDistance;
+	}
+}
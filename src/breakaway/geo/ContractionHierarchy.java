@@ -0,0 +1,605 @@
+package breakaway.geo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+
+import beast.base.core.Description;
+
+/**
+ * Nodes are contracted one at a time, least important first. Contracting node v removes it from the graph,
+ * and for every pair of remaining neighbours u -> v -> x for which no path of at most the same length avoids v
+ * (the witness search), a shortcut u -> x is added that remembers v as its middle node.
+ * Every shortest path then has a version that first only goes up in contraction order and then only down,
+ * so a query runs two small searches: one from the source over upward edges and one from the target over
+ * reversed downward edges. Both only visit nodes contracted after their start, which is typically a few hundred
+ * nodes, and paths are recovered by recursively replacing shortcuts by their two halves.
+ *
+ * Memory is linear in the number of original edges plus shortcuts. The hierarchy reflects edge weights at
+ * the time it was built, so it needs to be rebuilt after edge weights change.
+ */
+@Description("contraction hierarchy for fast repeated point to point shortest path queries")
+public class ContractionHierarchy implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	/** maximum number of nodes settled by a witness search before assuming no witness exists,
+	 * which may add a superfluous shortcut, but never a wrong one **/
+	final static int WITNESS_SETTLE_LIMIT = 500;
+	/** same, when estimating the number of shortcuts to decide on the contraction order **/
+	final static int SIMULATION_SETTLE_LIMIT = 20;
+
+	final int n;
+	final int originalEdgeCount;
+
+	/** contraction order: rank[v] = i if v was the i-th node contracted **/
+	final int [] rank;
+
+	/** all edges, original ones first, then shortcuts.
+	 * For shortcuts, edgeFirst and edgeSecond are the halves u -> middle -> x, for original edges they are -1 **/
+	final int [] edgeFrom;
+	final int [] edgeTo;
+	final double [] edgeWeight;
+	final int [] edgeFirst;
+	final int [] edgeSecond;
+
+	/** CSR lists of edges v -> x with rank[x] > rank[v], indexed by v **/
+	final int [] upOffsets;
+	final int [] upEdges;
+	/** CSR lists of edges x -> v with rank[x] > rank[v], indexed by v **/
+	final int [] downOffsets;
+	final int [] downEdges;
+
+	/** search state, one per thread **/
+	transient private volatile ThreadLocal<Query> queries;
+
+	ContractionHierarchy(CompactGraph graph) {
+		n = graph.n;
+		originalEdgeCount = graph.getEdgeCount();
+		Builder builder = new Builder(graph);
+		builder.contract();
+
+		rank = builder.rank;
+		int m = builder.edgeCount;
+		edgeFrom = Arrays.copyOf(builder.from, m);
+		edgeTo = Arrays.copyOf(builder.to, m);
+		edgeWeight = Arrays.copyOf(builder.weight, m);
+		edgeFirst = Arrays.copyOf(builder.first, m);
+		edgeSecond = Arrays.copyOf(builder.second, m);
+
+		upOffsets = new int[n + 1];
+		downOffsets = new int[n + 1];
+		for (int v = 0; v < n; v++) {
+			upOffsets[v + 1] = upOffsets[v] + builder.upCount[v];
+			downOffsets[v + 1] = downOffsets[v] + builder.downCount[v];
+		}
+		upEdges = new int[upOffsets[n]];
+		downEdges = new int[downOffsets[n]];
+		for (int v = 0; v < n; v++) {
+			System.arraycopy(builder.up[v], 0, upEdges, upOffsets[v], builder.upCount[v]);
+			System.arraycopy(builder.down[v], 0, downEdges, downOffsets[v], builder.downCount[v]);
+		}
+	}
+
+	/** shortest distance from source to target, or positive infinity if target cannot be reached **/
+	public double getDistance(int source, int target) {
+		if (source == target) {
+			return 0;
+		}
+		Query query = getQuery();
+		query.search(source, target);
+		return query.best;
+	}
+
+	/** shortest path from source to target as list of node ids including both ends,
+	 * or null if target cannot be reached **/
+	public int [] shortestPath(int source, int target) {
+		if (source == target) {
+			return new int[]{source};
+		}
+		Query query = getQuery();
+		query.search(source, target);
+		if (query.meeting < 0) {
+			return null;
+		}
+
+		// collect edges from source up to meeting node, and from meeting node down to target
+		IntList edges = new IntList();
+		for (int v = query.meeting; v != source; v = edgeFrom[query.forwardEdge[v]]) {
+			edges.add(query.forwardEdge[v]);
+		}
+		edges.reverse();
+		for (int v = query.meeting; v != target; v = edgeTo[query.backwardEdge[v]]) {
+			edges.add(query.backwardEdge[v]);
+		}
+
+		IntList path = new IntList();
+		path.add(source);
+		for (int k = 0; k < edges.size; k++) {
+			unpack(edges.items[k], path);
+		}
+		return path.toArray();
+	}
+
+	/** append nodes after the start of edge e, with shortcuts replaced by original edges **/
+	private void unpack(int e, IntList path) {
+		IntList stack = new IntList();
+		stack.add(e);
+		while (stack.size > 0) {
+			int edge = stack.items[--stack.size];
+			if (edgeFirst[edge] < 0) {
+				path.add(edgeTo[edge]);
+			} else {
+				// second half is processed after the first half
+				stack.add(edgeSecond[edge]);
+				stack.add(edgeFirst[edge]);
+			}
+		}
+	}
+
+	public int getNodeCount() {
+		return n;
+	}
+
+	public int getShortcutCount() {
+		return edgeFrom.length - originalEdgeCount;
+	}
+
+	/** number of edges used by queries, original edges as well as shortcuts **/
+	public int getSearchEdgeCount() {
+		return upEdges.length + downEdges.length;
+	}
+
+	private Query getQuery() {
+		ThreadLocal<Query> q = queries;
+		if (q == null) {
+			synchronized (this) {
+				if (queries == null) {
+					queries = ThreadLocal.withInitial(Query::new);
+				}
+				q = queries;
+			}
+		}
+		return q.get();
+	}
+
+	/** check a hierarchy read from file: node and edge ids are in range, ranks are a permutation of the nodes,
+	 * every shortcut joins two earlier edges through a node contracted before both its ends, and search lists
+	 * only go up in rank, so that queries and unpacking shortcuts stay within bounds and terminate
+	 * @throws IOException describing the first inconsistency found **/
+	void validate(File file) throws IOException {
+		int m = edgeFrom.length;
+		if (rank.length != n || upOffsets.length != n + 1 || downOffsets.length != n + 1 || originalEdgeCount < 0 || originalEdgeCount > m
+				|| edgeTo.length != m || edgeWeight.length != m || edgeFirst.length != m || edgeSecond.length != m) {
+			throw new IOException("Contraction hierarchy has arrays of inconsistent sizes: " + file.getPath());
+		}
+		boolean [] seen = new boolean[n];
+		for (int v = 0; v < n; v++) {
+			if (rank[v] < 0 || rank[v] >= n || seen[rank[v]]) {
+				throw new IOException("Contraction hierarchy has invalid or repeated level " + rank[v] + " at node " + v + ": " + file.getPath());
+			}
+			seen[rank[v]] = true;
+		}
+		for (int e = 0; e < m; e++) {
+			if (edgeFrom[e] < 0 || edgeFrom[e] >= n || edgeTo[e] < 0 || edgeTo[e] >= n) {
+				throw new IOException("Edge " + e + " of contraction hierarchy joins nodes outside 0 to " + (n - 1) + ": " + file.getPath());
+			}
+			if (!(edgeWeight[e] >= 0)) {
+				throw new IOException("Edge " + e + " of contraction hierarchy has weight " + edgeWeight[e] + ": " + file.getPath());
+			}
+			int first = edgeFirst[e], second = edgeSecond[e];
+			if (e < originalEdgeCount) {
+				if (first != -1 || second != -1) {
+					throw new IOException("Original edge " + e + " of contraction hierarchy has halves: " + file.getPath());
+				}
+			} else if (first < 0 || first >= e || second < 0 || second >= e 
+					|| edgeFrom[first] != edgeFrom[e] || edgeTo[second] != edgeTo[e] || edgeTo[first] != edgeFrom[second]
+					|| rank[edgeTo[first]] >= Math.min(rank[edgeFrom[e]], rank[edgeTo[e]])) {
+				throw new IOException("Shortcut " + e + " of contraction hierarchy does not join two earlier edges through a lower node: " + file.getPath());
+			}
+		}
+		validateSearchEdges(upOffsets, upEdges, edgeFrom, edgeTo, "upward", file);
+		validateSearchEdges(downOffsets, downEdges, edgeTo, edgeFrom, "downward", file);
+	}
+
+	/** edges in list v should have tail v and a head of higher rank **/
+	private void validateSearchEdges(int [] offsets, int [] edges, int [] tail, int [] head, String direction, File file) throws IOException {
+		if (offsets[0] != 0 || offsets[n] != edges.length) {
+			throw new IOException("Offsets of " + direction + " edges of contraction hierarchy do not cover its " + edges.length + " edges: " + file.getPath());
+		}
+		for (int v = 0; v < n; v++) {
+			if (offsets[v] > offsets[v + 1]) {
+				throw new IOException("Offsets of " + direction + " edges of contraction hierarchy decrease at node " + v + ": " + file.getPath());
+			}
+			for (int k = offsets[v]; k < offsets[v + 1]; k++) {
+				int e = edges[k];
+				if (e < 0 || e >= edgeFrom.length || tail[e] != v || rank[head[e]] <= rank[v]) {
+					throw new IOException("Contraction hierarchy has invalid " + direction + " edge " + e + " at node " + v + ": " + file.getPath());
+				}
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "ContractionHierarchy: " + n + " nodes " + originalEdgeCount + " edges " + getShortcutCount() + " shortcuts";
+	}
+
+	/** bidirectional search over upward edges from the source and reversed downward edges from the target.
+	 * Arrays are marked with the query number in which they were set, so they do not need to be cleared between queries **/
+	private class Query {
+		final double [] forwardDist = new double[n];
+		final double [] backwardDist = new double[n];
+		final int [] forwardEdge = new int[n];
+		final int [] backwardEdge = new int[n];
+		final int [] forwardStamp = new int[n];
+		final int [] backwardStamp = new int[n];
+		final IndexedMinHeap forwardHeap = new IndexedMinHeap(n);
+		final IndexedMinHeap backwardHeap = new IndexedMinHeap(n);
+		int stamp = 0;
+
+		double best;
+		int meeting;
+
+		void search(int source, int target) {
+			if (++stamp == Integer.MAX_VALUE) {
+				Arrays.fill(forwardStamp, 0);
+				Arrays.fill(backwardStamp, 0);
+				stamp = 1;
+			}
+			forwardHeap.clear();
+			backwardHeap.clear();
+			best = Double.POSITIVE_INFINITY;
+			meeting = -1;
+
+			forwardDist[source] = 0;
+			forwardStamp[source] = stamp;
+			forwardHeap.offer(source, 0);
+			backwardDist[target] = 0;
+			backwardStamp[target] = stamp;
+			backwardHeap.offer(target, 0);
+
+			while (true) {
+				boolean forward = !forwardHeap.isEmpty() && forwardHeap.peekKey() < best;
+				boolean backward = !backwardHeap.isEmpty() && backwardHeap.peekKey() < best;
+				if (!forward && !backward) {
+					return;
+				}
+				if (forward && (!backward || forwardHeap.peekKey() <= backwardHeap.peekKey())) {
+					step(forwardHeap, forwardDist, forwardEdge, forwardStamp, backwardDist, backwardStamp, 
+							upOffsets, upEdges, edgeTo, downOffsets, downEdges, edgeFrom);
+				} else {
+					step(backwardHeap, backwardDist, backwardEdge, backwardStamp, forwardDist, forwardStamp, 
+							downOffsets, downEdges, edgeFrom, upOffsets, upEdges, edgeTo);
+				}
+			}
+		}
+
+		/** settle next node of one of the searches, and relax its edges unless it can be stalled:
+		 * if a higher node already reached by the search has a shorter edge into it, the distance of u 
+		 * is not optimal, and nothing found through u can be part of a shortest path **/
+		private void step(IndexedMinHeap heap, double [] dist, int [] parent, int [] stamps,
+				double [] otherDist, int [] otherStamps, int [] offsets, int [] edges, int [] head,
+				int [] stallOffsets, int [] stallEdges, int [] stallHead) {
+			int u = heap.poll();
+			double du = dist[u];
+			if (otherStamps[u] == stamp && du + otherDist[u] < best) {
+				best = du + otherDist[u];
+				meeting = u;
+			}
+			for (int k = stallOffsets[u]; k < stallOffsets[u + 1]; k++) {
+				int e = stallEdges[k];
+				int x = stallHead[e];
+				if (stamps[x] == stamp && dist[x] + edgeWeight[e] < du) {
+					return;
+				}
+			}
+			for (int k = offsets[u]; k < offsets[u + 1]; k++) {
+				int e = edges[k];
+				int x = head[e];
+				double d = du + edgeWeight[e];
+				if (stamps[x] != stamp || d < dist[x]) {
+					stamps[x] = stamp;
+					dist[x] = d;
+					parent[x] = e;
+					heap.offer(x, d);
+				}
+			}
+		}
+	}
+
+	/** graph being contracted, with edge lists that grow as shortcuts are added **/
+	private static class Builder {
+		final int n;
+		int [] from, to, first, second;
+		double [] weight;
+		int edgeCount;
+
+		/** edges leaving and entering each uncontracted node, to other uncontracted nodes **/
+		int [][] out, in;
+		int [] outCount, inCount;
+
+		final boolean [] contracted;
+		final int [] contractedNeighbours;
+		/** 1 + largest level of contracted neighbours, which approximates the depth of the hierarchy below a node **/
+		final int [] level;
+		final int [] rank;
+		int [][] up, down;
+		int [] upCount, downCount;
+
+		/** witness search state, marked with the search number like Query **/
+		final double [] witnessDist;
+		final int [] witnessStamp;
+		final IndexedMinHeap witnessHeap;
+		int stamp = 0;
+		/** targetStamp[x] == targetRound if x is a neighbour the witness search needs to settle **/
+		final int [] targetStamp;
+		int targetRound = 0;
+
+		Builder(CompactGraph graph) {
+			n = graph.n;
+			int m = graph.getEdgeCount();
+			int capacity = Math.max(16, 2 * m);
+			from = new int[capacity];
+			to = new int[capacity];
+			first = new int[capacity];
+			second = new int[capacity];
+			weight = new double[capacity];
+			out = new int[n][4];
+			in = new int[n][4];
+			outCount = new int[n];
+			inCount = new int[n];
+			for (int v = 0; v < n; v++) {
+				for (int e = graph.offsets[v]; e < graph.offsets[v + 1]; e++) {
+					addEdge(v, graph.targets[e], graph.weights[e], -1, -1);
+				}
+			}
+			contracted = new boolean[n];
+			contractedNeighbours = new int[n];
+			level = new int[n];
+			rank = new int[n];
+			up = new int[n][];
+			down = new int[n][];
+			upCount = new int[n];
+			downCount = new int[n];
+			witnessDist = new double[n];
+			witnessStamp = new int[n];
+			witnessHeap = new IndexedMinHeap(n);
+			targetStamp = new int[n];
+		}
+
+		int addEdge(int u, int x, double w, int e1, int e2) {
+			if (edgeCount == from.length) {
+				int capacity = from.length * 3 / 2;
+				from = Arrays.copyOf(from, capacity);
+				to = Arrays.copyOf(to, capacity);
+				first = Arrays.copyOf(first, capacity);
+				second = Arrays.copyOf(second, capacity);
+				weight = Arrays.copyOf(weight, capacity);
+			}
+			int e = edgeCount++;
+			from[e] = u;
+			to[e] = x;
+			weight[e] = w;
+			first[e] = e1;
+			second[e] = e2;
+			if (outCount[u] == out[u].length) {
+				out[u] = Arrays.copyOf(out[u], out[u].length * 2);
+			}
+			out[u][outCount[u]++] = e;
+			if (inCount[x] == in[x].length) {
+				in[x] = Arrays.copyOf(in[x], in[x].length * 2);
+			}
+			in[x][inCount[x]++] = e;
+			return e;
+		}
+
+		/** contract all nodes in order of increasing priority. Priorities of neighbours are updated after each 
+		 * contraction, and that of the next node is checked before it is contracted **/
+		void contract() {
+			IndexedMinHeap queue = new IndexedMinHeap(n);
+			for (int v = 0; v < n; v++) {
+				queue.offer(v, priority(v));
+			}
+			int order = 0;
+			int [] neighbours = new int[16];
+			// neighbours with an edge in both directions are updated once
+			int [] seen = new int[n];
+			while (!queue.isEmpty()) {
+				int v = queue.peek();
+				double p = priority(v);
+				if (p > queue.peekKey()) {
+					// priority went up since v was queued, so another node may be more suitable
+					queue.update(v, p);
+					if (queue.peek() != v) {
+						continue;
+					}
+				}
+				queue.poll();
+
+				// remember neighbours before contraction removes the edges to them
+				int count = 0;
+				if (outCount[v] + inCount[v] > neighbours.length) {
+					neighbours = new int[outCount[v] + inCount[v]];
+				}
+				for (int k = 0; k < outCount[v]; k++) {
+					int x = to[out[v][k]];
+					if (seen[x] != order + 1) {
+						seen[x] = order + 1;
+						neighbours[count++] = x;
+					}
+				}
+				for (int k = 0; k < inCount[v]; k++) {
+					int x = from[in[v][k]];
+					if (seen[x] != order + 1) {
+						seen[x] = order + 1;
+						neighbours[count++] = x;
+					}
+				}
+
+				contractNode(v);
+				rank[v] = order++;
+				for (int k = 0; k < count; k++) {
+					int x = neighbours[k];
+					if (!contracted[x]) {
+						queue.update(x, priority(x));
+					}
+				}
+			}
+		}
+
+		/** twice the edge difference plus number of contracted neighbours plus level, 
+		 * which keeps the contraction spread out and the hierarchy shallow **/
+		double priority(int v) {
+			int removed = outCount[v] + inCount[v];
+			int added = shortcuts(v, false);
+			return 2 * (added - removed) + contractedNeighbours[v] + level[v];
+		}
+
+		void contractNode(int v) {
+			shortcuts(v, true);
+			contracted[v] = true;
+			// remaining edges go to nodes that are contracted later
+			up[v] = Arrays.copyOf(out[v], outCount[v]);
+			upCount[v] = outCount[v];
+			for (int k = 0; k < outCount[v]; k++) {
+				int x = to[out[v][k]];
+				remove(in, inCount, x, out[v][k]);
+				contractedNeighbours[x]++;
+				level[x] = Math.max(level[x], level[v] + 1);
+			}
+			down[v] = Arrays.copyOf(in[v], inCount[v]);
+			downCount[v] = inCount[v];
+			for (int k = 0; k < inCount[v]; k++) {
+				int u = from[in[v][k]];
+				remove(out, outCount, u, in[v][k]);
+				contractedNeighbours[u]++;
+				level[u] = Math.max(level[u], level[v] + 1);
+			}
+			out[v] = null;
+			in[v] = null;
+			outCount[v] = 0;
+			inCount[v] = 0;
+		}
+
+		/** remove edge e from list of node x **/
+		private static void remove(int [][] lists, int [] counts, int x, int e) {
+			int [] list = lists[x];
+			for (int k = 0; k < counts[x]; k++) {
+				if (list[k] == e) {
+					list[k] = list[--counts[x]];
+					return;
+				}
+			}
+		}
+
+		/** count shortcuts needed when contracting v, and add them if add=true **/
+		int shortcuts(int v, boolean add) {
+			int count = 0;
+			double maxOut = 0;
+			targetRound++;
+			for (int k = 0; k < outCount[v]; k++) {
+				maxOut = Math.max(maxOut, weight[out[v][k]]);
+				targetStamp[to[out[v][k]]] = targetRound;
+			}
+			for (int i = 0; i < inCount[v]; i++) {
+				int e1 = in[v][i];
+				int u = from[e1];
+				witnessSearch(u, v, weight[e1] + maxOut, add ? WITNESS_SETTLE_LIMIT : SIMULATION_SETTLE_LIMIT);
+				for (int k = 0; k < outCount[v]; k++) {
+					int e2 = out[v][k];
+					int x = to[e2];
+					if (x == u) {
+						continue;
+					}
+					double w = weight[e1] + weight[e2];
+					if (witnessStamp[x] == stamp && witnessDist[x] <= w) {
+						continue;
+					}
+					count++;
+					if (add) {
+						// an existing edge u -> x is longer, or it would have been found as witness
+						for (int j = 0; j < outCount[u]; j++) {
+							int e = out[u][j];
+							if (to[e] == x && weight[e] > w) {
+								remove(out, outCount, u, e);
+								remove(in, inCount, x, e);
+								break;
+							}
+						}
+						addEdge(u, x, w, e1, e2);
+						// later pairs through u may use the new shortcut as witness
+						witnessStamp[x] = stamp;
+						witnessDist[x] = w;
+					}
+				}
+			}
+			return count;
+		}
+
+		/** search from u among uncontracted nodes other than v, until all targets are settled, 
+		 * or distances exceed maxDist, or limit nodes are settled **/
+		void witnessSearch(int u, int v, double maxDist, int limit) {
+			if (++stamp == Integer.MAX_VALUE) {
+				Arrays.fill(witnessStamp, 0);
+				stamp = 1;
+			}
+			witnessHeap.clear();
+			witnessDist[u] = 0;
+			witnessStamp[u] = stamp;
+			witnessHeap.offer(u, 0);
+			int targets = outCount[v] - (targetStamp[u] == targetRound ? 1 : 0);
+			int settled = 0;
+			while (!witnessHeap.isEmpty() && settled < limit && targets > 0) {
+				int y = witnessHeap.poll();
+				settled++;
+				double dy = witnessDist[y];
+				if (targetStamp[y] == targetRound && y != u) {
+					targets--;
+				}
+				for (int k = 0; k < outCount[y]; k++) {
+					int e = out[y][k];
+					int z = to[e];
+					if (z == v) {
+						continue;
+					}
+					double d = dy + weight[e];
+					if (d > maxDist) {
+						continue;
+					}
+					if (witnessStamp[z] != stamp || d < witnessDist[z]) {
+						witnessStamp[z] = stamp;
+						witnessDist[z] = d;
+						witnessHeap.offer(z, d);
+					}
+				}
+			}
+		}
+	}
+
+	/** growable list of ints **/
+	private static class IntList {
+		int [] items = new int[16];
+		int size;
+
+		void add(int i) {
+			if (size == items.length) {
+				items = Arrays.copyOf(items, size * 2);
+			}
+			items[size++] = i;
+		}
+
+		void reverse() {
+			for (int i = 0, j = size - 1; i < j; i++, j--) {
+				int tmp = items[i];
+				items[i] = items[j];
+				items[j] = tmp;
+			}
+		}
+
+		int [] toArray() {
+			return Arrays.copyOf(items, size);
+		}
+	}
+
+}
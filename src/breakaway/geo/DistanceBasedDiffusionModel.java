@@ -5,6 +5,7 @@ package breakaway.geo;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.stream.IntStream;
 
 import beast.base.core.Description;
 import beast.base.core.Input;
@@ -19,7 +20,6 @@ import beast.base.evolution.substitutionmodel.EigenDecomposition;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.util.Randomizer;
-import sphericalGeo.GreatCircleDistance;
 
 
 @Description("Diffusion model based on great circle distance between two nodes in graph = taxon set locations")
@@ -30,6 +30,12 @@ public class DistanceBasedDiffusionModel extends GraphSubstitutionModel {
 	public Input<String> locationsInput = new Input<String>("value","comma separated string encoding locations in the form {taxon}=${latitude} ${longitude}", Validate.REQUIRED);
 	public Input<TaxonSet> taxonsetInput = new Input<TaxonSet>("taxonset","set of taxa for which we have locations", Validate.REQUIRED);
 	public Input<Tree> treeInput = new Input<Tree>("tree", "tree structure to sample from", Validate.REQUIRED);
+	public Input<Double> logLToleranceInput = new Input<Double>("logLTolerance", "maximum error in log-likelihood per branch allowed due to reduced precision "
+			+ "storage of graph distances (see distancePrecision of Graph). If not specified, the error bound is only reported. "
+			+ "Checked once at initialisation, for the initial precision and the shortest branch of the initial tree: "
+			+ "the error grows with precision and with shorter branches, so states that increase precision or shorten branches are not checked.");
+	public Input<Boolean> precomputeInput = new Input<Boolean>("precompute", "precompute log distance and squared distance between taxon locations, "
+			+ "which triples memory used for distances but leaves a single multiply-add per branch", false);
 	
 	
 	public DistanceBasedDiffusionModel() {
@@ -39,7 +45,22 @@ public class DistanceBasedDiffusionModel extends GraphSubstitutionModel {
 	
 	RealParameter precision;
 
-	double [][] distances;
+	/** great circle distances between taxon locations **/
+	TriangularDistanceMatrix distances;
+	/** if precompute=true, log distance and squared distance at the same positions as distances.packed **/
+	double [] logDistances, squaredDistances;
+	/** distance used for a pair of identical locations, which would have log-likelihood -infinity otherwise **/
+	final static double MIN_DISTANCE = 1e-5;
+
+	/** cache of 0.5 * log(precision / time) by time and precision, see getHalfLogInverseVariance() **/
+	final static int LOG_TERM_CACHE_SIZE = 64;
+	private static class LogTermCache {
+		final double [] time = new double[LOG_TERM_CACHE_SIZE];
+		final double [] precision = new double[LOG_TERM_CACHE_SIZE];
+		final double [] value = new double[LOG_TERM_CACHE_SIZE];
+	}
+	/** one cache per thread, since transition probabilities can be requested from several threads **/
+	private final ThreadLocal<LogTermCache> logTermCache = ThreadLocal.withInitial(LogTermCache::new);
 	double [] uniformfrequencies;
 	int dim;
 	Integer [] locations;
@@ -99,16 +120,30 @@ public class DistanceBasedDiffusionModel extends GraphSubstitutionModel {
 			throw new RuntimeException("Locations for all taxa should be specified");
 		}
 		
-		distances = new double[n][n];
+		// rows of the upper triangle are filled in parallel directly from unit vectors, 
+		// so trigonometry on latitude and longitude is done once per taxon instead of once per pair
+		double [] latitudes = new double[n], longitudes = new double[n];
 		for (int i = 0; i < n; i++) {
-			double [] start = position[i];
-			for (int j = i + 1; j < n; j++) {
-				distances[i][j] = GreatCircleDistance.pairwiseDistance(start, position[j]);
-				distances[j][i] = distances[i][j];
-			}
+			latitudes[i] = position[i][0];
+			longitudes[i] = position[i][1];
+		}
+		double [] x = new double[n], y = new double[n], z = new double[n];
+		SphericalMath.spherical2Cartesian(latitudes, longitudes, x, y, z);
+		final TriangularDistanceMatrix matrix = new TriangularDistanceMatrix(n);
+		IntStream.range(0, n - 1).parallel().forEach(i -> 
+			SphericalMath.greatCircleDistances(x[i], y[i], z[i], x, y, z, i + 1, n, matrix.packed, matrix.index(i, i + 1))
+		);
+		matrix.doneBuilding();
+		distances = matrix;
+		if (precomputeInput.get()) {
+			precomputeDistanceTerms();
 		}
 		super.initAndValidate();
-		
+		graph = graphInput.get();
+		if (graph != null && graph.nodes != null) {
+			this.n = graph.getSize();
+		}
+		checkDistancePrecision();
 
 		positionNodes();
 		IntegerParameter traitParameter = new IntegerParameter(locations);
@@ -179,16 +214,132 @@ public class DistanceBasedDiffusionModel extends GraphSubstitutionModel {
 		if (source == target) {
 			return 0;
 		}
-		double distance = distances[source][target];
-		return getLogLForDistance(distance, time);
+		return getLogLikelihood(source, target, time);
+	}
+
+	/** precision is not part of the branch statistics, so no parameter affects all branches **/
+	@Override
+	public boolean requiresFullRecalculation() {
+		return false;
+	}
+
+	/** Branch statistics: a constant for branches that have no finite log-likelihood, the number of branches
+	 * between different locations, and over those branches the sums of log distance, log(1/time) and 
+	 * squared distance / time. The log-likelihood of all branches is then an affine function of
+	 * log(precision) and precision, so a change in precision takes constant time. **/
+	final static int CONSTANT = 0, BRANCH_COUNT = 1, LOG_DISTANCE = 2, LOG_INVERSE_TIME = 3, SQUARED_DISTANCE_PER_TIME = 4;
+
+	@Override
+	public int getBranchStatisticCount() {
+		return 5;
+	}
+
+	@Override
+	public void getBranchStatistics(int source, int target, double time, double [] stats, int offset) {
+		Arrays.fill(stats, offset, offset + 5, 0.0);
+		if (source == target) {
+			return;
+		}
+		double logDistance, squaredDistance;
+		if (logDistances != null) {
+			int k = source < target ? distances.index(source, target) : distances.index(target, source);
+			logDistance = logDistances[k];
+			squaredDistance = squaredDistances[k];
+		} else {
+			double distance = distances.getDistance(source, target);
+			if (distance == 0) {
+				distance = MIN_DISTANCE;
+			}
+			logDistance = Math.log(distance);
+			squaredDistance = distance * distance;
+		}
+		double logInverseTime = -Math.log(time);
+		double squaredDistancePerTime = squaredDistance / time;
+		if (!(time > 0) || Double.isInfinite(logInverseTime) || Double.isInfinite(squaredDistancePerTime)) {
+			// same as SampledTraitLikelihood did for log-likelihoods that are not finite
+			stats[offset + CONSTANT] = -1000;
+			return;
+		}
+		stats[offset + BRANCH_COUNT] = 1;
+		stats[offset + LOG_DISTANCE] = logDistance;
+		stats[offset + LOG_INVERSE_TIME] = logInverseTime;
+		stats[offset + SQUARED_DISTANCE_PER_TIME] = squaredDistancePerTime;
+	}
+
+	@Override
+	public double getLogLikelihoodFromStatistics(double [] sums) {
+		double p = precision.getValue(0);
+		return sums[CONSTANT] + sums[LOG_DISTANCE] + 0.5 * (sums[BRANCH_COUNT] * Math.log(p) + sums[LOG_INVERSE_TIME])
+				- 0.5 * p * sums[SQUARED_DISTANCE_PER_TIME];
 	}
 
 	@Override
 	public double getLogLikelihood(int source, int target, double time) {
-		double distance = distances[source][target];
+		if (logDistances != null) {
+			return getLogLForPair(source, target, time);
+		}
+		double distance = distances.getDistance(source, target);
 		return getLogLForDistance(distance, time);
 	}	
 
+	/** log distance and squared distance for every pair in the distance matrix, so getLogLForPair() 
+	 * needs no logarithm per branch apart from the cached getHalfLogInverseVariance() **/
+	void precomputeDistanceTerms() {
+		double [] packed = distances.packed;
+		logDistances = new double[packed.length];
+		squaredDistances = new double[packed.length];
+		for (int k = 0; k < packed.length; k++) {
+			double distance = packed[k] == 0 ? MIN_DISTANCE : packed[k];
+			logDistances[k] = Math.log(distance);
+			squaredDistances[k] = distance * distance;
+		}
+	}
+
+	/** same as getLogLForDistance(distances.getDistance(source, target), time) using precomputed tables **/
+	double getLogLForPair(int source, int target, double time) {
+		return getLogLForPair(source, target, precision.getValue(0) / time, getHalfLogInverseVariance(time));
+	}
+
+	/** log-likelihood of pair with terms depending on time only calculated by the caller, 
+	 * using precomputed tables if there are any **/
+	private double getLogLForPair(int source, int target, double inverseVariance, double halfLogInverseVariance) {
+		if (logDistances == null) {
+			double distance = distances.getDistance(source, target);
+			if (distance == 0) {
+				distance = MIN_DISTANCE;
+			}
+			return Math.log(distance) + halfLogInverseVariance -0.5 * distance * distance * inverseVariance;
+		}
+		double logDistance, squaredDistance;
+		if (source == target) {
+			logDistance = Math.log(MIN_DISTANCE);
+			squaredDistance = MIN_DISTANCE * MIN_DISTANCE;
+		} else {
+			int k = source < target ? distances.index(source, target) : distances.index(target, source);
+			logDistance = logDistances[k];
+			squaredDistance = squaredDistances[k];
+		}
+		return (logDistance + halfLogInverseVariance) - 0.5 * inverseVariance * squaredDistance;
+	}
+
+	/** 0.5 * log(precision / time). With precomputed distance terms this is the only logarithm per branch, 
+	 * so it is cached by time and branches of equal length share it. Otherwise a logarithm of the distance
+	 * is needed anyway, and it is calculated directly. Each thread has its own cache. **/
+	double getHalfLogInverseVariance(double time) {
+		double p = precision.getValue(0);
+		if (logDistances == null) {
+			return 0.5 * Math.log(p / time);
+		}
+		LogTermCache cache = logTermCache.get();
+		int slot = Double.hashCode(time) & (LOG_TERM_CACHE_SIZE - 1);
+		if (cache.time[slot] != time || cache.precision[slot] != p) {
+			cache.time[slot] = time;
+			cache.precision[slot] = p;
+			cache.value[slot] = 0.5 * Math.log(p / time);
+		}
+		return cache.value[slot];
+	}
+
 	@Override
 	public EigenDecomposition getEigenDecomposition(Node node) {
 		return null;
@@ -203,57 +354,138 @@ public class DistanceBasedDiffusionModel extends GraphSubstitutionModel {
 		return false;
 	}
 
+	/** check error in log-likelihood due to reduced precision graph distances at the shortest branch of the initial tree
+	 * and the initial precision. This is not repeated when the state changes, see logLToleranceInput. **/
+	private void checkDistancePrecision() {
+		if (graph == null || !(graph.distanceMatrix instanceof CompressedDistanceMatrix)) {
+			return;
+		}
+		double time = Double.POSITIVE_INFINITY;
+		for (Node node : treeInput.get().getNodesAsArray()) {
+			if (!node.isRoot() && node.getParent().getHeight() > node.getHeight()) {
+				time = Math.min(time, node.getParent().getHeight() - node.getHeight());
+			}
+		}
+		if (Double.isInfinite(time)) {
+			time = 1.0;
+		}
+		double bound = getLogLErrorBound((CompressedDistanceMatrix) graph.distanceMatrix, time);
+		Double tolerance = logLToleranceInput.get();
+		if (tolerance == null) {
+			Log.info.println("Graph distances stored with " + ((CompressedDistanceMatrix) graph.distanceMatrix).getPrecision() + 
+					" precision: log-likelihood error per branch at most " + bound + " for branches of length " + time);
+		} else if (bound > tolerance) {
+			throw new IllegalArgumentException("Graph distances stored with " + ((CompressedDistanceMatrix) graph.distanceMatrix).getPrecision() + 
+					" precision cause log-likelihood errors up to " + bound + " for branches of length " + time + 
+					", which exceeds logLTolerance=" + tolerance + ". Use a higher distancePrecision for the graph.");
+		}
+	}
+
+	/** upper bound on the difference in getLogLForDistance() between stored and original distances of a matrix:
+	 * the log(distance) term changes by at most -log(1 - relative error) and
+	 * the quadratic term by at most 0.5 * inverseVariance * error * (2 * max distance + error) **/
+	public double getLogLErrorBound(CompressedDistanceMatrix matrix, double time) {
+		double inverseVariance = precision.getValue(0) / time;
+		double relativeError = matrix.getMaxRelativeError();
+		double logError = relativeError < 1 ? -Math.log(1 - relativeError) : Double.POSITIVE_INFINITY;
+		double error = matrix.getMaxError();
+		return logError + 0.5 * inverseVariance * error * (2 * matrix.getMaxDistance() + error);
+	}
+
 	double getLogLForDistance(double distance, double time) {
 		if (distance == 0) {
-			distance = 1e-5;
+			distance = MIN_DISTANCE;
 		}
 		double inverseVariance = precision.getValue(0) / time;
-        double logP = Math.log(distance) + 0.5 * Math.log(inverseVariance) -0.5 * distance * distance * inverseVariance;
+        double logP = Math.log(distance) + getHalfLogInverseVariance(time) -0.5 * distance * distance * inverseVariance;
         return logP;
 	}
 
 
 	public double [] getLogTransitionProbabilities(GraphNode startNode, double time) {
-		double [] logP = new double[n];
-		
-		for (GraphNode node : graph.nodes) {
-			double distance = graph.getDistance(startNode, node);
-			logP[node.id] = getLogLForDistance(distance, time);
-		}
+		double [] logP = graph.getDistances(startNode.id, new double[n]);
+		logLRow(logP, time);
 		return logP;
 	}	
 
+	/** fetches the distance row once, and turns it into probabilities in place with the maximum 
+	 * found while taking logs, so only two more passes are needed **/
 	public double [] getTransitionProbabilities(GraphNode startNode, double time) {
-		double [] logP = getLogTransitionProbabilities(startNode, time);
-		logPtoP(logP);
-		return logP;
+		double [] p = graph.getDistances(startNode.id, new double[n]);
+		expNormalise(p, logLRow(p, time));
+		return p;
+	}
+
+	/** same as getLogLForDistance() of every distance, with terms depending on time only calculated once **/
+	@Override
+	public void getLogTransitionProbabilities(GraphNode startNode, double time, int [] targets, double [] distances, double [] logP) {
+		double inverseVariance = precision.getValue(0) / time;
+		double halfLogInverseVariance = getHalfLogInverseVariance(time);
+		for (int k = 0; k < targets.length; k++) {
+			double distance = distances[k] == 0 ? MIN_DISTANCE : distances[k];
+			logP[k] = Math.log(distance) + halfLogInverseVariance -0.5 * distance * distance * inverseVariance;
+		}
+	}
+
+	/** log(distance) - 0.5 * distance^2 * precision / time peaks at sqrt(time / precision) **/
+	@Override
+	public double getModalDistance(double time) {
+		return Math.sqrt(time / precision.getValue(0));
+	}
+
+	/** replace distances in row by getLogLForDistance(distance, time), with terms depending on time only 
+	 * calculated once for the row
+	 * @return largest log-likelihood in row **/
+	private double logLRow(double [] row, double time) {
+		return ROW_KERNEL.logNormalRow(row, MIN_DISTANCE, precision.getValue(0) / time, getHalfLogInverseVariance(time));
 	}
 
 	
 
+	/** probabilities below this are replaced by MIN_PROBABILITY / (logScale - logP) in getTransitionProbabilities() **/
+	final static double MIN_PROBABILITY = 1e-4;
+	final static double LOG_MIN_PROBABILITY = Math.log(MIN_PROBABILITY);
+
+	/** log probabilities are written into probabilities directly while keeping track of their maximum, 
+	 * and are then exponentiated in place, so no memory is allocated **/
 	@Override
 	public double getTransitionProbabilities(int[] origRange, int[] destRange, double time, double[] probabilities) {
+		return getTransitionProbabilities(origRange, destRange, precision.getValue(0) / time, getHalfLogInverseVariance(time), probabilities);
+	}
+
+	/** precision is read once for all branches, and terms depending on time are calculated once per branch **/
+	@Override
+	public void getTransitionProbabilities(int count, double [] times, int [][] origRanges, int [][] destRanges, double [][] probabilities, double [] logScales) {
+		double p = precision.getValue(0);
+		for (int b = 0; b < count; b++) {
+			double inverseVariance = p / times[b];
+			logScales[b] = getTransitionProbabilities(origRanges[b], destRanges[b], inverseVariance, 0.5 * Math.log(inverseVariance), probabilities[b]);
+		}
+	}
+
+	/** fills probabilities with log-likelihoods while tracking their maximum, then normalises and exponentiates in place 
+	 * @return maximum log-likelihood, the scale factor of the probabilities **/
+	private double getTransitionProbabilities(int[] origRange, int[] destRange, double inverseVariance, double halfLogInverseVariance, double[] probabilities) {
 		int k = 0;
-		double [] logP = new double[probabilities.length];
+		double logScale = Double.NEGATIVE_INFINITY;
 		for (int i = 0; i < origRange.length; i++) {
 			int source = origRange[i];
 			for (int j = 0; j < destRange.length; j++) {
-				int target = destRange[j];
-				logP[k++] = getLogLikelihood(source, target, time);
+				double logP = getLogLForPair(source, destRange[j], inverseVariance, halfLogInverseVariance);
+				probabilities[k++] = logP;
+				logScale = Math.max(logScale, logP);
 			}
 		}
-		// normalise
-		double logScale = logP[0];
-		for (double d : logP) {
-			logScale = Math.max(logScale, d);
+		// entries beyond the ranges have log probability 0
+		if (k < probabilities.length) {
+			Arrays.fill(probabilities, k, probabilities.length, 0.0);
+			logScale = Math.max(logScale, 0.0);
 		}
-		// exponentiate
+		// exponentiate, skipping exp for entries that end up below MIN_PROBABILITY anyway
 		for (int i = 0; i < probabilities.length; i++) {
-			probabilities[i] = Math.exp(logP[i] - logScale);
-			if (probabilities[i] < 1e-4) {
-				probabilities[i] = 1e-4 / (logScale - logP[i]);
-				
-			}
+			double logP = probabilities[i] - logScale;
+			double p = logP < LOG_MIN_PROBABILITY ? 0 : Math.exp(logP);
+			probabilities[i] = p < MIN_PROBABILITY ? MIN_PROBABILITY / -logP : p;
 		}
 		return logScale;
 	}
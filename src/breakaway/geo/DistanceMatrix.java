@@ -1,5 +1,7 @@
 package breakaway.geo;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
 
 import beast.base.core.Description;
@@ -8,10 +10,64 @@ import beast.base.core.Description;
 @Description("serialisable wrapper around a distance matrix")
 public class DistanceMatrix implements Serializable {
 	private static final long serialVersionUID = 1L;
-	
+
+	/** number of bits used for storing a distance **/
+	public enum Precision {float64, float32, int16}
+
 	double [][] distances;
-	
+
 	DistanceMatrix(double [][] distances) {
 		this.distances = distances;
 	}
+
+	/** for sub classes that do not keep distances in a double[][] **/
+	DistanceMatrix() {
+	}
+
+	/** number of rows (and columns) in the matrix **/
+	public int getSize() {
+		return distances.length;
+	}
+
+	public double getDistance(int i, int j) {
+		return distances[i][j];
+	}
+
+	/** copy row i into row, which is allocated if null **/
+	public double [] getRow(int i, double [] row) {
+		if (row == null) {
+			row = new double[getSize()];
+		}
+		System.arraycopy(distances[i], 0, row, 0, row.length);
+		return row;
+	}
+
+	/** whether setRow() can be used, which is required to repair distances after edge weights changed **/
+	public boolean isWritable() {
+		return true;
+	}
+
+	/** replace row i by a copy of row **/
+	public void setRow(int i, double [] row) {
+		System.arraycopy(row, 0, distances[i], 0, row.length);
+	}
+
+	/** store row i while the matrix is being built, possibly from multiple threads for different rows **/
+	void putRow(int i, double [] row) {
+		setRow(i, row);
+	}
+
+	/** called after the last putRow() **/
+	void doneBuilding() {
+	}
+
+	/** write matrix in binary format that can be memory mapped by load() **/
+	public void save(File file) throws IOException {
+		MappedDistanceMatrix.write(this, file);
+	}
+
+	/** memory map a matrix written by save() **/
+	public static DistanceMatrix load(File file) throws IOException {
+		return new MappedDistanceMatrix(file);
+	}
 }
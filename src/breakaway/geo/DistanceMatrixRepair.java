@@ -0,0 +1,247 @@
+package breakaway.geo;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Repairs all pairs distances after a batch of edge weights changed, without
+ * recalculating every row.
+ *
+ * For a row with source s, an edge u->v whose weight increased only matters when it is tight,
+ * that is, when d(s,u) + oldWeight = d(s,v): then (part of) a shortest path may run over it and the
+ * row is recalculated from scratch. Otherwise, distances in the row are still valid upper bounds
+ * under the new weights, and edges whose weight decreased are propagated by a Dijkstra search
+ * that only visits nodes whose distance improves.
+ *
+ * A CompressedDistanceMatrix returns distances with an error of up to getMaxError(), so for such a matrix
+ * tests for tight edges and improved distances allow for twice that error, and rows that may improve are
+ * recalculated from scratch: propagating over stored distances and storing the result again would let
+ * rounding errors accumulate over repeated repairs beyond what getMaxError() reports.
+ *
+ * A TriangularDistanceMatrix stores (s,t) and (t,s) in the same entry, so writing row s also changes column s
+ * of every later row, whose decisions and propagation need the distances from before the change. For such a
+ * matrix, repaired rows are kept until all rows are processed, which takes memory for every row that changed.
+ */
+class DistanceMatrixRepair {
+	/** relative tolerance for deciding an edge is on a shortest path **/
+	final static double EPSILON = 1e-9;
+
+	final Graph graph;
+	final CompactGraph compactGraph;
+	final DistanceMatrix matrix;
+	final int n;
+	/** whether the matrix stores distances with reduced precision **/
+	final boolean lossy;
+	/** absolute tolerance on top of EPSILON for errors in stored distances **/
+	final double tolerance;
+	/** whether writing a row also writes a column, so rows are only written once all are repaired **/
+	final boolean deferWrites;
+
+	/** changed edges: source node, edge index into compact graph, old and new weight **/
+	int [] from;
+	int [] edge;
+	double [] oldWeight;
+	double [] newWeight;
+	int changeCount;
+	/** index of change by edge, used by setWeight() **/
+	Map<Integer, Integer> changeIndex;
+
+	/** connected component of each node, used to tell unreachable nodes apart,
+	 * since their distance is stored as 0 **/
+	int [] component;
+
+	DistanceMatrixRepair(Graph graph, CompactGraph compactGraph, DistanceMatrix matrix) {
+		this.graph = graph;
+		this.compactGraph = compactGraph;
+		this.matrix = matrix;
+		this.n = compactGraph.n;
+		lossy = matrix instanceof CompressedDistanceMatrix;
+		tolerance = lossy ? 2 * ((CompressedDistanceMatrix) matrix).getMaxError() : 0;
+		deferWrites = matrix instanceof TriangularDistanceMatrix;
+		from = new int[16];
+		edge = new int[16];
+		oldWeight = new double[16];
+		newWeight = new double[16];
+	}
+
+	void addChange(int node, int e, double oldW, double newW) {
+		if (changeCount == from.length) {
+			int size = 2 * changeCount;
+			from = Arrays.copyOf(from, size);
+			edge = Arrays.copyOf(edge, size);
+			oldWeight = Arrays.copyOf(oldWeight, size);
+			newWeight = Arrays.copyOf(newWeight, size);
+		}
+		from[changeCount] = node;
+		edge[changeCount] = e;
+		oldWeight[changeCount] = oldW;
+		newWeight[changeCount] = newW;
+		changeCount++;
+	}
+
+	/** add change of edge e, or update the new weight if e changed before, so that old weights 
+	 * remain those the matrix was calculated with **/
+	void setWeight(int node, int e, double oldW, double newW) {
+		if (changeIndex == null) {
+			changeIndex = new HashMap<>();
+		}
+		Integer k = changeIndex.get(e);
+		if (k != null) {
+			newWeight[k] = newW;
+		} else {
+			changeIndex.put(e, changeCount);
+			addChange(node, e, oldW, newW);
+		}
+	}
+
+	/** update weights in compact graph and repair affected rows of the matrix.
+	 * @return number of rows that were recalculated from scratch 
+	 * @throws UnsupportedOperationException if the matrix is read only, before any weight is changed **/
+	int repair() {
+		if (changeCount == 0) {
+			return 0;
+		}
+		if (!matrix.isWritable()) {
+			throw new UnsupportedOperationException("Cannot repair a read only distance matrix");
+		}
+		calcComponents();
+
+		// decide on rows that need recalculation while the matrix still matches old weights
+		boolean [] recalc = new boolean[n];
+		for (int s = 0; s < n; s++) {
+			for (int k = 0; k < changeCount; k++) {
+				int u = from[k];
+				int v = compactGraph.targets[edge[k]];
+				if (!reachable(s, u)) {
+					continue;
+				}
+				if (newWeight[k] > oldWeight[k]) {
+					if (isTight(matrix.getDistance(s, u) + oldWeight[k], matrix.getDistance(s, v))) {
+						recalc[s] = true;
+						break;
+					}
+				} else if (lossy && v != s && matrix.getDistance(s, u) + newWeight[k] < matrix.getDistance(s, v) + tolerance) {
+					recalc[s] = true;
+					break;
+				}
+			}
+		}
+
+		for (int k = 0; k < changeCount; k++) {
+			compactGraph.weights[edge[k]] = newWeight[k];
+		}
+
+		IndexedMinHeap heap = new IndexedMinHeap(n);
+		double [] row = new double[n];
+		double [][] repaired = deferWrites ? new double[n][] : null;
+		int recalcCount = 0;
+		for (int s = 0; s < n; s++) {
+			boolean changed = false;
+			if (recalc[s]) {
+				graph.distances(s, row, heap);
+				recalcCount++;
+				changed = true;
+			} else if (!lossy) {
+				changed = propagateDecreases(s, row, heap);
+			}
+			if (changed) {
+				if (deferWrites) {
+					repaired[s] = row.clone();
+				} else {
+					matrix.setRow(s, row);
+				}
+			}
+		}
+		if (deferWrites) {
+			for (int s = 0; s < n; s++) {
+				if (repaired[s] != null) {
+					matrix.setRow(s, repaired[s]);
+				}
+			}
+		}
+		return recalcCount;
+	}
+
+	/** lower distances in row s for edges with decreased weight, and whatever can be reached cheaper through them 
+	 * @return whether row holds a changed row s, which is left to the caller to store **/
+	private boolean propagateDecreases(int s, double [] row, IndexedMinHeap heap) {
+		boolean loaded = false;
+		heap.clear();
+		for (int k = 0; k < changeCount; k++) {
+			if (newWeight[k] < oldWeight[k]) {
+				int u = from[k];
+				int v = compactGraph.targets[edge[k]];
+				if (reachable(s, u)) {
+					double d = matrix.getDistance(s, u) + newWeight[k];
+					if (v != s && d < matrix.getDistance(s, v)) {
+						if (!loaded) {
+							matrix.getRow(s, row);
+							loaded = true;
+						}
+						if (d < row[v]) {
+							row[v] = d;
+							heap.offer(v, d);
+						}
+					}
+				}
+			}
+		}
+		if (!loaded) {
+			return false;
+		}
+
+		final int [] offsets = compactGraph.offsets;
+		final int [] targets = compactGraph.targets;
+		final double [] weights = compactGraph.weights;
+		while (!heap.isEmpty()) {
+			double dist = heap.peekKey();
+			int u = heap.poll();
+			for (int e = offsets[u]; e < offsets[u + 1]; e++) {
+				int t = targets[e];
+				double d = dist + weights[e];
+				if (t != s && d < row[t]) {
+					row[t] = d;
+					heap.offer(t, d);
+				}
+			}
+		}
+		return true;
+	}
+
+	private boolean isTight(double viaEdge, double distance) {
+		return Math.abs(viaEdge - distance) <= tolerance + EPSILON * Math.max(1.0, Math.abs(distance));
+	}
+
+	private boolean reachable(int s, int u) {
+		return component[s] == component[u];
+	}
+
+	/** label weakly connected components by union-find over all edges **/
+	private void calcComponents() {
+		component = new int[n];
+		for (int i = 0; i < n; i++) {
+			component[i] = i;
+		}
+		for (int i = 0; i < n; i++) {
+			for (int e = compactGraph.offsets[i]; e < compactGraph.offsets[i + 1]; e++) {
+				int a = root(i);
+				int b = root(compactGraph.targets[e]);
+				if (a != b) {
+					component[Math.max(a, b)] = Math.min(a, b);
+				}
+			}
+		}
+		for (int i = 0; i < n; i++) {
+			component[i] = root(i);
+		}
+	}
+
+	private int root(int i) {
+		while (component[i] != i) {
+			component[i] = component[component[i]];
+			i = component[i];
+		}
+		return i;
+	}
+}
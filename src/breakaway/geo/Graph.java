@@ -1,275 +1,386 @@
 package breakaway.geo;
 
-import java.awt.Color;
-import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.HashSet;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.PriorityQueue;
-import java.util.Set;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-
-import javax.imageio.ImageIO;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import beast.base.core.BEASTObject;
 import beast.base.core.Description;
 import beast.base.core.Input;
+import beast.base.core.Log;
 
 @Description("Graph connecting nodes on the earth's surface")
 public class Graph extends BEASTObject {
 	public Input<Boolean> allNeighborsInput = new Input<Boolean>("allNeighbors", "consider all adjacent nodes are neighbours, not just the ones that have two vertices in common",  false);
 	public Input<Boolean> useGreatCircleInput = new Input<Boolean>("useGreatCircle", "use great circle distance between centers instead of Cartesian coordinates",  true);
 
-	public Input<Integer> resolutionInput = new Input<Integer>("resolution", "number of pixels per degree for pixelmap used to find nearest neighbours", 40);
-	public Input<Double> multiplierInput = new Input<Double>("multiplier", "number of degrees to consider for nearest neighbour", 6.0/3.0);
+	public Input<Integer> resolutionInput = new Input<Integer>("resolution", "ignored: nearest nodes are now found exactly without a pixelmap "
+			+ "(used to be number of pixels per degree for pixelmap used to find nearest neighbours)", 40);
+	public Input<Double> multiplierInput = new Input<Double>("multiplier", "ignored: nearest nodes are now found exactly without a pixelmap "
+			+ "(used to be number of degrees to consider for nearest neighbour)", 6.0/3.0);
+	public Input<File> distanceFileInput = new Input<File>("distanceFile", "binary file with all pairwise distances, as written by saveDistances(). "
+			+ "If it exists, it is memory mapped instead of recalculating distances");
+	public Input<Boolean> symmetricInput = new Input<Boolean>("symmetric", "store all pairs distances as packed upper triangle, which halves memory. "
+			+ "Requires edge weights to be the same in both directions, which is checked when distances are calculated.", false);
+	public Input<DistanceMatrix.Precision> distancePrecisionInput = new Input<DistanceMatrix.Precision>("distancePrecision", "storage used for each all pairs distance: "
+			+ "float64 is exact, float32 halves memory, int16 quarters memory by quantising each row between its minimum and maximum. "
+			+ "Cannot be combined with symmetric.", DistanceMatrix.Precision.float64, DistanceMatrix.Precision.values());
+	public Input<Integer> distanceCacheSizeInput = new Input<Integer>("distanceCacheSize", "if positive, distances are calculated one row at a time when first needed, "
+			+ "and at most this many megabytes of rows are kept in memory. Ignored if distanceFile exists.", 0);
+
+	public enum PathSearch {dijkstra, astar, alt}
+	public Input<PathSearch> pathSearchInput = new Input<PathSearch>("pathSearch", "algorithm for point to point shortest paths: "
+			+ "dijkstra grows uniformly around the source, astar is directed to the target by great circle distances, "
+			+ "alt by great circle and landmark distances, which stay informative when edge weights are scaled", PathSearch.dijkstra, PathSearch.values());
+	public Input<Integer> landmarkCountInput = new Input<Integer>("landmarks", "number of landmarks used when pathSearch=alt", 8);
+	public Input<File> hierarchyFileInput = new Input<File>("hierarchyFile", "file with contraction hierarchy, as written by saveContractionHierarchy(). "
+			+ "If it exists, it is used for distances and shortest paths when there is no distance matrix");
+	public Input<File> snapshotFileInput = new Input<File>("snapshotFile", "binary graph snapshot, as written by saveSnapshot(). "
+			+ "If it exists and no nodes are set, nodes, edges and nearest node index are loaded from it");
 	
 	public List<GraphNode> nodes;
 	
 	DistanceMatrix distanceMatrix;
 
-	LatLongMap latLongMap;
+	/** finds node with centre closest to a latitude/longitude pair, see mapLatLongToGraphNode() **/
+	SphericalIndex sphericalIndex;
+
+	/** fork/join pools of distance calculations by number of threads, shared between calls.
+	 * Workers are daemon threads that stop when idle for a while, so pools are never shut down **/
+	private final Map<Integer, ForkJoinPool> pools = new ConcurrentHashMap<>();
+
+	/** set by cancelDistances() to stop a running distances(int threads) call **/
+	private volatile boolean cancelled;
+
+	/** flattened copy of nodes used for searches, see getCompactGraph() **/
+	private volatile CompactGraph compactGraph;
+
+	/** edge weight changes made through GraphNode.scaleDistance(), already in the compact graph 
+	 * but not yet repaired in the distance matrix, see updateDistances() **/
+	private DistanceMatrixRepair pendingRepair;
+
+	/** goal directed search used by shortestPath() if pathSearch is not dijkstra, see getAStarSearch() **/
+	private volatile AStarSearch aStarSearch;
+
+	/** shortcuts for fast point to point queries, see buildContractionHierarchy() **/
+	volatile ContractionHierarchy contractionHierarchy;
 	
 	@Override
 	public void initAndValidate() {
+		File snapshotFile = snapshotFileInput.get();
+		if (nodes == null && snapshotFile != null && snapshotFile.exists()) {
+			try {
+				loadSnapshot(snapshotFile);
+			} catch (IOException e) {
+				throw new IllegalArgumentException("Could not load graph snapshot from " + snapshotFile.getPath() + ": " + e.getMessage());
+			}
+		}
+		File distanceFile = distanceFileInput.get();
+		if (distanceFile != null && distanceFile.exists()) {
+			try {
+				loadDistances(distanceFile);
+			} catch (IOException e) {
+				throw new IllegalArgumentException("Could not load distances from " + distanceFile.getPath() + ": " + e.getMessage());
+			}
+		} else if (distanceCacheSizeInput.get() > 0) {
+			setUpLazyDistances(distanceCacheSizeInput.get() * 1024L * 1024L);
+		}
+		File hierarchyFile = hierarchyFileInput.get();
+		if (hierarchyFile != null && hierarchyFile.exists()) {
+			try {
+				loadContractionHierarchy(hierarchyFile);
+			} catch (IOException e) {
+				throw new IllegalArgumentException("Could not load contraction hierarchy from " + hierarchyFile.getPath() + ": " + e.getMessage());
+			}
+		}
 	}
-	
-	/** used to quickly find a GraphNode closest to a given latitude/longitude pair 
-	 * in a graph **/
-	class LatLongMap {
-		double maxLat = 90, minLat = -90;
-		double maxLong= 180, minLong= -180;
 
-		double deltaLat = Double.POSITIVE_INFINITY;
-		double deltaLong = Double.POSITIVE_INFINITY;
+	/** calculate distances row by row when they are first needed instead of all pairs up front,
+	 * keeping at most maxBytes of rows in memory **/
+	public LazyDistanceMatrix setUpLazyDistances(long maxBytes) {
+		LazyDistanceMatrix matrix = new LazyDistanceMatrix(this, maxBytes);
+		distanceMatrix = matrix;
+		return matrix;
+	}
 
-		GraphNode [][] map;
-		
-		LatLongMap(List<GraphNode> nodes) {
-			final int X = resolutionInput.get(); 
-			final int MULTI_X = (int)(X * multiplierInput.get()); 
-			
-			Set<Vertex> vertices = new HashSet<Vertex>();
-			for (GraphNode t : nodes) {
-				t.addVertices(vertices);
-			}
-			
-			// determine map boundary
-			Vertex dummy = (Vertex) vertices.toArray()[0];
-			maxLat = dummy.lat1;
-			minLat = dummy.lat1;
-			maxLong = dummy.long1;
-			minLong = dummy.long1;
-
-			for (Vertex v : vertices) {
-				maxLat = Math.max(maxLat, v.lat1);
-				minLat = Math.min(minLat, v.lat1);
-				maxLong = Math.max(maxLong, v.long1);
-				minLong = Math.min(minLong, v.long1);
-			}
-			double delta = 0.10;
-			double dy = (maxLat - minLat) * delta; 
-			double dx = (maxLong - minLong) * delta; 
-			maxLat += dy;
-			minLat -= dy;
-			maxLong += dx;
-			minLong -= dx;
-
-			// determine step size
-			for (GraphNode node : nodes) {
-				double [] center = node.getCenter();
-				for (GraphNode nb : node.neighbours) {
-					double [] nbcenter = nb.getCenter();
-					double dLat = Math.abs(center[0] - nbcenter[0]);
-					double dLong = Math.abs(center[1] - nbcenter[1]);
-					if (dLat < dLong) {
-						deltaLong = Math.min(deltaLong, dLong);
+	/** flattened representation of the nodes that all searches run on. It is built on first use, 
+	 * after which GraphNode.scaleDistance() passes new edge weights on to it through setEdgeWeight() **/
+	public CompactGraph getCompactGraph() {
+		CompactGraph graph = compactGraph;
+		if (graph == null) {
+			synchronized (this) {
+				if (compactGraph == null) {
+					if (nodes instanceof CompactGraphNode.NodeList) {
+						compactGraph = ((CompactGraphNode.NodeList) nodes).toCompactGraph();
 					} else {
-						deltaLat = Math.min(deltaLat, dLat);
+						compactGraph = new CompactGraph(nodes);
+						for (GraphNode node : nodes) {
+							node.owner = this;
+						}
 					}
 				}
+				graph = compactGraph;
 			}
-			
-			// set up the map
-			int latSteps =  X * (int)((maxLat - minLat + deltaLat * 0.9999) / deltaLat);
-			int longSteps = X * (int)((maxLong - minLong + deltaLong * 0.9999) / deltaLong);
-			
-//			latSteps = 90*10;
-//			longSteps = 180*10;
-//			deltaLat = 1;
-//			deltaLong = 1;
-//			minLong = 0;
-//			minLat = 0;
-//			maxLong = 180;
-//			maxLat = 90;
-
-			deltaLat = (maxLat - minLat) / latSteps;
-			deltaLong = (maxLong - minLong) / longSteps;
-			map = new GraphNode[latSteps][longSteps];
-
-			double [][] centers = new double[nodes.size()][];
-			for (GraphNode node : nodes) {
-				if (centers[node.id] == null) { 
-					centers[node.id] = node.getCenter();
-				} else {
-					System.err.println("duplicate id found " + node.id + " " + centers[node.id]);
-				}
+		}
+		return graph;
+	}
+
+	/** discard compact graph, so it is rebuilt from nodes on next use, e.g. after neighbours changed. 
+	 * Weight changes not yet repaired by updateDistances() are dropped, so distances need to be recalculated **/
+	public synchronized void resetCompactGraph() {
+		compactGraph = null;
+		pendingRepair = null;
+		aStarSearch = null;
+	}
+
+	/** called by GraphNode.scaleDistance() before the weight of the edge from node nodeID to its i-th 
+	 * neighbour becomes weight. The compact graph gets the new weight straight away, rows of a lazy 
+	 * distance matrix are dropped, and a full distance matrix is repaired by the next updateDistances().
+	 * @throws UnsupportedOperationException if the distance matrix is read only, before anything changed **/
+	synchronized void setEdgeWeight(int nodeID, int i, double weight) {
+		CompactGraph graph = compactGraph;
+		if (graph == null) {
+			// nothing has been searched yet, so the compact graph will be built from current weights
+			return;
+		}
+		checkWritableDistances();
+		int e = graph.offsets[nodeID] + i;
+		double oldWeight = graph.weights[e];
+		if (oldWeight == weight) {
+			return;
+		}
+		if (distanceMatrix instanceof LazyDistanceMatrix) {
+			// rows are recalculated with new weights when next needed
+			((LazyDistanceMatrix) distanceMatrix).clear();
+		} else if (distanceMatrix != null) {
+			if (pendingRepair == null || pendingRepair.matrix != distanceMatrix) {
+				pendingRepair = new DistanceMatrixRepair(this, graph, distanceMatrix);
 			}
+			pendingRepair.setWeight(nodeID, e, oldWeight, weight);
+		}
+		graph.weights[e] = weight;
+		dropWeightDependentSearches();
+	}
 
-			for (GraphNode node : nodes) {
-				double [] center = centers[node.id];
-				int iLat = (int)((center[0] - minLat + deltaLat/2) / deltaLat);
-				int iLong = (int)((center[1] - minLong + deltaLong/2) / deltaLong);
-				setMap(iLat, iLong, node);
-				
-				// check whether surrounding map locations are also closest to node
-				// in a MULTI_XxMULTI_X grid with (iLat,iLong) at the center
-				for (int i = -MULTI_X; i <= MULTI_X; i++) {
-					int y = iLat + i;
-					if (y >= 0 && y < latSteps) {
-						double lat0 = minLat + y * deltaLat + deltaLat/2;
-						for (int j = - MULTI_X; j <= MULTI_X; j++) {
-							int x = iLong + j;
-							if (x >= 0 && x < longSteps) {
-								double long0 = minLong + x * deltaLong + deltaLong/2;
-								double nodeDist = (center[0] - lat0) * (center[0] - lat0) + (center[1] - long0) * (center[1] - long0);
-								
-								boolean foundCloser = false;
-								double currentDist = nodeDist;
-								for (GraphNode nb : node.neighbours) {
-									double [] nbcenter = centers[nb.id];
-									double nbDist = (nbcenter[0] - lat0) * (nbcenter[0] - lat0) + (nbcenter[1] - long0) * (nbcenter[1] - long0);
-									if (nbDist < currentDist) {
-										if (map[y][x] != null) {
-											double [] occupyingcenter = centers[map[y][x].id];
-											double ocDist = (occupyingcenter[0] - lat0) * (occupyingcenter[0] - lat0) + (occupyingcenter[1] - long0) * (occupyingcenter[1] - long0);
-											if (ocDist > currentDist) {
-												if (i == 0 && j == 0) {
-													int iLat2 = (int)((nbcenter[0] - minLat) / deltaLat);
-													int iLong2 = (int)((nbcenter[1] - minLong) / deltaLong);
-													System.err.println(iLat2 + " " + iLong2);
-												}
-												setMap(y, x, nb);
-											}
-										} else {
-											setMap(y, x, nb);
-										}
-										foundCloser = true;
-										currentDist = nbDist;
-									}
-								}
-								if (!foundCloser) {
-									if (map[y][x] != null) {
-										double [] occupyingcenter = centers[map[y][x].id];
-										double ocDist = (occupyingcenter[0] - lat0) * (occupyingcenter[0] - lat0) + (occupyingcenter[1] - long0) * (occupyingcenter[1] - long0);
-										if (ocDist > currentDist) {
-											setMap(y, x, node);
-										}
-									} else {
-										setMap(y, x, node);
-									}
-								}
-								
-							}
-						}
-					}
+	/** bounds of the goal directed search and shortcuts of the contraction hierarchy depend on edge weights **/
+	private void dropWeightDependentSearches() {
+		aStarSearch = null;
+		if (contractionHierarchy != null) {
+			Log.warning.println("Edge weights changed: contraction hierarchy is dropped, call buildContractionHierarchy() to rebuild it");
+			contractionHierarchy = null;
+		}
+	}
+
+	/** search for shortestPath() set up for current compact graph, building landmarks if required **/
+	AStarSearch getAStarSearch() {
+		AStarSearch search = aStarSearch;
+		if (search == null) {
+			synchronized (this) {
+				if (aStarSearch == null) {
+					CompactGraph graph = getCompactGraph();
+					Landmarks landmarks = pathSearchInput.get() == PathSearch.alt ? new Landmarks(graph, landmarkCountInput.get()) : null;
+					aStarSearch = new AStarSearch(graph, useGreatCircleInput.get(), landmarks);
 				}
+				search = aStarSearch;
 			}
-			
-			// sanity check
-			for (GraphNode node : nodes) {
-				GraphNode closest = getClosestNode(centers[node.id][0], centers[node.id][1]);
-				if (closest == null || node.id != closest.id) {
-					System.err.println("node " + node.id + " is not closest to itself " + closest);
-				}
+		}
+		return search;
+	}
+
+	/** scale weights of a batch of edges, and repair the distance matrix (if any) without recalculating all of it.
+	 * Edge k runs from node nodeIDs[k] to its neighbourIndices[k]-th neighbour 
+	 * @return number of rows that had to be recalculated from scratch **/
+	public int scaleDistances(int [] nodeIDs, int [] neighbourIndices, double [] scales) {
+		checkWritableDistances();
+		for (int k = 0; k < nodeIDs.length; k++) {
+			nodes.get(nodeIDs[k]).scaleDistance(scales[k], neighbourIndices[k]);
+		}
+		return updateDistances();
+	}
+
+	/** bring distance matrix up to date after edge weights were changed through GraphNode.scaleDistance(), 
+	 * which already passed them on to the compact graph, and compact graph too if weights of nodes were 
+	 * changed otherwise. Only rows of the distance matrix that are affected by changed edges are updated. 
+	 * @return number of rows that had to be recalculated from scratch 
+	 * @throws UnsupportedOperationException if weights changed but the distance matrix is read only, 
+	 * e.g. memory mapped, in which case compact graph and matrix are left as they were **/
+	public synchronized int updateDistances() {
+		CompactGraph graph = compactGraph;
+		if (graph == null) {
+			// nothing has been searched yet, so the compact graph will be built from current weights
+			return 0;
+		}
+		DistanceMatrixRepair repair = pendingRepair;
+		if (repair == null || repair.matrix != distanceMatrix) {
+			// a matrix set up after the weights changed already has the new distances
+			repair = new DistanceMatrixRepair(this, graph, distanceMatrix);
+		}
+		for (GraphNode node : nodes) {
+			int e = graph.offsets[node.id];
+			if (graph.getDegree(node.id) != node.getNeighbourCount()) {
+				throw new IllegalStateException("Neighbours of node " + node.id + " changed: call resetCompactGraph() and recalculate distances");
 			}
-			
-			// sanity check 2
-			int [] bm = new int[map.length * map[0].length];
-			int k = 0;
-			for (int i = 0; i < map.length; i++) {
-				for (int j = 0; j < map[0].length; j++) {
-					GraphNode node = map[map.length -1 - i][j];
-					if (node != null) {
-						int id = node.id;
-						bm[k++] = Color.HSBtoRGB(((id % 19)/19.0f), 1.0f, 1.0f);
-					} else {
-						bm[k++] = 0;
-					}
+			for (int k = 0; k < node.getNeighbourCount(); k++) {
+				double w = node.getDistance(k);
+				if (w != graph.weights[e + k]) {
+					repair.addChange(node.id, e + k, graph.weights[e + k], w);
 				}
 			}
-			for (double [] center : centers) {
-				int iLat = (int)((center[0] - minLat + deltaLat/2) / deltaLat);
-				int iLong = (int)((center[1] - minLong + deltaLong/2) / deltaLong);
-				bm[iLat * longSteps + iLong] = 0;
+		}
+		if (repair.changeCount == 0) {
+			pendingRepair = null;
+			return 0;
+		}
+		// check before changing anything, so weights of the compact graph keep matching the matrix
+		checkWritableDistances();
+		dropWeightDependentSearches();
+		pendingRepair = null;
+		if (distanceMatrix == null || distanceMatrix instanceof LazyDistanceMatrix) {
+			for (int k = 0; k < repair.changeCount; k++) {
+				graph.weights[repair.edge[k]] = repair.newWeight[k];
 			}
-			BufferedImage bMap = new BufferedImage(longSteps, latSteps, BufferedImage.TYPE_INT_RGB);
-			bMap.setRGB(0, 0, longSteps, latSteps, bm, 0, longSteps);
-			try {
-				ImageIO.write(bMap, "png", new File("/tmp/graphmap.png"));
-			} catch (IOException e) {
-				e.printStackTrace();
+			if (distanceMatrix != null) {
+				// rows are recalculated with new weights when next needed
+				((LazyDistanceMatrix) distanceMatrix).clear();
 			}
+			return 0;
 		}
-		
-		private void setMap(int iLat, int iLong, GraphNode node) {
-//			if (iLat == 370 && iLong == 1396) {
-//				int k = 3;
-//				k++;
-//			}
-			if (iLat < 0 || iLong < 0 || iLat > map.length || iLong > map[0].length) {
-				return;
-			}
-			map[iLat][iLong] = node;
+		return repair.repair();
+	}
+
+	/** @throws UnsupportedOperationException if there is a distance matrix that cannot be repaired after 
+	 * edge weights change **/
+	private void checkWritableDistances() {
+		DistanceMatrix matrix = distanceMatrix;
+		if (compactGraph != null && matrix != null && !(matrix instanceof LazyDistanceMatrix) && !matrix.isWritable()) {
+			throw new UnsupportedOperationException("Distance matrix is read only, so it cannot be updated after edge weights change: "
+					+ "recalculate distances with distances(threads) first, or leave edge weights as they are");
 		}
+	}
 
-		GraphNode getClosestNode(double latitude, double longitude) {
-			int iLat = (int)((latitude - minLat + deltaLat/2) / deltaLat);
-			int iLong = (int)((longitude - minLong + deltaLong/2) / deltaLong);
-			if (iLat < 0 || iLat >= map.length || iLong < 0 || iLong >= map[0].length) {
-				return null;
-			}
-			return map[iLat][iLong];
+	/** write current distance matrix in binary format that can be memory mapped by loadDistances() **/
+	public void saveDistances(File file) throws IOException {
+		if (distanceMatrix == null) {
+			throw new RuntimeException("call distances() before calling saveDistances()");
 		}
-	} // class LatLongMap
-	
+		distanceMatrix.save(file);
+	}
 
-	void setUpLatLongMap() {
-		latLongMap = new LatLongMap(nodes);
+	/** memory map distance matrix from a file written by saveDistances(). 
+	 * Mapped pages are shared through the OS page cache, so they hardly use any heap **/
+	public DistanceMatrix loadDistances(File file) throws IOException {
+		DistanceMatrix matrix = DistanceMatrix.load(file);
+		if (nodes != null && matrix.getSize() != nodes.size()) {
+			throw new IOException("Distance matrix in " + file.getPath() + " has " + matrix.getSize() + " rows but graph has " + nodes.size() + " nodes");
+		}
+		distanceMatrix = matrix;
+		return distanceMatrix;
+	}
+
+	/** preprocess graph so that getDistance() and shortestPath() between two nodes take microseconds
+	 * without a distance matrix. Needs to be rebuilt after edge weights change. **/
+	public ContractionHierarchy buildContractionHierarchy() {
+		ContractionHierarchy hierarchy = new ContractionHierarchy(getCompactGraph());
+		contractionHierarchy = hierarchy;
+		return hierarchy;
 	}
-	
-	class DistantGNode {
-		
-		double distance;
-		GraphNode gnode;
 
-		DistantGNode(double distance, GraphNode gnode) {
-			this.distance = distance;
-			this.gnode = gnode;
+	public void saveContractionHierarchy(File file) throws IOException {
+		ContractionHierarchy hierarchy = contractionHierarchy;
+		if (hierarchy == null) {
+			throw new RuntimeException("call buildContractionHierarchy() before calling saveContractionHierarchy()");
 		}
-		
-		@Override
-		public String toString() {
-			return "(" + gnode.id +":" + Vertex.formatter.format(distance)+")";
+		try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+			out.writeObject(hierarchy);
+		}
+	}
+
+	/** read contraction hierarchy written by saveContractionHierarchy() for a graph with the same nodes and edge weights **/
+	public ContractionHierarchy loadContractionHierarchy(File file) throws IOException {
+		ContractionHierarchy hierarchy;
+		try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			hierarchy = (ContractionHierarchy) in.readObject();
+		} catch (ClassNotFoundException | ClassCastException e) {
+			throw new IOException("No contraction hierarchy in " + file.getPath());
 		}
-	} // class DistantGNode
+		hierarchy.validate(file);
+		if (nodes != null && (hierarchy.getNodeCount() != nodes.size() || hierarchy.originalEdgeCount != getCompactGraph().getEdgeCount())) {
+			throw new IOException("Contraction hierarchy in " + file.getPath() + " has " + hierarchy.getNodeCount() + " nodes and " + 
+					hierarchy.originalEdgeCount + " edges, which does not match the graph");
+		}
+		contractionHierarchy = hierarchy;
+		return hierarchy;
+	}
+
+	/** write nodes, edges and nearest node index in a binary format that loadSnapshot() reads 
+	 * without creating objects per node or edge **/
+	public void saveSnapshot(File file) throws IOException {
+		new GraphSnapshot(getCompactGraph(), getSphericalIndex()).write(file);
+	}
+
+	/** replace nodes by those in a snapshot written by saveSnapshot(). Nodes are CompactGraphNodes, 
+	 * which are only created when accessed, so start up does not depend on how nodes were originally set up. **/
+	public void loadSnapshot(File file) throws IOException {
+		GraphSnapshot snapshot = new GraphSnapshot(file);
+		setCompactGraph(snapshot.graph, snapshot.index);
+	}
 
-	class DistanceGNodeComparator implements Comparator<DistantGNode> {
+	/** replace nodes by CompactGraphNodes of graph, as loadSnapshot() does, e.g. for a graph set up 
+	 * with CompactGraph.fromEdges(). Distances of the previous nodes are dropped, so need to be calculated 
+	 * or loaded afterwards. **/
+	public void setCompactGraph(CompactGraph graph) {
+		setCompactGraph(graph, null);
+	}
 
-		@Override
-		public int compare(DistantGNode t1, DistantGNode t2) {
-			if (t1.distance > t2.distance) {
-				return 1;
-			} else if (t1.distance < t2.distance) {
-				return -1;
+	private synchronized void setCompactGraph(CompactGraph graph, SphericalIndex index) {
+		nodes = new CompactGraphNode.NodeList(graph, this);
+		compactGraph = graph;
+		pendingRepair = null;
+		sphericalIndex = index;
+		aStarSearch = null;
+		contractionHierarchy = null;
+		distanceMatrix = null;
+	}
+	
+	
+
+	/** build index used by mapLatLongToGraphNode(). It is built on first use otherwise. **/
+	void setUpLatLongMap() {
+		sphericalIndex = new SphericalIndex(getCompactGraph());
+	}
+	
+	/** search state reused by shortest path queries of the calling thread **/
+	private final ThreadLocal<SearchWorkspace[]> workspaces = ThreadLocal.withInitial(() -> new SearchWorkspace[0]);
+
+	/** at least count workspaces for the calling thread, sized for the current graph.
+	 * They are shared by all queries of the thread, so should not be held on to between queries **/
+	SearchWorkspace [] getWorkspaces(int count) {
+		SearchWorkspace [] pool = workspaces.get();
+		int n = nodes.size();
+		if (pool.length < count || (pool.length > 0 && pool[0].capacity() != n)) {
+			pool = new SearchWorkspace[Math.max(count, pool.length)];
+			for (int i = 0; i < pool.length; i++) {
+				pool[i] = new SearchWorkspace(n);
 			}
-			return 0;
+			workspaces.set(pool);
 		}
-	} // class DistanceGNodeComparator
+		return pool;
+	}
 	
 
 	public void shortestPath(GraphNode t1, GraphNode t2, List<GraphNode> path1) {
@@ -278,26 +389,39 @@ public class Graph extends BEASTObject {
 		//for (int i = path2.size() - 1; i >= 0; i--) {
 		//	path1.add(path2.get(i));
 		//}
-		final DistanceGNodeComparator comparator = new DistanceGNodeComparator();
+		ContractionHierarchy hierarchy = contractionHierarchy;
+		if (hierarchy != null) {
+			int [] path = hierarchy.shortestPath(t1.id, t2.id);
+			if (path != null) {
+				for (int id : path) {
+					path1.add(nodes.get(id));
+				}
+			}
+			return;
+		}
+		SearchWorkspace ws1 = getWorkspaces(1)[0];
+		if (pathSearchInput.get() != PathSearch.dijkstra) {
+			if (t1 == t2) {
+				path1.add(t1);
+				return;
+			}
+			if (getAStarSearch().search(t1.id, t2.id, ws1) >= 0) {
+				buildPaths(t2.id, t1.id, ws1.prev, path1);
+			}
+			return;
+		}
 
-		boolean [] done1 = new boolean [nodes.size()];
-		double [] dist1 = new double[nodes.size()];
-		int[] prev1 = new int[nodes.size()];
-		
-		done1[t1.id] = true;
-		prev1[t1.id] = t1.id;
-		PriorityQueue<DistantGNode> queue1 = new PriorityQueue<DistantGNode>(comparator);
-		queue1.add(new DistantGNode(0, t1));
+		ws1.reset();
+		ws1.reach(t1.id, 0, t1.id);
+		ws1.heap.offer(t1.id, 0);
 		
 		int targetID = t2.id;
 
 		
-		while (queue1.size() > 0) {
-			//DistantGNode ct1 = queue1.peek();
-			
-			int connection = doStep(queue1, dist1, prev1, done1, targetID);
+		while (!ws1.heap.isEmpty()) {
+			int connection = doStep(ws1, targetID);
 			if (connection >= 0) {
-				buildPaths(connection, t1.id, prev1, path1);
+				buildPaths(connection, t1.id, ws1.prev, path1);
 				return;					
 			}
 		}
@@ -305,158 +429,85 @@ public class Graph extends BEASTObject {
 
 	}
 	
-	int doStep(PriorityQueue<DistantGNode> queue1, double [] dist1, int [] prev1, boolean [] done1, int targetID) {
-		GraphNode gnode = queue1.poll().gnode;
-		double dist = dist1[gnode.id];
-		for (int i = 0; i < gnode.neighbours.length; i++) {
-			GraphNode t = gnode.neighbours[i];
-			double d = gnode.getDistance(i);
-			if (!done1[t.id] || dist + d < dist1[t.id]) {
-				dist1[t.id] = dist + d;
-				prev1[t.id] = gnode.id;
-				done1[t.id] = true;
-				if (t.id == targetID) {
+	int doStep(SearchWorkspace ws1, int targetID) {
+		final CompactGraph graph = getCompactGraph();
+		int gnode = ws1.heap.poll();
+		double dist = ws1.dist[gnode];
+		for (int e = graph.offsets[gnode]; e < graph.offsets[gnode + 1]; e++) {
+			int t = graph.targets[e];
+			double d = graph.weights[e];
+			if (!ws1.isReached(t) || dist + d < ws1.dist[t]) {
+				ws1.reach(t, dist + d, gnode);
+				if (t == targetID) {
 					// we have a connection
-					return t.id;
+					return t;
 				}
-				queue1.add(new DistantGNode(dist + d, t));
+				ws1.heap.offer(t, dist + d);
 			}
 		}
 		return -1;
 	}
 	
 	public int shortestPath(GraphNode t1, double w1, GraphNode t2, double w2, List<GraphNode> path1, List<GraphNode> path2) {
-		final DistanceGNodeComparator comparator = new DistanceGNodeComparator();
+		return shortestPath(new GraphNode[]{t1, t2}, new double[]{w1, w2}, Arrays.asList(path1, path2));
+	}
 
-		boolean [] done1 = new boolean [nodes.size()];
-		double [] dist1 = new double[nodes.size()];
-		int[] prev1 = new int[nodes.size()];
-		boolean [] done2 = new boolean [nodes.size()]; 
-		double [] dist2 = new double[nodes.size()];
-		int[] prev2 = new int[nodes.size()];
-		
-		done1[t1.id] = true;
-		prev1[t1.id] = t1.id;
-		done2[t2.id] = true;
-		prev2[t2.id] = t2.id;
-		PriorityQueue<DistantGNode> queue1 = new PriorityQueue<DistantGNode>(comparator);
-		queue1.add(new DistantGNode(0, t1));
-
-		PriorityQueue<DistantGNode> queue2 = new PriorityQueue<DistantGNode>(comparator);
-		queue2.add(new DistantGNode(0, t2));
-		
-		while (queue1.size() > 0) {
-			DistantGNode ct1 = queue1.peek();
-			DistantGNode ct2 = queue2.peek();
-			
-			if ((ct1.distance / w1) < (ct2.distance / w2)) {
-				int connection = doStep(queue1, dist1, prev1, done1, done2);
-				if (connection >= 0) {
-					buildPaths(connection, t1.id, prev1, path1);
-					buildPaths(connection, t2.id, prev2, path2);
-					return connection;					
-				}
-			} else {
-				int connection = doStep(queue2, dist2, prev2, done2, done1);
-				if (connection >= 0) {
-					buildPaths(connection, t1.id, prev1, path1);
-					buildPaths(connection, t2.id, prev2, path2);
-					return connection;					
-				}
+	public int shortestPath(GraphNode t1, double w1, GraphNode t2, double w2, GraphNode t3, double w3, List<GraphNode> path1, List<GraphNode> path2, List<GraphNode> path3) {
+		return shortestPath(new GraphNode[]{t1, t2, t3}, new double[]{w1, w2, w3}, Arrays.asList(path1, path2, path3));
+	}
+
+	/** find meeting point of k sources, where source i advances at a speed proportional to weights[i],
+	 * e.g. to find a common ancestor location for all nodes in a clade.
+	 * @param paths paths.get(i) gets the path from sources[i] to the meeting point appended
+	 * @return id of meeting point, or -1 if sources are not connected **/
+	public int shortestPath(GraphNode [] sources, double [] weights, List<List<GraphNode>> paths) {
+		if (sources.length != weights.length || sources.length != paths.size()) {
+			throw new IllegalArgumentException("Expected as many weights and paths as sources, but got " + 
+					sources.length + " sources " + weights.length + " weights and " + paths.size() + " paths");
+		}
+		int [] ids = new int[sources.length];
+		for (int i = 0; i < sources.length; i++) {
+			ids[i] = sources[i].id;
+		}
+		MeetingPointSearch search = getMeetingPointSearch();
+		int connection = search.search(getCompactGraph(), ids, weights);
+		if (connection >= 0) {
+			for (int i = 0; i < sources.length; i++) {
+				buildPaths(connection, i, ids[i], search, paths.get(i));
 			}
 		}
-		return -1;
+		return connection;
 	}
 
-	public int shortestPath(GraphNode t1, double w1, GraphNode t2, double w2, GraphNode t3, double w3, List<GraphNode> path1, List<GraphNode> path2, List<GraphNode> path3) {
-		final DistanceGNodeComparator comparator = new DistanceGNodeComparator();
+	/** per thread meeting point search, sized for the current graph **/
+	private final ThreadLocal<MeetingPointSearch> meetingPointSearches = new ThreadLocal<>();
 
-		boolean [] done1 = new boolean [nodes.size()];
-		double [] dist1 = new double[nodes.size()];
-		int[] prev1 = new int[nodes.size()];
-		PriorityQueue<DistantGNode> queue1 = new PriorityQueue<DistantGNode>(comparator);
-		
-		boolean [] done2 = new boolean [nodes.size()]; 
-		double [] dist2 = new double[nodes.size()];
-		int[] prev2 = new int[nodes.size()];
-		PriorityQueue<DistantGNode> queue2 = new PriorityQueue<DistantGNode>(comparator);
-
-		boolean [] done3 = new boolean [nodes.size()]; 
-		double [] dist3 = new double[nodes.size()];
-		int[] prev3 = new int[nodes.size()];
-		PriorityQueue<DistantGNode> queue3 = new PriorityQueue<DistantGNode>(comparator);
-
-		done1[t1.id] = true;
-		done2[t2.id] = true;
-		done3[t3.id] = true;
-
-		prev1[t1.id] = t1.id;
-		prev2[t2.id] = t2.id;
-		prev3[t3.id] = t3.id;
-		
-		queue1.add(new DistantGNode(0, t1));
-		queue2.add(new DistantGNode(0, t2));
-		queue3.add(new DistantGNode(0, t3));
-
-		while (queue1.size() > 0) {
-			DistantGNode ct1 = queue1.peek();
-			DistantGNode ct2 = queue2.peek();
-			DistantGNode ct3 = queue3.peek();
-			
-			if ((ct1.distance / w1) <= (ct2.distance / w2) && (ct1.distance / w1) <= (ct3.distance / w3)) {
-				int connection = doStep(queue1, dist1, prev1, done1, done2, done3);
-				if (connection >= 0) {
-					buildPaths(connection, t1.id, prev1, path1);
-					buildPaths(connection, t2.id, prev2, path2);
-					buildPaths(connection, t3.id, prev3, path3);
-					return connection;					
-				}
-			} else if ((ct2.distance / w2) <= (ct1.distance / w1) && (ct2.distance / w2) <= (ct3.distance / w3)) {
-				int connection = doStep(queue2, dist2, prev2, done2, done1, done3);
-				if (connection >= 0) {
-					buildPaths(connection, t1.id, prev1, path1);
-					buildPaths(connection, t2.id, prev2, path2);
-					buildPaths(connection, t3.id, prev3, path3);
-					return connection;					
-				}
-			} else {
-				int connection = doStep(queue3, dist3, prev3, done3, done1, done2);
-				if (connection >= 0) {
-					buildPaths(connection, t1.id, prev1, path1);
-					buildPaths(connection, t2.id, prev2, path2);
-					buildPaths(connection, t3.id, prev3, path3);
-					return connection;					
-				}
-			}
+	MeetingPointSearch getMeetingPointSearch() {
+		MeetingPointSearch search = meetingPointSearches.get();
+		if (search == null || search.n != nodes.size()) {
+			search = new MeetingPointSearch(nodes.size());
+			meetingPointSearches.set(search);
 		}
-		return -1;
+		return search;
 	}
 
 	/** calc all minimal distances from t1 **/
 	public double [] distances(GraphNode t1) {
-		boolean [] done1 = new boolean [nodes.size()];
 		double [] dist1 = new double[nodes.size()];
-		int[] prev1 = new int[nodes.size()];
-		List<GraphNode> queue = new ArrayList<GraphNode>();
-		
-		done1[t1.id] = true;
-		prev1[t1.id] = t1.id;
-		queue.add(t1);
-		while (queue.size() > 0) {
-			GraphNode gnode = queue.remove(queue.size() - 1);
-			double dist = dist1[gnode.id];
-			for (int i = 0; i < gnode.neighbours.length; i++) {
-				GraphNode t = gnode.neighbours[i];
-				double d = gnode.getDistance(i);
-				if (!done1[t.id] || dist + d < dist1[t.id]) {
-					dist1[t.id] = dist + d;
-					prev1[t.id] = gnode.id;
-					done1[t.id] = true;
-					queue.add(t);
-				}
+		distances(t1.id, dist1, new IndexedMinHeap(nodes.size()));
+		return dist1;
+	}
+
+	/** Dijkstra search for all minimal distances from source into dist1.
+	 * The heap can be reused between calls, and is empty on return. **/
+	void distances(int source, double [] dist1, IndexedMinHeap heap) {
+		getCompactGraph().dijkstra(source, dist1, heap);
+		// unreachable nodes get distance 0, as they did with the label correcting search
+		for (int i = 0; i < dist1.length; i++) {
+			if (dist1[i] == Double.POSITIVE_INFINITY) {
+				dist1[i] = 0;
 			}
 		}
-		return dist1;
 	}
 	
 	/** calc all pairwise distances **/
@@ -464,8 +515,10 @@ public class Graph extends BEASTObject {
 		long start = System.currentTimeMillis();
 		
 		double [][] distances = new double[nodes.size()][];
+		IndexedMinHeap heap = new IndexedMinHeap(nodes.size());
 		for (int i = 0; i < nodes.size(); i++) {
-			distances[i] = distances(nodes.get(i));
+			distances[i] = new double[nodes.size()];
+			distances(i, distances[i], heap);
 			if (i % 10 == 9) {
 				long end = System.currentTimeMillis();
 				System.err.println((end-start)/1000 + " sec " + ((nodes.size()-i) * (end-start)/(1000 * (i+1))) +" sec to go");
@@ -475,151 +528,307 @@ public class Graph extends BEASTObject {
 	}
 	
 	
-	/** threaded version of distances() method **/
+	/** threaded version of distances() method. 
+	 * Rows are computed as separate fork/join tasks, so threads that run out of work steal rows from busy ones.
+	 * Throws a CancellationException when cancelDistances() is called while running. **/
 	public DistanceMatrix distances(int threads) {
-		double [][] distances = new double[nodes.size()][];
-		final CountDownLatch m_nCountDown = new CountDownLatch(threads);
+		final int n = nodes.size();
+		final DistanceMatrix store = newDistanceStore(n);
+		final double [][] distances = store == null ? new double[n][] : null;
+		final DistanceProgress progress = new DistanceProgress(n);
+		final ThreadLocal<IndexedMinHeap> heaps = ThreadLocal.withInitial(() -> new IndexedMinHeap(n));
+		final ThreadLocal<double []> rows = ThreadLocal.withInitial(() -> new double[n]);
+		getCompactGraph();
+		cancelled = false;
 		System.err.println("Start distances()");
 
-		/** calculates distance for nodes from to too **/
-		class DistanceRunner implements Runnable {
-			int from, too;
-			double[][] distances;
-			long start;
+		/** calculates distances for nodes from to too, splitting the range till single rows remain **/
+		class DistanceTask extends RecursiveAction {
+			private static final long serialVersionUID = 1L;
+			final int from, too;
 			
-			public DistanceRunner(double[][] distances, int from, int too, long start) {
-				this.distances = distances;
+			DistanceTask(int from, int too) {
 				this.from = from;
 				this.too = too;
-				this.start = start;
 			}
 
 			@Override
-			public void run() {
-				for (int i = from; i < too; i++) {
-					if (i < distances.length) {
-						distances[i] = distances(nodes.get(i));
-					}
-					if (i % 10 == 0) {
-						long end = System.currentTimeMillis();
-						System.err.println("Thread " + (from/(too-from)) + "  Done " + (i - from + 1) + " to go " + (too - i) + " " + (end-start)/1000 + " sec " + ((too-i) * (end-start)/(1000 * (i-from+1))) +" sec to go");
-					}
+			protected void compute() {
+				if (cancelled) {
+					return;
+				}
+				if (too - from > 1) {
+					int mid = (from + too) >>> 1;
+					invokeAll(new DistanceTask(from, mid), new DistanceTask(mid, too));
+					return;
+				}
+				if (store == null) {
+					distances[from] = new double[n];
+					distances(from, distances[from], heaps.get());
+				} else {
+					double [] row = rows.get();
+					distances(from, row, heaps.get());
+					store.putRow(from, row);
 				}
-				System.err.println("Done " + from + " to " + too);
-	  		    m_nCountDown.countDown();
+				progress.rowDone();
 			}
 		}
 		
-		/** manage the threads **/
-		ExecutorService g_exec = Executors.newFixedThreadPool(threads);
-		long start = System.currentTimeMillis();
-		
-		int stepsize = (nodes.size() + threads - 1)/ threads;
-		for (int i = 0; i < threads; i++) {
-    		DistanceRunner coreRunnable = new DistanceRunner(distances, i * stepsize, (i+1) * stepsize, start);
-    		g_exec.execute(coreRunnable);
-    	}
-		try {
-			m_nCountDown.await();
-		} catch (InterruptedException e) {
-			e.printStackTrace();
-		}
-
-		long end = System.currentTimeMillis();
-		System.err.println(" Done in "  + (end-start)/1000 + " sec ");
-		this.distanceMatrix = new DistanceMatrix(distances); 
+		if (n > 0) {
+			getPool(threads).invoke(new DistanceTask(0, n));
+		}
+		if (cancelled) {
+			throw new CancellationException("distances() cancelled after " + progress.done.get() + " of " + n + " rows");
+		}
+
+		System.err.println(" Done in "  + progress.elapsed()/1000 + " sec ");
+		if (store == null) {
+			this.distanceMatrix = new DistanceMatrix(distances);
+		} else {
+			store.doneBuilding();
+			this.distanceMatrix = store;
+		}
 		return this.distanceMatrix;
 	}
-	
-	
-	int doStep(PriorityQueue<DistantGNode> queue1, double [] dist1, int [] prev1, boolean [] done1, boolean [] done2) {
-		GraphNode gnode = queue1.poll().gnode;
-		double dist = dist1[gnode.id];
-		for (int i = 0; i < gnode.neighbours.length; i++) {
-			GraphNode t = gnode.neighbours[i];
-			double d = gnode.getDistance(i);
-			if (!done1[t.id] || dist + d < dist1[t.id]) {
-				dist1[t.id] = dist + d;
-				prev1[t.id] = gnode.id;
-				done1[t.id] = true;
-				if (done2[t.id]) {
-					// we have a connection
-					return t.id;
+
+	/** distances among nodes with given ids, using all available processors **/
+	public SubsetDistanceMatrix distances(int [] nodeIDs) {
+		return distances(nodeIDs, false, Runtime.getRuntime().availableProcessors());
+	}
+
+	/** distances from nodes with given ids to each other, or to all graph nodes if allTargets is true.
+	 * One search per node runs as separate fork/join task. Without allTargets, each search stops as soon as 
+	 * all nodes in the subset are settled, so for nodes close together only a small part of the graph is visited. **/
+	public SubsetDistanceMatrix distances(int [] nodeIDs, boolean allTargets, int threads) {
+		final int n = nodes.size();
+		final SubsetDistanceMatrix matrix = new SubsetDistanceMatrix(nodeIDs, n, allTargets);
+		int distinct = 0;
+		for (int i = 0; i < nodeIDs.length; i++) {
+			if (matrix.index[nodeIDs[i]] == i) {
+				distinct++;
+			}
+		}
+		final int targetCount = distinct;
+		final ThreadLocal<IndexedMinHeap> heaps = ThreadLocal.withInitial(() -> new IndexedMinHeap(n));
+		getCompactGraph();
+
+		/** calculates rows from to too, splitting the range till single rows remain **/
+		class SubsetTask extends RecursiveAction {
+			private static final long serialVersionUID = 1L;
+			final int from, too;
+			
+			SubsetTask(int from, int too) {
+				this.from = from;
+				this.too = too;
+			}
+
+			@Override
+			protected void compute() {
+				if (too - from > 1) {
+					int mid = (from + too) >>> 1;
+					invokeAll(new SubsetTask(from, mid), new SubsetTask(mid, too));
+					return;
+				}
+				if (allTargets) {
+					matrix.rows[from] = new double[n];
+					distances(matrix.nodeIDs[from], matrix.rows[from], heaps.get());
+				} else {
+					matrix.rows[from] = subsetRow(matrix.nodeIDs[from], matrix.nodeIDs, matrix.index, targetCount, getWorkspaces(1)[0]);
 				}
-				queue1.add(new DistantGNode(dist + d, t));
 			}
 		}
-		return -1;
+
+		if (nodeIDs.length > 0) {
+			getPool(threads).invoke(new SubsetTask(0, nodeIDs.length));
+		}
+		return matrix;
 	}
-	
-	int doStep(PriorityQueue<DistantGNode> queue1, double [] dist1, int [] prev1, boolean [] done1, boolean [] done2, boolean [] done3) {
-		GraphNode gnode = queue1.poll().gnode;
-		double dist = dist1[gnode.id];
-		for (int i = 0; i < gnode.neighbours.length; i++) {
-			GraphNode t = gnode.neighbours[i];
-			double d = gnode.getDistance(i);
-			if (!done1[t.id] || dist + d < dist1[t.id]) {
-				dist1[t.id] = dist + d;
-				prev1[t.id] = gnode.id;
-				done1[t.id] = true;
-				if (done2[t.id] && done3[t.id]) {
-					// we have a connection
-					return t.id;
+
+	/** pool with given number of threads, created on first use **/
+	private ForkJoinPool getPool(int threads) {
+		return pools.computeIfAbsent(threads, ForkJoinPool::new);
+	}
+
+	/** distances from source to targets, by a search that stops as soon as all targetCount distinct targets are settled. 
+	 * Nodes that are targets have index >= 0 **/
+	private double [] subsetRow(int source, int [] targets, int [] index, int targetCount, SearchWorkspace ws) {
+		final CompactGraph graph = getCompactGraph();
+		ws.reset();
+		ws.reach(source, 0, source);
+		ws.heap.offer(source, 0);
+		int settled = 0;
+		while (!ws.heap.isEmpty()) {
+			int u = ws.heap.poll();
+			if (index[u] >= 0 && ++settled == targetCount) {
+				// edges of the last target cannot improve distances of settled targets
+				break;
+			}
+			double du = ws.dist[u];
+			for (int e = graph.offsets[u]; e < graph.offsets[u + 1]; e++) {
+				int t = graph.targets[e];
+				double d = du + graph.weights[e];
+				if (d < ws.getDistance(t)) {
+					ws.reach(t, d, u);
+					ws.heap.offer(t, d);
 				}
-				queue1.add(new DistantGNode(dist + d, t));
 			}
 		}
-		return -1;
+		double [] row = new double[targets.length];
+		for (int j = 0; j < targets.length; j++) {
+			double d = ws.getDistance(targets[j]);
+			// unreachable targets get distance 0, as in the full matrix
+			row[j] = d < Double.POSITIVE_INFINITY ? d : 0;
+		}
+		return row;
 	}
 
+	/** empty matrix that rows are put in as they are calculated, as specified by the symmetric and distancePrecision inputs,
+	 * or null for a plain double[][] matrix **/
+	private DistanceMatrix newDistanceStore(int n) {
+		DistanceMatrix.Precision precision = distancePrecisionInput.get();
+		if (symmetricInput.get()) {
+			if (precision != DistanceMatrix.Precision.float64) {
+				throw new IllegalArgumentException("symmetric storage requires distancePrecision=float64");
+			}
+			return new TriangularDistanceMatrix(n);
+		}
+		if (precision != DistanceMatrix.Precision.float64) {
+			return new CompressedDistanceMatrix(n, precision);
+		}
+		return null;
+	}
+
+	/** stop a running distances(int threads) call as soon as the rows currently in progress are finished **/
+	public void cancelDistances() {
+		cancelled = true;
+	}
+
+	/** progress over all threads of a distance calculation, reported at most every REPORT_INTERVAL milliseconds **/
+	static class DistanceProgress {
+		final static long REPORT_INTERVAL = 10000;
+
+		final int rows;
+		final long start = System.currentTimeMillis();
+		final AtomicInteger done = new AtomicInteger();
+		final AtomicLong lastReport = new AtomicLong(start);
+
+		DistanceProgress(int rows) {
+			this.rows = rows;
+		}
+
+		void rowDone() {
+			int k = done.incrementAndGet();
+			long now = System.currentTimeMillis();
+			long last = lastReport.get();
+			if (now - last >= REPORT_INTERVAL && lastReport.compareAndSet(last, now)) {
+				long elapsed = now - start;
+				System.err.println("Done " + k + " of " + rows + " rows in " + elapsed/1000 + " sec " + ((rows - k) * elapsed / (1000L * k)) + " sec to go");
+			}
+		}
+
+		long elapsed() {
+			return System.currentTimeMillis() - start;
+		}
+	} // class DistanceProgress
+	
+	
+	/** append path from id1 to end to path1, following prev1 back from end **/
 	private void buildPaths(int end, int id1, int[] prev1, List<GraphNode> path1) {
+		// collect in reverse order and flip, since inserting at the front is quadratic in path length
+		int start = path1.size();
 		int i = end;
 		path1.add(nodes.get(i));
 		do {
 			i = prev1[i];
-			path1.add(0, nodes.get(i));
+			path1.add(nodes.get(i));
 		} while (i != id1);
+		Collections.reverse(path1.subList(start, path1.size()));
+	}
+
+	/** append path from source to end found by a meeting point search to path1, 
+	 * which is the single node end if the sources meet at this source **/
+	private void buildPaths(int end, int source, int id1, MeetingPointSearch search, List<GraphNode> path1) {
+		int start = path1.size();
+		int i = end;
+		path1.add(nodes.get(i));
+		while (i != id1) {
+			i = search.getPrevious(i, source);
+			path1.add(nodes.get(i));
+		}
+		Collections.reverse(path1.subList(start, path1.size()));
 	}
 
 	
+	/** node with centre closest to given latitude and longitude along the surface of the earth **/
 	public GraphNode mapLatLongToGraphNode(double lat, double long_) {
-		if (latLongMap == null) {
-			throw new RuntimeException("call setUpLatLongMap() before calling mapLatLongToGraphNode()");
+		int id = getSphericalIndex().nearest(lat, long_);
+		return id < 0 ? null : nodes.get(id);
+	}
+
+	/** ids of nodes closest to many points at once, calculated in parallel. 
+	 * Much faster than calling mapLatLongToGraphNode() for every point when there are many points. **/
+	public int [] mapLatLongToGraphNodes(double [] lats, double [] longs) {
+		return getSphericalIndex().nearest(lats, longs);
+	}
+
+	private SphericalIndex getSphericalIndex() {
+		SphericalIndex index = sphericalIndex;
+		if (index == null) {
+			synchronized (this) {
+				if (sphericalIndex == null) {
+					setUpLatLongMap();
+				}
+				index = sphericalIndex;
+			}
 		}
-		GraphNode node = latLongMap.getClosestNode(lat, long_);
-		return node;
+		return index;
 	}
 	
 	
 	public double getDistance(double[] start, double[] stop) {
-		if (latLongMap == null) {
-			throw new RuntimeException("call setUpLatLongMap() before calling getDistance()");
-		}
 		GraphNode startNode = mapLatLongToGraphNode(start[0], start[1]);
 		GraphNode endNode = mapLatLongToGraphNode(stop[0], stop[1]);
 		return getDistance(startNode, endNode);
 	}
 	
 	public double getDistance(int startID, int stopID) {
-		return distanceMatrix.distances[startID][stopID];
+		ContractionHierarchy hierarchy = contractionHierarchy;
+		if (distanceMatrix == null && hierarchy != null) {
+			double distance = hierarchy.getDistance(startID, stopID);
+			// same as distance matrix, which stores 0 for unreachable nodes
+			return distance < Double.POSITIVE_INFINITY ? distance : 0;
+		}
+		return distanceMatrix.getDistance(startID, stopID);
 	}
 
 	public double getDistance(GraphNode startNode, GraphNode endNode) {
-		double distance = distanceMatrix.distances[startNode.id][endNode.id];
+		double distance = getDistance(startNode.id, endNode.id);
 		return distance;
 	}
+
+	/** distances from node to all nodes, as getDistance(nodeID, i) for every i, in one contiguous row.
+	 * Without a distance matrix the row is calculated by a single search instead of a query per node.
+	 * @param row array of length getSize() to fill, or null to allocate one **/
+	public double [] getDistances(int nodeID, double [] row) {
+		if (distanceMatrix != null) {
+			return distanceMatrix.getRow(nodeID, row);
+		}
+		if (row == null) {
+			row = new double[nodes.size()];
+		}
+		distances(nodeID, row, getWorkspaces(1)[0].heap);
+		return row;
+	}
 	
 	public GraphNode getLowerLeftCorner() {
-		GraphNode llCorner = nodes.get(0);
-		double [] center = llCorner.getCenter();
-		for (GraphNode node : nodes) {
-			double [] ocenter = node.getCenter();
-			if (ocenter[0] > center[0] && ocenter[1]<center[1]) {
-				llCorner = node;
-				center = ocenter;
+		CompactGraph graph = getCompactGraph();
+		int llCorner = 0;
+		for (int i = 0; i < graph.n; i++) {
+			if (graph.latitude[i] > graph.latitude[llCorner] && graph.longitude[i] < graph.longitude[llCorner]) {
+				llCorner = i;
 			}
 		}
-		return llCorner;
+		return nodes.get(llCorner);
 	}
 
 	public int getSize() {
@@ -627,7 +836,7 @@ public class Graph extends BEASTObject {
 	}
 
 	public int[] getNodesSortedByDistance(int nodeID) {
-		double [] d = distanceMatrix.distances[nodeID];
+		double [] d = distanceMatrix.getRow(nodeID, null);
 		int n = d.length;
 		int [] index = new int[n];
 		for (int i = 0; i < n; i++) {
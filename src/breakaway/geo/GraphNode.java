@@ -4,16 +4,14 @@ import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
 
-import sphericalGeo.GreatCircleDistance;
-
 //import beast.continuous.SphericalDiffusionModel;
 //import beast.evolution.alignment.distance.GreatCircleDistance;
 
 abstract public class GraphNode {
 	public int id;
 
-	/** adjacent triangles **/
-	GraphNode [] neighbours;
+	/** adjacent triangles, accessed through getNeighbour() so sub classes can look them up elsewhere **/
+	private GraphNode [] neighbours;
 
 	/** distance to neighbor **/
 	double [] distance;
@@ -22,6 +20,9 @@ abstract public class GraphNode {
 	 * interpretations depends on the kind of graph **/
 	int type = 0;
 
+	/** graph whose compact graph copies distances of this node, told about changes by scaleDistance() **/
+	Graph owner;
+
 	/** return center of node in [latitude, longitude] **/
 	abstract public double [] getCenter();
 	
@@ -78,41 +79,75 @@ abstract public class GraphNode {
 		return vertices;
 	}
 
+	/** set adjacent nodes, in the order used by getDistance(int) **/
+	void setNeighbours(GraphNode [] neighbours) {
+		this.neighbours = neighbours;
+	}
+
 	void setUpDistances(boolean useGreatCircle) {
-		distance = new double[neighbours.length];
+		distance = new double[getNeighbourCount()];
 		
 		if (!useGreatCircle) {
 			Arrays.fill(distance, 1.0);
 		} else {
 			double [] center = getCenter();
-			for (int i = 0; i < neighbours.length; i++) {
-				double [] nbcenter = neighbours[i].getCenter();
-				distance[i] = GreatCircleDistance.pairwiseDistance(center, nbcenter);
+			double [] cart = SphericalMath.spherical2Cartesian(center[0], center[1]);
+			int k = getNeighbourCount();
+			double [] latitudes = new double[k], longitudes = new double[k];
+			for (int i = 0; i < k; i++) {
+				double [] nbcenter = getNeighbour(i).getCenter();
+				latitudes[i] = nbcenter[0];
+				longitudes[i] = nbcenter[1];
 			}
+			double [] x = new double[k], y = new double[k], z = new double[k];
+			SphericalMath.spherical2Cartesian(latitudes, longitudes, x, y, z);
+			SphericalMath.greatCircleDistances(cart[0], cart[1], cart[2], x, y, z, 0, k, distance, 0);
 		}
 	}
 
+	/** scale distances to all neighbours. Searches run on Graph.getCompactGraph(), which gets the new 
+	 * distances through Graph.setEdgeWeight() **/
 	public void scaleDistance(double scale) {
 		for (int i = 0; i < distance.length; i++) {
-			distance[i] *= scale;
+			scaleDistance(scale, i);
 		}
 	}
 
+	/** scale distance to i-th neighbour, see scaleDistance(double) **/
 	public void scaleDistance(double scale, int i) {
 //		if (i >= distance.length) {
 //			int h = 3;
 //			h++;
 //		}
-		distance[i] *= scale;
+		double d = distance[i] * scale;
+		if (owner != null) {
+			owner.setEdgeWeight(id, i, d);
+		}
+		distance[i] = d;
 	}
 	
 	public double getDistance(int i) {
 		return distance[i];
 	}
 
+	/** number of neighbours, which is the number of distances available through getDistance(int) **/
+	public int getNeighbourCount() {
+		return neighbours.length;
+	}
+
+	/** i-th neighbour, at distance getDistance(i) **/
+	public GraphNode getNeighbour(int i) {
+		return neighbours[i];
+	}
+
+	/** id of i-th neighbour **/
+	public int getNeighbourID(int i) {
+		return neighbours[i].id;
+	}
+
 	public boolean isNeighbour(GraphNode sourceNode) {
-		for (GraphNode neighbour : neighbours) {
-			if (neighbour.id == sourceNode.id) {
+		for (int i = 0; i < getNeighbourCount(); i++) {
+			if (getNeighbourID(i) == sourceNode.id) {
 				return true;
 			}
 		}
@@ -0,0 +1,186 @@
+package breakaway.geo;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import beast.base.core.Description;
+
+/**
+ * File layout (little endian): header of HEADER_SIZE bytes containing MAGIC, VERSION, number of nodes n
+ * and number of edges m, followed by sections for
+ * latitude, longitude, x, y, z (n doubles each), types (n ints), offsets (n+1 ints), targets (m ints),
+ * weights (m doubles), index ids (n ints) and index axes (n bytes).
+ * Every section is memory mapped and copied into an array in one bulk read, so loading does not
+ * create any objects per node or edge.
+ */
+@Description("binary snapshot of a graph with its nearest node index, for fast start up")
+public class GraphSnapshot {
+	final static int MAGIC = 0x53474142; // "BAGS"
+	final static int VERSION = 1;
+	final static int HEADER_SIZE = 64;
+
+	final CompactGraph graph;
+	final SphericalIndex index;
+
+	GraphSnapshot(CompactGraph graph, SphericalIndex index) {
+		this.graph = graph;
+		this.index = index;
+	}
+
+	/** read snapshot written by write() **/
+	GraphSnapshot(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer header = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+			channel.read(header, 0);
+			header.flip();
+			if (header.remaining() < 16 || header.getInt() != MAGIC) {
+				throw new IOException("Not a graph snapshot file: " + file.getPath());
+			}
+			int version = header.getInt();
+			if (version != VERSION) {
+				throw new IOException("Unsupported graph snapshot file version " + version + " in " + file.getPath());
+			}
+			int n = header.getInt();
+			int m = header.getInt();
+			if (n < 0 || m < 0) {
+				throw new IOException("Graph snapshot file has " + n + " nodes and " + m + " edges: " + file.getPath());
+			}
+			long size = HEADER_SIZE + (long) n * (5 * Double.BYTES + 2 * Integer.BYTES + 1) + Integer.BYTES + (long) m * (Integer.BYTES + Double.BYTES);
+			if (channel.size() < size) {
+				throw new IOException("Graph snapshot file is truncated: " + file.getPath());
+			}
+
+			long [] position = {HEADER_SIZE};
+			double [] latitude = readDoubles(channel, position, n);
+			double [] longitude = readDoubles(channel, position, n);
+			double [] x = readDoubles(channel, position, n);
+			double [] y = readDoubles(channel, position, n);
+			double [] z = readDoubles(channel, position, n);
+			int [] types = readInts(channel, position, n);
+			int [] offsets = readInts(channel, position, n + 1);
+			int [] targets = readInts(channel, position, m);
+			double [] weights = readDoubles(channel, position, m);
+			int [] ids = readInts(channel, position, n);
+			byte [] axis = new byte[n];
+			map(channel, position, n).get(axis);
+			validate(offsets, targets, ids, axis, file);
+
+			graph = new CompactGraph(offsets, targets, weights, latitude, longitude, x, y, z, types);
+			index = new SphericalIndex(ids, axis, x, y, z);
+		}
+	}
+
+	/** check that edges and index refer to nodes 0 to n - 1, so a corrupt file is reported instead of 
+	 * failing searches later on **/
+	private static void validate(int [] offsets, int [] targets, int [] ids, byte [] axis, File file) throws IOException {
+		int n = ids.length;
+		int m = targets.length;
+		if (offsets[0] != 0 || offsets[n] != m) {
+			throw new IOException("Edge offsets of graph snapshot do not cover its " + m + " edges: " + file.getPath());
+		}
+		for (int i = 0; i < n; i++) {
+			if (offsets[i] > offsets[i + 1]) {
+				throw new IOException("Edge offsets of graph snapshot decrease at node " + i + ": " + file.getPath());
+			}
+		}
+		for (int e = 0; e < m; e++) {
+			if (targets[e] < 0 || targets[e] >= n) {
+				throw new IOException("Edge " + e + " of graph snapshot has target " + targets[e] + " outside 0 to " + (n - 1) + ": " + file.getPath());
+			}
+		}
+		// the index holds every node exactly once
+		boolean [] seen = new boolean[n];
+		for (int i = 0; i < n; i++) {
+			if (ids[i] < 0 || ids[i] >= n || seen[ids[i]]) {
+				throw new IOException("Index of graph snapshot has invalid or repeated node " + ids[i] + ": " + file.getPath());
+			}
+			seen[ids[i]] = true;
+			if (axis[i] < 0 || axis[i] > 2) {
+				throw new IOException("Index of graph snapshot has invalid axis " + axis[i] + ": " + file.getPath());
+			}
+		}
+	}
+
+	/** map section of given number of bytes starting at position[0], and move position past it **/
+	private static ByteBuffer map(FileChannel channel, long [] position, long bytes) throws IOException {
+		MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position[0], bytes);
+		position[0] += bytes;
+		return buffer.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private static double [] readDoubles(FileChannel channel, long [] position, int count) throws IOException {
+		double [] values = new double[count];
+		map(channel, position, (long) count * Double.BYTES).asDoubleBuffer().get(values);
+		return values;
+	}
+
+	private static int [] readInts(FileChannel channel, long [] position, int count) throws IOException {
+		int [] values = new int[count];
+		map(channel, position, (long) count * Integer.BYTES).asIntBuffer().get(values);
+		return values;
+	}
+
+	/** write graph and index in the format read by GraphSnapshot(File) **/
+	void write(File file) throws IOException {
+		int n = graph.n;
+		int m = graph.getEdgeCount();
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC);
+			header.putInt(VERSION);
+			header.putInt(n);
+			header.putInt(m);
+			header.clear();
+			write(channel, header);
+
+			write(channel, graph.latitude);
+			write(channel, graph.longitude);
+			write(channel, graph.x);
+			write(channel, graph.y);
+			write(channel, graph.z);
+			write(channel, graph.types);
+			write(channel, graph.offsets);
+			write(channel, graph.targets);
+			write(channel, graph.weights);
+			write(channel, index.ids);
+			write(channel, ByteBuffer.wrap(index.axis));
+		}
+	}
+
+	/** chunk size used for writing, so large arrays do not need a buffer of their own size **/
+	final static int WRITE_CHUNK = 1 << 16;
+
+	private static void write(FileChannel channel, double [] values) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocateDirect(WRITE_CHUNK * Double.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		for (int start = 0; start < values.length; start += WRITE_CHUNK) {
+			int len = Math.min(WRITE_CHUNK, values.length - start);
+			buf.clear();
+			buf.asDoubleBuffer().put(values, start, len);
+			buf.limit(len * Double.BYTES);
+			write(channel, buf);
+		}
+	}
+
+	private static void write(FileChannel channel, int [] values) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocateDirect(WRITE_CHUNK * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		for (int start = 0; start < values.length; start += WRITE_CHUNK) {
+			int len = Math.min(WRITE_CHUNK, values.length - start);
+			buf.clear();
+			buf.asIntBuffer().put(values, start, len);
+			buf.limit(len * Integer.BYTES);
+			write(channel, buf);
+		}
+	}
+
+	private static void write(FileChannel channel, ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining()) {
+			channel.write(buf);
+		}
+	}
+}
@@ -25,6 +25,10 @@ abstract public class GraphSubstitutionModel extends Base implements StateDistan
 
 	
 	
+	/** most likely path from the location of the parent of from to the location of too, found by recursively halving
+	 * the branch and taking as halfway node the node most likely to be reached from both ends in half the time.
+	 * Every halving considers all graph nodes; MAPPathReconstructor restricts them to a corridor around the shortest
+	 * path and reuses transition probabilities between branches, which is much faster for many branches. **/
 	public List<GraphNode> calcMAPPath(Node from, Node too, double fStartTime, double fEndTime, double fRate) {
         double distance = (fEndTime - fStartTime) * fRate;
 
@@ -55,14 +59,16 @@ abstract public class GraphSubstitutionModel extends Base implements StateDistan
 			return;
 		}
 		
-		double [] pSourceHalfway = getTransitionProbabilities(sourceNode, distance/2.0); 
-		double [] pTargetHalfway = getTransitionProbabilities(targetNode, distance/2.0);
-		double maxP = Double.NEGATIVE_INFINITY;
+		// maximise the product of probabilities as a sum of logs: normalised probabilities of far away nodes
+		// underflow to zero on short branches, after which all candidates would tie
+		double [] logPSourceHalfway = getLogTransitionProbabilities(sourceNode, distance/2.0);
+		double [] logPTargetHalfway = getLogTransitionProbabilities(targetNode, distance/2.0);
+		double maxLogP = Double.NEGATIVE_INFINITY;
 		int maxi = -1;
 		for (int i = 0; i < n; i++) {
-			double p = pSourceHalfway[i] * pTargetHalfway[i];
-			if (p > maxP && !used[i]) {
-				maxP = p;
+			double logP = logPSourceHalfway[i] + logPTargetHalfway[i];
+			if (logP > maxLogP && !used[i]) {
+				maxLogP = logP;
 				maxi = i;
 			}
 		}
@@ -101,7 +107,41 @@ abstract public class GraphSubstitutionModel extends Base implements StateDistan
 	 * return logScale -- scale factor used for normalising the probabilities matrix
 	 * **/
 	abstract  public double getTransitionProbabilities(int [] origRange, int [] destRange, double time, double [] probabilities);
-	
+
+	/**
+	 * as getTransitionProbabilities(origRange, destRange, time, probabilities) for the first count branches at once:
+	 * branch b has time times[b], ranges origRanges[b] and destRanges[b], and its matrix goes into the caller 
+	 * provided probabilities[b] with its scale factor in logScales[b]. Buffers may be longer than count, 
+	 * so they can be reused between calls, and nothing is allocated. Models can override this to share work between branches.
+	 * **/
+	public void getTransitionProbabilities(int count, double [] times, int [][] origRanges, int [][] destRanges, double [][] probabilities, double [] logScales) {
+		for (int b = 0; b < count; b++) {
+			logScales[b] = getTransitionProbabilities(origRanges[b], destRanges[b], times[b], probabilities[b]);
+		}
+	}
+
+	/**
+	 * as getTransitionProbabilities(node, height, height2, rate, nodeRange, parentRange, matrix) for the first count branches,
+	 * with branch b from heights[b] to parentHeights[b] at rates[b]. times is caller provided scratch for branch lengths.
+	 * **/
+	public void getTransitionProbabilities(int count, double [] heights, double [] parentHeights, double [] rates, 
+			int [][] nodeRanges, int [][] parentRanges, double [][] matrices, double [] times, double [] logScales) {
+		for (int b = 0; b < count; b++) {
+			times[b] = (parentHeights[b] - heights[b]) * rates[b];
+		}
+		getTransitionProbabilities(count, times, nodeRanges, parentRanges, matrices, logScales);
+	}
+
+	/** buffers for passing a single branch to the batch getTransitionProbabilities(), one set per thread **/
+	private static class SingleBranch {
+		final double [] times = new double[1];
+		final int [][] origRanges = new int[1][];
+		final int [][] destRanges = new int[1][];
+		final double [][] probabilities = new double[1][];
+		final double [] logScales = new double[1];
+	}
+	private final ThreadLocal<SingleBranch> singleBranch = ThreadLocal.withInitial(SingleBranch::new);
+
 
 	/** log probability of coming from a node's parent to the node at given rate and time interval **/
 	abstract public double getLogTransitionProbability(Node node, double fStartTime, double fEndTime, double fRate);
@@ -110,6 +150,43 @@ abstract public class GraphSubstitutionModel extends Base implements StateDistan
 	
 	abstract public double getLogLikelihood(int source, int target, double time);
 	
+	/** whether statistics of all branches may have changed for reasons other than
+	 * a change in location, tree or branch rate, e.g. because a parameter of the model changed. 
+	 * SampledTraitLikelihood only evaluates branches that changed if this returns false. **/
+	public boolean requiresFullRecalculation() {
+		return isDirtyCalculation();
+	}
+
+	/** number of values getBranchStatistics() produces per branch **/
+	public int getBranchStatisticCount() {
+		return 1;
+	}
+
+	/** statistics of a branch from location source to location target over time (branch length times rate), 
+	 * starting at offset in stats, such that getLogLikelihoodFromStatistics() of their sums over all branches is 
+	 * the sum of log transition probabilities. By default the only statistic is 0 if source and target are the 
+	 * same location, and otherwise getLogLikelihood(), or -1000 if that is not finite, as getLogTransitionProbability()
+	 * of DistanceBasedDiffusionModel per branch. Models can leave parameters out of the statistics, so that changes 
+	 * in those parameters do not require branches to be evaluated.
+	 * SampledTraitLikelihood calls this from several threads, with locations it read on its own thread, so 
+	 * implementations should not read the location parameter, which may update itself when read. **/
+	public void getBranchStatistics(int source, int target, double time, double [] stats, int offset) {
+		if (source == target) {
+			stats[offset] = 0;
+			return;
+		}
+		double p = getLogLikelihood(source, target, time);
+		if (Double.isNaN(p) || Double.isInfinite(p)) {
+			p = -1000;
+		}
+		stats[offset] = p;
+	}
+
+	/** sum of log transition probabilities of branches, given sums of their getBranchStatistics() **/
+	public double getLogLikelihoodFromStatistics(double [] sums) {
+		return sums[0];
+	}
+
 	/** log probability of root location **/
 	public double getLogRootFrequency(Node node) {
         int target = node.getNr();
@@ -119,32 +196,87 @@ abstract public class GraphSubstitutionModel extends Base implements StateDistan
 	}
 
 	public static void logPtoP(double [] logP) {
-		int n = logP.length;
-		// exponentiate log probabilities
+		// exponentiate log probabilities, ignoring NaNs, which fail every comparison
 		double max = Double.NEGATIVE_INFINITY;
 		for (double d : logP) {
-			if (!Double.isNaN(d)) {
-				max = Math.max(max, d);
+			if (d > max) {
+				max = d;
 			}
 		}
-		for (int i = 0; i < n; i++) {
-			if (!Double.isNaN(logP[i])) {
-				logP[i] = Math.exp(logP[i] - max);
-			} else {
-				logP[i] = 0.0;
+		expNormalise(logP, max);
+	}
+
+	/** logPtoP() for a row of which the caller already knows the maximum max over all log probabilities
+	 * that are not NaN: exponentiates and sums in one pass, and normalises in a second **/
+	protected static void expNormalise(double [] logP, double max) {
+		ROW_KERNEL.expNormalise(logP, max);
+	}
+
+	/** kernels over whole rows of n values. Uses the JDK Vector API when BEAST runs with 
+	 * --add-modules jdk.incubator.vector, see KernelLoader. **/
+	interface RowKernel {
+		/** see expNormalise() **/
+		void expNormalise(double [] logP, double max);
+
+		/** replace distances d in row by log(d) + halfLogInverseVariance - 0.5 * d * d * inverseVariance,
+		 * with minDistance in place of zero distances
+		 * @return largest value in row that is not NaN **/
+		double logNormalRow(double [] row, double minDistance, double inverseVariance, double halfLogInverseVariance);
+	}
+
+	final static RowKernel SCALAR_ROW_KERNEL = new RowKernel() {
+		@Override
+		public void expNormalise(double [] logP, double max) {
+			int n = logP.length;
+			double sum = 0;
+			for (int i = 0; i < n; i++) {
+				double d = logP[i];
+				double p = d == d ? Math.exp(d - max) : 0.0;
+				logP[i] = p;
+				sum += p;
+			}
+			// normalise probabilities so they sum to unity
+			double scale = 1.0 / sum;
+			for (int i = 0; i < n; i++) {
+				logP[i] *= scale;
 			}
 		}
-		// normalise probabilities so they sum to unity
-		double sum = 0;
-		for (int i = 0; i < n; i++) {
-			sum += logP[i];
+
+		@Override
+		public double logNormalRow(double [] row, double minDistance, double inverseVariance, double halfLogInverseVariance) {
+			double max = Double.NEGATIVE_INFINITY;
+			for (int i = 0; i < row.length; i++) {
+				double distance = row[i] == 0 ? minDistance : row[i];
+				double logP = Math.log(distance) + halfLogInverseVariance -0.5 * distance * distance * inverseVariance;
+				row[i] = logP;
+				if (logP > max) {
+					max = logP;
+				}
+			}
+			return max;
 		}
-		for (int i = 0; i < n; i++) {
-			logP[i] /= sum;
+	};
+
+	final static RowKernel ROW_KERNEL = KernelLoader.load("breakaway.geo.VectorRowKernel", RowKernel.class, SCALAR_ROW_KERNEL);
+
+	abstract public double [] getLogTransitionProbabilities(GraphNode startNode, double time);
+
+	/** log transition probabilities from startNode in given time to the nodes with ids in targets, which have 
+	 * shortest path distances distances from startNode, up to a constant that may depend on startNode and time. 
+	 * Result goes into logP. By default these are taken from a whole row of getLogTransitionProbabilities(), 
+	 * so models that can evaluate single targets should override this. **/
+	public void getLogTransitionProbabilities(GraphNode startNode, double time, int [] targets, double [] distances, double [] logP) {
+		double [] row = getLogTransitionProbabilities(startNode, time);
+		for (int k = 0; k < targets.length; k++) {
+			logP[k] = row[targets[k]];
 		}
 	}
 
-	abstract public double [] getLogTransitionProbabilities(GraphNode startNode, double time);
+	/** distance from the start node at which the transition probability in given time peaks, 
+	 * used by MAPPathReconstructor to size corridors. 0 for models where it decreases with distance. **/
+	public double getModalDistance(double time) {
+		return 0;
+	}
 
 	GraphNode getGraphNode(Node node) {
 		int target = node.getNr();
@@ -157,11 +289,19 @@ abstract public class GraphSubstitutionModel extends Base implements StateDistan
 		return graph.getDistance(getGraphNode(node1), getGraphNode(node2));
 	}
 
+	/** a batch of one branch, see the batch getTransitionProbabilities() for many branches at once **/
 	public double getTransitionProbabilities(Node node, double height, double height2, double jointBranchRate, int[] nodeRange,
 			int[] parentRange, double[] matrix) {
-		double time = (height2 - height) * jointBranchRate;
-		double logScale = getTransitionProbabilities(nodeRange, parentRange, time, matrix);
-		return logScale;
+		SingleBranch branch = singleBranch.get();
+		branch.times[0] = (height2 - height) * jointBranchRate;
+		branch.origRanges[0] = nodeRange;
+		branch.destRanges[0] = parentRange;
+		branch.probabilities[0] = matrix;
+		getTransitionProbabilities(1, branch.times, branch.origRanges, branch.destRanges, branch.probabilities, branch.logScales);
+		// do not keep the caller's arrays alive
+		branch.origRanges[0] = branch.destRanges[0] = null;
+		branch.probabilities[0] = null;
+		return branch.logScales[0];
 	}
 
 
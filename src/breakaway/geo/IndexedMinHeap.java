@@ -0,0 +1,126 @@
+package breakaway.geo;
+
+import java.util.Arrays;
+
+/** binary min-heap over int ids in the range [0, capacity) with double keys.
+ * Keeps track of the heap position of every id, so that decrease-key is
+ * O(log n) and no objects are allocated per queued item. **/
+class IndexedMinHeap {
+	/** ids in heap order **/
+	private int [] heap;
+	/** keys in heap order, so sifting only touches contiguous memory **/
+	private double [] keys;
+	/** position of id in heap, -1 if id is not queued **/
+	private int [] pos;
+	private int size;
+
+	IndexedMinHeap(int capacity) {
+		heap = new int[capacity];
+		keys = new double[capacity];
+		pos = new int[capacity];
+		Arrays.fill(pos, -1);
+	}
+
+	int size() {
+		return size;
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	boolean contains(int id) {
+		return pos[id] >= 0;
+	}
+
+	/** empty the heap -- cost is proportional to the number of queued items, not the capacity **/
+	void clear() {
+		for (int i = 0; i < size; i++) {
+			pos[heap[i]] = -1;
+		}
+		size = 0;
+	}
+
+	/** id with smallest key **/
+	int peek() {
+		return heap[0];
+	}
+
+	/** smallest key **/
+	double peekKey() {
+		return keys[0];
+	}
+
+	/** insert id with given key, or decrease its key if it is already queued with a larger key.
+	 * @return false if id is already queued with a key that is not larger **/
+	boolean offer(int id, double key) {
+		int i = pos[id];
+		if (i < 0) {
+			i = size++;
+		} else if (keys[i] <= key) {
+			return false;
+		}
+		siftUp(i, id, key);
+		return true;
+	}
+
+	/** insert id with given key, or change its key to the given key, whether it is larger or smaller **/
+	void update(int id, double key) {
+		int i = pos[id];
+		if (i < 0) {
+			siftUp(size++, id, key);
+		} else if (key < keys[i]) {
+			siftUp(i, id, key);
+		} else {
+			siftDown(i, id, key);
+		}
+	}
+
+	/** remove and return id with smallest key **/
+	int poll() {
+		int top = heap[0];
+		pos[top] = -1;
+		size--;
+		if (size > 0) {
+			siftDown(0, heap[size], keys[size]);
+		}
+		return top;
+	}
+
+	private void siftUp(int i, int id, double key) {
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (keys[parent] <= key) {
+				break;
+			}
+			heap[i] = heap[parent];
+			keys[i] = keys[parent];
+			pos[heap[i]] = i;
+			i = parent;
+		}
+		heap[i] = id;
+		keys[i] = key;
+		pos[id] = i;
+	}
+
+	private void siftDown(int i, int id, double key) {
+		int half = size >>> 1;
+		while (i < half) {
+			int child = 2 * i + 1;
+			int right = child + 1;
+			if (right < size && keys[right] < keys[child]) {
+				child = right;
+			}
+			if (key <= keys[child]) {
+				break;
+			}
+			heap[i] = heap[child];
+			keys[i] = keys[child];
+			pos[heap[i]] = i;
+			i = child;
+		}
+		heap[i] = id;
+		keys[i] = key;
+		pos[id] = i;
+	}
+}
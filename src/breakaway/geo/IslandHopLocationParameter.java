@@ -89,7 +89,23 @@ public class IslandHopLocationParameter extends IntegerParameter {
 		return super.getValues();
 	}
 	
-	
+	/** location of a single node, found by following choices in location down to a tip, 
+	 * which unlike getValue() does not collect the locations of all nodes **/
+	int getLocation(Node node) {
+		while (!node.isLeaf()) {
+			int loc = location.getValue(node.getNr());
+			if (loc == node.getLeft().getNr()) {
+				node = node.getLeft();
+			} else if (loc == node.getRight().getNr()) {
+				node = node.getRight();
+			} else {
+				throw new IllegalArgumentException("Uh oh -- location should be left or right node, but is none of them: "
+						+ loc +"!="+ node.getLeft().getNr() +" && "+ loc + "!="+ node.getRight().getNr());
+			}
+		}
+		return location.getValue(node.getNr());
+	}
+
 	@Override
 	protected boolean requiresRecalculation() {
 		needsUpdate = true;
@@ -0,0 +1,23 @@
+package breakaway.geo;
+
+/**
+ * Loads kernels written against the incubating JDK Vector API. The Vector*Kernel classes are compiled separately
+ * with --add-modules jdk.incubator.vector (see build.xml) and are only referred to by name, so the rest of the
+ * package builds and runs without the module. They are used when BEAST runs with --add-modules jdk.incubator.vector,
+ * otherwise callers get their scalar fallback.
+ */
+class KernelLoader {
+	final static boolean VECTOR_API_AVAILABLE = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+
+	static <T> T load(String className, Class<T> type, T fallback) {
+		if (!VECTOR_API_AVAILABLE) {
+			return fallback;
+		}
+		try {
+			return type.cast(Class.forName(className).getDeclaredConstructor().newInstance());
+		} catch (ReflectiveOperationException | LinkageError e) {
+			// built without the Vector*Kernel classes
+			return fallback;
+		}
+	}
+}
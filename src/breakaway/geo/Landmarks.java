@@ -0,0 +1,85 @@
+package breakaway.geo;
+
+import java.util.Arrays;
+
+import beast.base.core.Description;
+
+/**
+ * Lower bounds on graph distances from the triangle inequality over a few landmark nodes (ALT):
+ * for landmark L, d(v,t) >= d(L,t) - d(L,v) and d(v,t) >= d(v,L) - d(t,L).
+ * Unlike great circle bounds, these stay tight when edge weights are not geometric, e.g. for scaled water edges.
+ * Landmarks are picked greedily so that each is as far as possible from the ones picked before.
+ */
+@Description("landmark distances for goal directed shortest path searches")
+public class Landmarks {
+	final int [] landmarks;
+	/** fromLandmark[k][v] = d(landmarks[k], v) **/
+	final double [][] fromLandmark;
+	/** toLandmark[k][v] = d(v, landmarks[k]) **/
+	final double [][] toLandmark;
+
+	Landmarks(CompactGraph graph, int count) {
+		int n = graph.n;
+		count = Math.max(1, Math.min(count, n));
+		landmarks = new int[count];
+		fromLandmark = new double[count][n];
+		toLandmark = new double[count][n];
+		CompactGraph reverse = graph.reverse();
+		IndexedMinHeap heap = new IndexedMinHeap(n);
+
+		// start with node furthest away from an arbitrary node
+		double [] dist = new double[n];
+		graph.dijkstra(0, dist, heap);
+		landmarks[0] = furthest(dist);
+
+		// minimum distance to landmarks picked so far
+		double [] minDist = new double[n];
+		Arrays.fill(minDist, Double.POSITIVE_INFINITY);
+		for (int k = 0; k < count; k++) {
+			if (k > 0) {
+				landmarks[k] = furthest(minDist);
+			}
+			graph.dijkstra(landmarks[k], fromLandmark[k], heap);
+			reverse.dijkstra(landmarks[k], toLandmark[k], heap);
+			for (int v = 0; v < n; v++) {
+				minDist[v] = Math.min(minDist[v], fromLandmark[k][v]);
+			}
+		}
+	}
+
+	/** node with largest finite distance **/
+	private static int furthest(double [] dist) {
+		int best = 0;
+		double max = -1;
+		for (int v = 0; v < dist.length; v++) {
+			if (dist[v] > max && dist[v] < Double.POSITIVE_INFINITY) {
+				max = dist[v];
+				best = v;
+			}
+		}
+		return best;
+	}
+
+	/** lower bound on distance from v to t **/
+	double lowerBound(int v, int t) {
+		double bound = 0;
+		for (int k = 0; k < landmarks.length; k++) {
+			double [] from = fromLandmark[k];
+			double [] to = toLandmark[k];
+			// infinite entries mean a node cannot be reached, in which case the landmark gives no bound
+			double b1 = from[t] - from[v];
+			if (b1 > bound && from[t] < Double.POSITIVE_INFINITY) {
+				bound = b1;
+			}
+			double b2 = to[v] - to[t];
+			if (b2 > bound && to[v] < Double.POSITIVE_INFINITY) {
+				bound = b2;
+			}
+		}
+		return bound;
+	}
+
+	public int [] getLandmarks() {
+		return landmarks.clone();
+	}
+}
@@ -0,0 +1,164 @@
+package breakaway.geo;
+
+import java.io.NotSerializableException;
+import java.io.ObjectStreamException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import beast.base.core.Description;
+
+/**
+ * Row i is calculated by a single source search from node i the first time any of its entries is
+ * requested, and kept in a least recently used cache. When the cache exceeds maxBytes, the least
+ * recently used rows are dropped. Since MCMC only visits a small part of the graph, this makes
+ * graphs too large for a full matrix usable.
+ */
+@Description("distance matrix that calculates rows on demand and keeps recently used rows in a cache of bounded size")
+public class LazyDistanceMatrix extends DistanceMatrix {
+	private static final long serialVersionUID = 1L;
+
+	/** approximate memory used per cached row on top of its entries: array header and map entry **/
+	final static long ROW_OVERHEAD = 64;
+
+	final transient private Graph graph;
+	final private long maxBytes;
+	final transient private LinkedHashMap<Integer, double []> cache;
+	final transient private ThreadLocal<IndexedMinHeap> heaps;
+	private long bytes;
+	/** incremented by clear(), so rows calculated from weights before a clear() are not cached after it **/
+	private long generation;
+
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	LazyDistanceMatrix(Graph graph, long maxBytes) {
+		this.graph = graph;
+		this.maxBytes = maxBytes;
+		// access ordered, so iteration starts at the least recently used row
+		cache = new LinkedHashMap<>(16, 0.75f, true);
+		heaps = ThreadLocal.withInitial(() -> new IndexedMinHeap(graph.getSize()));
+	}
+
+	@Override
+	public int getSize() {
+		return graph.getSize();
+	}
+
+	@Override
+	public double getDistance(int i, int j) {
+		return cachedRow(i)[j];
+	}
+
+	@Override
+	public double [] getRow(int i, double [] row) {
+		double [] cached = cachedRow(i);
+		if (row == null) {
+			row = new double[cached.length];
+		}
+		System.arraycopy(cached, 0, row, 0, cached.length);
+		return row;
+	}
+
+	@Override
+	public synchronized void setRow(int i, double [] row) {
+		double [] cached = cache.get(i);
+		if (cached != null) {
+			System.arraycopy(row, 0, cached, 0, row.length);
+		}
+	}
+
+	/** drop all cached rows, e.g. after edge weights changed **/
+	public synchronized void clear() {
+		cache.clear();
+		bytes = 0;
+		generation++;
+	}
+
+	private double [] cachedRow(int i) {
+		long rowGeneration;
+		synchronized (this) {
+			double [] row = cache.get(i);
+			if (row != null) {
+				hits++;
+				return row;
+			}
+			misses++;
+			rowGeneration = generation;
+		}
+
+		while (true) {
+			// calculate row outside the lock, so other threads can use the cache meanwhile
+			double [] row = new double[graph.getSize()];
+			graph.distances(i, row, heaps.get());
+			synchronized (this) {
+				if (rowGeneration == generation) {
+					return cacheRow(i, row);
+				}
+				// clear() was called while calculating, so the row may be based on old weights
+				rowGeneration = generation;
+			}
+		}
+	}
+
+	/** add row to the cache unless another thread already did, evicting least recently used rows if needed.
+	 * Caller holds the lock. **/
+	private double [] cacheRow(int i, double [] row) {
+		double [] other = cache.get(i);
+		if (other != null) {
+			// another thread calculated the same row
+			return other;
+		}
+		cache.put(i, row);
+		bytes += rowBytes(row);
+		Iterator<Map.Entry<Integer, double []>> iterator = cache.entrySet().iterator();
+		while (bytes > maxBytes && cache.size() > 1) {
+			double [] evicted = iterator.next().getValue();
+			iterator.remove();
+			bytes -= rowBytes(evicted);
+			evictions++;
+		}
+		return row;
+	}
+
+	private static long rowBytes(double [] row) {
+		return row.length * (long) Double.BYTES + ROW_OVERHEAD;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/** approximate number of bytes used by cached rows **/
+	public synchronized long getCachedBytes() {
+		return bytes;
+	}
+
+	public synchronized int getCachedRowCount() {
+		return cache.size();
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "LazyDistanceMatrix: " + cache.size() + " rows (" + bytes / (1024 * 1024) + " of " + maxBytes / (1024 * 1024) + " MB) " +
+				hits + " hits " + misses + " misses " + evictions + " evictions";
+	}
+
+	/** rows are calculated from the graph, which cannot be serialised **/
+	private Object writeReplace() throws ObjectStreamException {
+		throw new NotSerializableException("LazyDistanceMatrix cannot be serialised: use Graph.distances(threads) to calculate a full matrix");
+	}
+}
@@ -0,0 +1,286 @@
+package breakaway.geo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import beast.base.core.Description;
+import beast.base.evolution.tree.Node;
+
+/**
+ * Most likely path along a branch as found by GraphSubstitutionModel.calcMAPPath(), which halves a branch
+ * recursively and picks as halfway node the one most likely to be reached from both ends in half the time.
+ *
+ * Instead of all graph nodes, only nodes within the corridor radius of both ends are candidates, where the
+ * radius is (1 + slack) times the larger of the distance between the ends and twice the model's modal distance
+ * for half the time, so every node that is closer to both ends together than the shortest path (or than the
+ * distance a lineage typically travels) stretched by the slack is considered. Candidates are found by searches
+ * that stop at the radius, so cost depends on the size of the corridor instead of the size of the graph.
+ *
+ * Log transition probabilities from a node over a given time are remembered, so nodes shared by branches,
+ * such as the ends of neighbouring branches and the halfway nodes of the two halves of a branch, are searched once.
+ * Remembered values are kept in a least recently used cache of bounded size. They depend on the parameters of
+ * the model and on edge weights, so clear() should be called whenever these change, e.g. before reconstructing
+ * the paths of every tree of a posterior sample.
+ *
+ * A reconstructor holds search state, so should be used by one thread at a time.
+ */
+@Description("reconstructs most likely paths along branches, with halfway nodes restricted to a corridor around the shortest path between the ends")
+public class MAPPathReconstructor {
+	final GraphSubstitutionModel model;
+	final Graph graph;
+	final double slack;
+	final int n;
+
+	/** default bound on memory used by remembered transition probabilities **/
+	final static long DEFAULT_MAX_BYTES = 64L << 20;
+	/** approximate memory used per remembered row on top of its entries: arrays, key and map entry **/
+	final static long ROW_OVERHEAD = 128;
+	/** memory used per entry of a row: id, distance and log probability **/
+	final static long ENTRY_BYTES = Integer.BYTES + 2 * Double.BYTES;
+
+	/** log transition probabilities by start node and time, see getRow(), access ordered 
+	 * so iteration starts at the least recently used row **/
+	private final LinkedHashMap<RowKey, Row> rows = new LinkedHashMap<>(16, 0.75f, true);
+	private final long maxBytes;
+	private long bytes;
+
+	private final SearchWorkspace ws;
+	/** ids and distances of nodes settled by the current search **/
+	private final int [] settledIDs;
+	private final double [] settledDistances;
+	/** log probability from the source of the current halving, valid where scoreStamp equals scoreEpoch **/
+	private final double [] score;
+	private final int [] scoreStamp;
+	private int scoreEpoch;
+	/** nodes on the current path, valid where usedStamp equals usedEpoch **/
+	private final int [] usedStamp;
+	private int usedEpoch;
+
+	public MAPPathReconstructor(GraphSubstitutionModel model, double slack) {
+		this(model, slack, DEFAULT_MAX_BYTES);
+	}
+
+	/**
+	 * @param slack relative amount by which the corridor radius exceeds the larger of the distance between
+	 * the ends and twice the modal distance, e.g. 0.25
+	 * @param maxBytes approximate bound on memory used by remembered transition probabilities **/
+	public MAPPathReconstructor(GraphSubstitutionModel model, double slack, long maxBytes) {
+		if (slack < 0) {
+			throw new IllegalArgumentException("slack should not be negative, but is " + slack);
+		}
+		this.model = model;
+		this.graph = model.graph;
+		this.slack = slack;
+		this.maxBytes = maxBytes;
+		n = graph.getSize();
+		ws = new SearchWorkspace(n);
+		settledIDs = new int[n];
+		settledDistances = new double[n];
+		score = new double[n];
+		scoreStamp = new int[n];
+		usedStamp = new int[n];
+	}
+
+	/** forget remembered transition probabilities **/
+	public void clear() {
+		rows.clear();
+		bytes = 0;
+	}
+
+	/** path from location of the parent of from to location of too, as GraphSubstitutionModel.calcMAPPath() **/
+	public List<GraphNode> calcMAPPath(Node from, Node too, double fStartTime, double fEndTime, double fRate) {
+		double distance = (fEndTime - fStartTime) * fRate;
+		GraphNode sourceNode = model.getGraphNode(from.getParent());
+		GraphNode targetNode = model.getGraphNode(too);
+		return calcMAPPath(sourceNode, targetNode, distance);
+	}
+
+	/** path from sourceNode to targetNode in given time, starting with sourceNode **/
+	public List<GraphNode> calcMAPPath(GraphNode sourceNode, GraphNode targetNode, double time) {
+		if (++usedEpoch == Integer.MAX_VALUE) {
+			Arrays.fill(usedStamp, 0);
+			usedEpoch = 1;
+		}
+		List<GraphNode> path = new ArrayList<GraphNode>();
+		path.add(sourceNode);
+		calcMAPPath(path, sourceNode, targetNode, time);
+		return path;
+	}
+
+	private void calcMAPPath(List<GraphNode> path, GraphNode sourceNode, GraphNode targetNode, double time) {
+		usedStamp[sourceNode.id] = usedEpoch;
+		usedStamp[targetNode.id] = usedEpoch;
+
+		if (sourceNode.id == targetNode.id) {
+			return;
+		}
+
+		if (targetNode.isNeighbour(sourceNode)) {
+			path.add(targetNode);
+			return;
+		}
+
+		double halfTime = time / 2.0;
+		Row sourceRow = getRow(sourceNode, halfTime, targetNode.id);
+		Row targetRow = getRow(targetNode, halfTime, sourceNode.id);
+
+		if (++scoreEpoch == Integer.MAX_VALUE) {
+			Arrays.fill(scoreStamp, 0);
+			scoreEpoch = 1;
+		}
+		for (int k = 0; k < sourceRow.ids.length; k++) {
+			int i = sourceRow.ids[k];
+			score[i] = sourceRow.logP[k];
+			scoreStamp[i] = scoreEpoch;
+		}
+		// maximise the product of probabilities as a sum of logs, with ties going to the smallest id as in a full scan
+		double maxLogP = Double.NEGATIVE_INFINITY;
+		int maxi = -1;
+		for (int k = 0; k < targetRow.ids.length; k++) {
+			int i = targetRow.ids[k];
+			if (scoreStamp[i] != scoreEpoch || usedStamp[i] == usedEpoch) {
+				continue;
+			}
+			double logP = score[i] + targetRow.logP[k];
+			if (logP > maxLogP || (logP == maxLogP && i < maxi)) {
+				maxLogP = logP;
+				maxi = i;
+			}
+		}
+		if (maxi < 0) {
+			path.add(targetNode);
+			return;
+		}
+
+		GraphNode halfwayNode = graph.nodes.get(maxi);
+		usedStamp[maxi] = usedEpoch;
+		calcMAPPath(path, sourceNode, halfwayNode, halfTime);
+		calcMAPPath(path, halfwayNode, targetNode, halfTime);
+	}
+
+	/** radius around both ends within which halfway nodes are looked for **/
+	double getCorridorRadius(double distance, double halfTime) {
+		return (1 + slack) * Math.max(distance, 2 * model.getModalDistance(halfTime));
+	}
+
+	/** log transition probabilities from node in given time to all nodes within the corridor radius
+	 * for a branch between node and node other, remembered unless a larger radius is needed later **/
+	private Row getRow(GraphNode node, double time, int other) {
+		RowKey key = new RowKey(node.id, time);
+		Row row = rows.get(key);
+		if (row != null) {
+			double distance = row.getDistance(other);
+			if (distance < Double.POSITIVE_INFINITY && row.radius >= getCorridorRadius(distance, time)) {
+				return row;
+			}
+		}
+		row = search(node, time, other);
+		Row replaced = rows.put(key, row);
+		if (replaced != null) {
+			bytes -= replaced.bytes();
+		}
+		bytes += row.bytes();
+		Iterator<Map.Entry<RowKey, Row>> iterator = rows.entrySet().iterator();
+		while (bytes > maxBytes && rows.size() > 1) {
+			Row evicted = iterator.next().getValue();
+			iterator.remove();
+			bytes -= evicted.bytes();
+		}
+		return row;
+	}
+
+	/** Dijkstra search from node that settles nodes till other is settled, and then continues
+	 * till the nearest unsettled node is beyond the corridor radius **/
+	private Row search(GraphNode node, double time, int other) {
+		final CompactGraph compactGraph = graph.getCompactGraph();
+		double radius = Double.POSITIVE_INFINITY;
+		int count = 0;
+		ws.reset();
+		ws.reach(node.id, 0, node.id);
+		ws.heap.offer(node.id, 0);
+		while (!ws.heap.isEmpty()) {
+			if (ws.heap.peekKey() > radius) {
+				break;
+			}
+			int u = ws.heap.poll();
+			double du = ws.dist[u];
+			settledIDs[count] = u;
+			settledDistances[count] = du;
+			count++;
+			if (u == other) {
+				radius = getCorridorRadius(du, time);
+			}
+			for (int e = compactGraph.offsets[u]; e < compactGraph.offsets[u + 1]; e++) {
+				int t = compactGraph.targets[e];
+				double d = du + compactGraph.weights[e];
+				if (d < ws.getDistance(t)) {
+					ws.reach(t, d, u);
+					ws.heap.offer(t, d);
+				}
+			}
+		}
+		ws.heap.clear();
+		int [] ids = Arrays.copyOf(settledIDs, count);
+		double [] distances = Arrays.copyOf(settledDistances, count);
+		double [] logP = new double[count];
+		model.getLogTransitionProbabilities(node, time, ids, distances, logP);
+		return new Row(ids, distances, logP, radius);
+	}
+
+	/** nodes in order of distance from a start node, with all nodes within radius present **/
+	private static class Row {
+		final int [] ids;
+		final double [] distances;
+		final double [] logP;
+		final double radius;
+
+		Row(int [] ids, double [] distances, double [] logP, double radius) {
+			this.ids = ids;
+			this.distances = distances;
+			this.logP = logP;
+			this.radius = radius;
+		}
+
+		long bytes() {
+			return ids.length * ENTRY_BYTES + ROW_OVERHEAD;
+		}
+
+		/** distance to node id, or positive infinity if it is not in the row **/
+		double getDistance(int id) {
+			for (int k = 0; k < ids.length; k++) {
+				if (ids[k] == id) {
+					return distances[k];
+				}
+			}
+			return Double.POSITIVE_INFINITY;
+		}
+	}
+
+	private static class RowKey {
+		final int id;
+		final double time;
+
+		RowKey(int id, double time) {
+			this.id = id;
+			this.time = time;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof RowKey)) {
+				return false;
+			}
+			RowKey other = (RowKey) o;
+			return id == other.id && Double.compare(time, other.time) == 0;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * id + Double.hashCode(time);
+		}
+	}
+}
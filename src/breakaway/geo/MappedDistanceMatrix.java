@@ -0,0 +1,131 @@
+package breakaway.geo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectStreamException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import beast.base.core.Description;
+
+/**
+ * File layout (little endian):
+ * header of HEADER_SIZE bytes containing MAGIC, VERSION, number of rows n, bytes per entry,
+ * followed by n rows of n doubles. The header fills a whole page, so rows start page aligned
+ * and the OS can share mapped pages among all processes reading the same file.
+ */
+@Description("distance matrix that is memory mapped from a binary file instead of residing on the heap")
+public class MappedDistanceMatrix extends DistanceMatrix {
+	private static final long serialVersionUID = 1L;
+
+	final static int MAGIC = 0x4D444142; // "BADM"
+	final static int VERSION = 1;
+	final static int HEADER_SIZE = 4096;
+	/** maximum size of a single mapped region -- a MappedByteBuffer cannot exceed 2GB **/
+	final static long MAX_SEGMENT_SIZE = 1L << 30;
+
+	private int n;
+	private int rowsPerSegment;
+	transient private DoubleBuffer [] segments;
+
+	MappedDistanceMatrix(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer header = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+			channel.read(header, 0);
+			header.flip();
+			if (header.remaining() < 16 || header.getInt() != MAGIC) {
+				throw new IOException("Not a distance matrix file: " + file.getPath());
+			}
+			int version = header.getInt();
+			if (version != VERSION) {
+				throw new IOException("Unsupported distance matrix file version " + version + " in " + file.getPath());
+			}
+			n = header.getInt();
+			int entrySize = header.getInt();
+			if (entrySize != Double.BYTES) {
+				throw new IOException("Unsupported entry size " + entrySize + " in " + file.getPath());
+			}
+			long rowSize = (long) n * Double.BYTES;
+			if (channel.size() < HEADER_SIZE + rowSize * n) {
+				throw new IOException("Distance matrix file is truncated: " + file.getPath());
+			}
+
+			rowsPerSegment = (int) Math.max(1, MAX_SEGMENT_SIZE / Math.max(1, rowSize));
+			int segmentCount = (n + rowsPerSegment - 1) / rowsPerSegment;
+			segments = new DoubleBuffer[segmentCount];
+			for (int i = 0; i < segmentCount; i++) {
+				int rows = Math.min(rowsPerSegment, n - i * rowsPerSegment);
+				segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + (long) i * rowsPerSegment * rowSize, rows * rowSize)
+						.order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+			}
+		}
+	}
+
+	@Override
+	public int getSize() {
+		return n;
+	}
+
+	@Override
+	public double getDistance(int i, int j) {
+		return segments[i / rowsPerSegment].get((i % rowsPerSegment) * n + j);
+	}
+
+	@Override
+	public double [] getRow(int i, double [] row) {
+		if (row == null) {
+			row = new double[n];
+		}
+		segments[i / rowsPerSegment].get((i % rowsPerSegment) * n, row, 0, n);
+		return row;
+	}
+
+	@Override
+	public boolean isWritable() {
+		return false;
+	}
+
+	@Override
+	public void setRow(int i, double [] row) {
+		throw new UnsupportedOperationException("memory mapped distance matrix is read only");
+	}
+
+	/** mapped buffers cannot be serialised, so replace by an in memory copy **/
+	private Object writeReplace() throws ObjectStreamException {
+		double [][] distances = new double[n][];
+		for (int i = 0; i < n; i++) {
+			distances[i] = getRow(i, null);
+		}
+		return new DistanceMatrix(distances);
+	}
+
+	static void write(DistanceMatrix matrix, File file) throws IOException {
+		int n = matrix.getSize();
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC);
+			header.putInt(VERSION);
+			header.putInt(n);
+			header.putInt(Double.BYTES);
+			header.clear();
+			while (header.hasRemaining()) {
+				channel.write(header);
+			}
+
+			double [] row = new double[n];
+			ByteBuffer buf = ByteBuffer.allocateDirect(n * Double.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			for (int i = 0; i < n; i++) {
+				matrix.getRow(i, row);
+				buf.clear();
+				buf.asDoubleBuffer().put(row);
+				while (buf.hasRemaining()) {
+					channel.write(buf);
+				}
+			}
+		}
+	}
+}
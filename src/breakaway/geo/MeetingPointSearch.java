@@ -0,0 +1,234 @@
+package breakaway.geo;
+
+import java.util.Arrays;
+
+/**
+ * Searches from k weighted sources at once until they meet. All searches share a single heap keyed by
+ * (distance / weight of source, source), so a source with a larger weight advances proportionally further,
+ * and the first node reached by all sources is the meeting point.
+ *
+ * Which sources reached a node is kept as a bitmask per node, and distances are only stored for
+ * (node, source) pairs actually reached, in a hash table, so the cost grows with the region searched
+ * rather than with k times the size of the graph. All state is stamped with the search number,
+ * so it is reused between searches without clearing. Instances are confined to a thread, see Graph.getMeetingPointSearch().
+ */
+class MeetingPointSearch {
+	final int n;
+
+	/** k sources of the current search, and words of 64 bits needed for a mask of k bits **/
+	private int k;
+	private int words;
+	private double [] weights = new double[0];
+
+	/** masks[v * words + w] has bit b set if source 64 * w + b reached v, valid if nodeStamp[v] == epoch **/
+	private long [] masks = new long[0];
+	private final int [] nodeStamp;
+	/** number of sources that reached v, valid if nodeStamp[v] == epoch **/
+	private final int [] reachedCount;
+	private int epoch;
+
+	/** one slot per (node, source) pair reached **/
+	private int slotCount;
+	private int [] slotNode = new int[64];
+	private int [] slotSource = new int[64];
+	private int [] slotPrev = new int[64];
+	private double [] slotDist = new double[64];
+
+	/** open addressing hash table from (node, source) to slot, entries valid if tableStamp[i] == epoch **/
+	private int [] table = new int[128];
+	private int [] tableStamp = new int[128];
+
+	/** binary heap of slots, ordered by key and then by source. Slots may be queued more than once,
+	 * entries with a key that no longer matches the distance of the slot are skipped **/
+	private int heapSize;
+	private int [] heapSlots = new int[64];
+	private double [] heapKeys = new double[64];
+
+	MeetingPointSearch(int n) {
+		this.n = n;
+		nodeStamp = new int[n];
+		reachedCount = new int[n];
+	}
+
+	/** search from sources until a node is reached from all of them.
+	 * @return meeting node, or -1 if sources are not connected **/
+	int search(CompactGraph graph, int [] sources, double [] weights) {
+		start(sources, weights);
+		while (heapSize > 0) {
+			int slot = heapSlots[0];
+			double key = heapKeys[0];
+			pollHeap();
+			int source = slotSource[slot];
+			if (key != slotDist[slot] / this.weights[source]) {
+				// distance improved after this entry was queued
+				continue;
+			}
+			int gnode = slotNode[slot];
+			double dist = slotDist[slot];
+			for (int e = graph.offsets[gnode]; e < graph.offsets[gnode + 1]; e++) {
+				int t = graph.targets[e];
+				double d = dist + graph.weights[e];
+				int tslot = find(t, source);
+				if (tslot < 0 || d < slotDist[tslot]) {
+					if (tslot < 0) {
+						tslot = add(t, source);
+					}
+					slotDist[tslot] = d;
+					slotPrev[tslot] = gnode;
+					if (reachedCount[t] == k) {
+						// we have a connection
+						return t;
+					}
+					offerHeap(tslot, d / this.weights[source]);
+				}
+			}
+		}
+		return -1;
+	}
+
+	/** predecessor of v on path from source, or v itself if v is the source **/
+	int getPrevious(int v, int source) {
+		return slotPrev[find(v, source)];
+	}
+
+	/** distance from source to v, or positive infinity if source did not reach v **/
+	double getDistance(int v, int source) {
+		int slot = find(v, source);
+		return slot < 0 ? Double.POSITIVE_INFINITY : slotDist[slot];
+	}
+
+	private void start(int [] sources, double [] weights) {
+		k = sources.length;
+		words = (k + 63) / 64;
+		if (masks.length < n * words) {
+			masks = new long[n * words];
+		}
+		this.weights = weights;
+		if (++epoch == Integer.MAX_VALUE) {
+			Arrays.fill(nodeStamp, 0);
+			Arrays.fill(tableStamp, 0);
+			epoch = 1;
+		}
+		slotCount = 0;
+		heapSize = 0;
+		for (int i = 0; i < k; i++) {
+			int slot = add(sources[i], i);
+			slotDist[slot] = 0;
+			slotPrev[slot] = sources[i];
+			offerHeap(slot, 0);
+		}
+	}
+
+	private int hash(int v, int source) {
+		long key = (long) v * k + source;
+		key *= 0x9E3779B97F4A7C15L;
+		return (int) (key >>> 32) & (table.length - 1);
+	}
+
+	/** slot of (v, source), or -1 if source has not reached v yet **/
+	private int find(int v, int source) {
+		if (nodeStamp[v] != epoch || (masks[v * words + (source >>> 6)] & (1L << source)) == 0) {
+			return -1;
+		}
+		int i = hash(v, source);
+		while (true) {
+			int slot = table[i];
+			if (slotNode[slot] == v && slotSource[slot] == source) {
+				return slot;
+			}
+			i = (i + 1) & (table.length - 1);
+		}
+	}
+
+	/** new slot for (v, source), marking v as reached by source **/
+	private int add(int v, int source) {
+		if (nodeStamp[v] != epoch) {
+			nodeStamp[v] = epoch;
+			reachedCount[v] = 0;
+			Arrays.fill(masks, v * words, (v + 1) * words, 0);
+		}
+		masks[v * words + (source >>> 6)] |= 1L << source;
+		reachedCount[v]++;
+
+		if (slotCount == slotNode.length) {
+			int capacity = slotCount * 2;
+			slotNode = Arrays.copyOf(slotNode, capacity);
+			slotSource = Arrays.copyOf(slotSource, capacity);
+			slotPrev = Arrays.copyOf(slotPrev, capacity);
+			slotDist = Arrays.copyOf(slotDist, capacity);
+		}
+		int slot = slotCount++;
+		slotNode[slot] = v;
+		slotSource[slot] = source;
+		if (slotCount * 2 > table.length) {
+			// keep table at most half full, which rehashes all slots including the new one
+			table = new int[table.length * 2];
+			tableStamp = new int[table.length];
+			for (int s = 0; s < slotCount; s++) {
+				insert(s);
+			}
+		} else {
+			insert(slot);
+		}
+		return slot;
+	}
+
+	private void insert(int slot) {
+		int i = hash(slotNode[slot], slotSource[slot]);
+		while (tableStamp[i] == epoch) {
+			i = (i + 1) & (table.length - 1);
+		}
+		tableStamp[i] = epoch;
+		table[i] = slot;
+	}
+
+	/** whether entry a comes before entry b in the heap **/
+	private boolean before(double keyA, int slotA, double keyB, int slotB) {
+		return keyA < keyB || (keyA == keyB && slotSource[slotA] < slotSource[slotB]);
+	}
+
+	private void offerHeap(int slot, double key) {
+		if (heapSize == heapSlots.length) {
+			heapSlots = Arrays.copyOf(heapSlots, heapSize * 2);
+			heapKeys = Arrays.copyOf(heapKeys, heapSize * 2);
+		}
+		int i = heapSize++;
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (!before(key, slot, heapKeys[parent], heapSlots[parent])) {
+				break;
+			}
+			heapSlots[i] = heapSlots[parent];
+			heapKeys[i] = heapKeys[parent];
+			i = parent;
+		}
+		heapSlots[i] = slot;
+		heapKeys[i] = key;
+	}
+
+	private void pollHeap() {
+		heapSize--;
+		if (heapSize == 0) {
+			return;
+		}
+		int slot = heapSlots[heapSize];
+		double key = heapKeys[heapSize];
+		int i = 0;
+		int half = heapSize >>> 1;
+		while (i < half) {
+			int child = 2 * i + 1;
+			int right = child + 1;
+			if (right < heapSize && before(heapKeys[right], heapSlots[right], heapKeys[child], heapSlots[child])) {
+				child = right;
+			}
+			if (!before(heapKeys[child], heapSlots[child], key, slot)) {
+				break;
+			}
+			heapSlots[i] = heapSlots[child];
+			heapKeys[i] = heapKeys[child];
+			i = child;
+		}
+		heapSlots[i] = slot;
+		heapKeys[i] = key;
+	}
+}
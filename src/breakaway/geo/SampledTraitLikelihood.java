@@ -1,9 +1,21 @@
 package breakaway.geo;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
 import beast.base.core.Citation;
 import beast.base.core.Description;
 import beast.base.core.Input;
 import beast.base.core.Input.Validate;
+import beast.base.inference.CalculationNode;
+import beast.base.inference.parameter.IntegerParameter;
 import beast.base.evolution.branchratemodel.BranchRateModel;
 import beast.base.evolution.likelihood.GenericTreeLikelihood;
 import beast.base.evolution.tree.Node;
@@ -15,12 +27,68 @@ import beast.base.evolution.tree.Tree;
 		+ "Nature Ecology and Evolution, 2, 741–749 (2018)", year=2018, DOI="doi:10.1038/s41559-018-0489-3")
 public class SampledTraitLikelihood extends GenericTreeLikelihood implements PositionProvider {
 	public Input<GraphSubstitutionModel> modelInput = new Input<GraphSubstitutionModel>("model" , "model for the diffusion of the trait",Validate.REQUIRED);
+	public Input<Integer> threadsInput = new Input<Integer>("threads", "number of threads used to evaluate branches when many of them changed, "
+			+ "e.g. after a change in precision or clock rate. The result does not depend on how threads are scheduled.", 1);
 
 	GraphSubstitutionModel model;
 	Tree tree;
 	BranchRateModel clockModel;
-	double [] partialLogP;
-	double [] storedPartialLogP;
+
+	/** number of statistics per branch, see GraphSubstitutionModel.getBranchStatistics() **/
+	int statCount;
+	/** statistics of branch above every node, statCount values per node, all zero for the root **/
+	double [] branchStats;
+	/** sums of branchStats over all nodes, from which the model calculates the log-likelihood of all branches **/
+	double [] sums;
+	double [] storedSums;
+	/** log probability of root location **/
+	double rootLogP;
+
+	/** location and branch rate of every node at the last evaluation, used to find branches that changed **/
+	int [] locations;
+	double [] rates;
+
+	/** nodes changed since the last store(), with their values before the change, so that restore() 
+	 * only reverts those. A node is in the journal at most once, when journalStamp[node] == epoch.
+	 * After all branches were evaluated, copies of the arrays are restored instead. **/
+	int journalSize;
+	int [] journal;
+	double [] journalStats;
+	int [] journalLocation;
+	double [] journalRate;
+	int [] journalStamp;
+	int epoch = 1;
+	/** whether all branches were evaluated since the last store(), and the arrays at that time **/
+	boolean fullyRecalculated;
+	double [] storedBranchStats;
+	int [] storedLocations;
+	double [] storedRates;
+	boolean storedNeedsFullRecalculation;
+
+	/** nodes for which the branch above needs to be evaluated, if changedStamp[node] == evaluation,
+	 * the first changedCount of which are in changedNodes **/
+	int [] changedStamp;
+	int evaluation;
+	int [] changedNodes;
+	int changedCount;
+
+	/** whether the next calculateLogP() needs to evaluate all branches, e.g. initially **/
+	boolean needsFullRecalculation = true;
+	/** sums are updated by differences, and summed from scratch after this many updates to avoid drift **/
+	final static int RESUM_INTERVAL = 1000;
+	int updateCount;
+
+	/** branches to evaluate by evaluateBranches() **/
+	Node [] dirtyNodes;
+	/** workers that evaluate branches if threads > 1, which stop when idle for a while, see close() **/
+	ThreadPoolExecutor pool;
+	int threads;
+	/** fewer changed branches than this are evaluated by the calling thread **/
+	final static int PARALLEL_THRESHOLD = 256;
+	/** changes in statistics of this many branches are summed per chunk, see evaluateBranches() **/
+	final static int CHUNK_SIZE = 64;
+	/** changes in statistics per chunk **/
+	double [] chunkDeltas;
 
 	public SampledTraitLikelihood() {
 		dataInput.setRule(Validate.OPTIONAL);
@@ -31,42 +99,364 @@ public class SampledTraitLikelihood extends GenericTreeLikelihood implements Pos
 	public void initAndValidate() {
 		model = modelInput.get();
 		tree = (Tree) treeInput.get();
-		partialLogP = new double[tree.getNodeCount()];
-		storedPartialLogP = new double[tree.getNodeCount()];
+		int nodeCount = tree.getNodeCount();
+		statCount = model.getBranchStatisticCount();
+		branchStats = new double[nodeCount * statCount];
+		sums = new double[statCount];
+		storedSums = new double[statCount];
+		locations = new int[nodeCount];
+		rates = new double[nodeCount];
+		journal = new int[nodeCount];
+		journalStats = new double[nodeCount * statCount];
+		journalLocation = new int[nodeCount];
+		journalRate = new double[nodeCount];
+		journalStamp = new int[nodeCount];
+		storedBranchStats = new double[nodeCount * statCount];
+		storedLocations = new int[nodeCount];
+		storedRates = new double[nodeCount];
+		changedStamp = new int[nodeCount];
+		changedNodes = new int[nodeCount];
+		dirtyNodes = new Node[nodeCount];
+		chunkDeltas = new double[(nodeCount / CHUNK_SIZE + 1) * statCount];
 		clockModel = branchRateModelInput.get();
+		threads = threadsInput.get();
+		close();
+		if (threads > 1) {
+			pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+				Thread thread = new Thread(r, "SampledTraitLikelihood");
+				// do not keep the JVM alive when the run is finished
+				thread.setDaemon(true);
+				return thread;
+			});
+			pool.allowCoreThreadTimeOut(true);
+		}
 	}	
+
+	/** stop worker threads. Branches are evaluated by the calling thread afterwards, until initAndValidate() is called again. **/
+	public void close() {
+		if (pool != null) {
+			pool.shutdown();
+			pool = null;
+		}
+	}
 	
+	/** Only branches of which the node height, parent height, rate or location of either end changed 
+	 * are evaluated, unless the model says all branches need recalculation. If only parameters of the model 
+	 * changed that are not part of its branch statistics, e.g. the precision of a DistanceBasedDiffusionModel, 
+	 * no branch is evaluated at all. **/
 	@Override
 	public double calculateLogP() {
-		logP = 0;
+		if (needsFullRecalculation || model.requiresFullRecalculation()) {
+			calculateAllBranches();
+		} else {
+			// rates only need to be compared when the clock model changed
+			boolean checkRates = !(clockModel instanceof CalculationNode) || ((CalculationNode) clockModel).isDirtyCalculation();
+			if (checkRates || tree.somethingIsDirty() || locationIsDirty()) {
+				calculateChangedBranches(checkRates);
+			}
+		}
+		rootLogP = model.getLogRootFrequency(tree.getRoot());
+		logP = rootLogP + model.getLogLikelihoodFromStatistics(sums);
+		return logP;
+	}
+
+	/** whether locations may have changed since the last evaluation. An IslandHopLocationParameter derives its 
+	 * values from the tree and the parameter it translates, and is not marked dirty when only that parameter changed. **/
+	private boolean locationIsDirty() {
+		if (model.location.somethingIsDirty()) {
+			return true;
+		}
+		return model.location instanceof IslandHopLocationParameter && 
+				((IslandHopLocationParameter) model.location).location.somethingIsDirty();
+	}
+
+	private void calculateChangedBranches(boolean checkRates) {
+		Node [] nodes = tree.getNodesAsArray();
+		if (++evaluation == Integer.MAX_VALUE) {
+			Arrays.fill(changedStamp, 0);
+			evaluation = 1;
+		}
+		changedCount = 0;
+		boolean treeIsDirty = tree.somethingIsDirty();
+		// first mark branches above and below nodes that moved to another location
+		markMovedNodes(nodes, treeIsDirty);
+		int count = 0;
+		if (!checkRates && !treeIsDirty) {
+			// heights and rates are unchanged, so only marked branches can have changed
+			for (int k = 0; k < changedCount; k++) {
+				Node node = nodes[changedNodes[k]];
+				if (!node.isRoot()) {
+					record(node.getNr());
+					dirtyNodes[count++] = node;
+				}
+			}
+			evaluateBranches(count);
+			if (++updateCount >= RESUM_INTERVAL) {
+				resum();
+			}
+			return;
+		}
+		// rates are calculated here, since clock models need not be thread safe
+		for (Node node : nodes) {
+			int nr = node.getNr();
+			if (node.isRoot()) {
+				// the root has no branch, but may have had one before a change in topology
+				clearStatistics(nr);
+				continue;
+			}
+			boolean dirty = changedStamp[nr] == evaluation || node.isDirty() != Tree.IS_CLEAN;
+			double rate = rates[nr];
+			if (checkRates) {
+				rate = clockModel.getRateForBranch(node);
+				dirty |= rate != rates[nr];
+			}
+			if (dirty) {
+				record(nr);
+				rates[nr] = rate;
+				dirtyNodes[count++] = node;
+			}
+		}
+		evaluateBranches(count);
+		if (++updateCount >= RESUM_INTERVAL) {
+			resum();
+		}
+	}
+
+	/** compare locations with those at the last evaluation, and mark branches above and below nodes that moved. 
+	 * Only nodes with a dirty location are compared, or for an IslandHopLocationParameter, nodes with a dirty choice 
+	 * and their ancestors that choose them, so locations are not collected for the whole tree. 
+	 * If the topology may have changed, derived locations of all nodes are compared. **/
+	private void markMovedNodes(Node [] nodes, boolean treeIsDirty) {
+		IntegerParameter location = model.location;
+		if (location instanceof IslandHopLocationParameter) {
+			IslandHopLocationParameter islandHop = (IslandHopLocationParameter) location;
+			if (treeIsDirty || islandHop.somethingIsDirty()) {
+				Integer [] values = location.getValues();
+				for (Node node : nodes) {
+					if (values[node.getNr()] != locations[node.getNr()]) {
+						move(node, values[node.getNr()]);
+					}
+				}
+				return;
+			}
+			IntegerParameter choices = islandHop.location;
+			for (int i = 0; i < nodes.length; i++) {
+				if (choices.isDirty(i)) {
+					// a new choice changes the location of its node, and of ancestors that choose the child on the path to it
+					Node node = nodes[i];
+					while (true) {
+						int loc = islandHop.getLocation(node);
+						if (loc == locations[node.getNr()]) {
+							break;
+						}
+						move(node, loc);
+						Node parent = node.getParent();
+						if (parent == null || choices.getValue(parent.getNr()) != node.getNr()) {
+							break;
+						}
+						node = parent;
+					}
+				}
+			}
+		} else {
+			for (int i = 0; i < nodes.length; i++) {
+				if (location.isDirty(i)) {
+					int loc = location.getValue(i);
+					if (loc != locations[i]) {
+						move(nodes[i], loc);
+					}
+				}
+			}
+		}
+	}
+
+	/** set location of node and mark the branches above and below it **/
+	private void move(Node node, int loc) {
+		int nr = node.getNr();
+		record(nr);
+		locations[nr] = loc;
+		mark(nr);
+		for (Node child : node.getChildren()) {
+			mark(child.getNr());
+		}
+	}
+
+	private void mark(int nr) {
+		if (changedStamp[nr] != evaluation) {
+			changedStamp[nr] = evaluation;
+			changedNodes[changedCount++] = nr;
+		}
+	}
+
+	/** evaluate every branch **/
+	private void calculateAllBranches() {
+		if (!fullyRecalculated) {
+			// keep the arrays as they were at the last store(), instead of journalling every node
+			System.arraycopy(branchStats, 0, storedBranchStats, 0, branchStats.length);
+			System.arraycopy(locations, 0, storedLocations, 0, locations.length);
+			System.arraycopy(rates, 0, storedRates, 0, rates.length);
+			for (int k = 0; k < journalSize; k++) {
+				int nr = journal[k];
+				System.arraycopy(journalStats, k * statCount, storedBranchStats, nr * statCount, statCount);
+				storedLocations[nr] = journalLocation[k];
+				storedRates[nr] = journalRate[k];
+			}
+			storedNeedsFullRecalculation = needsFullRecalculation;
+			fullyRecalculated = true;
+		}
+		int count = 0;
+		// all values at once, so an IslandHopLocationParameter collects its locations once
+		Integer [] values = model.location.getValues();
 		for (Node node : tree.getNodesAsArray()) {
+			int nr = node.getNr();
+			locations[nr] = values[nr];
 			if (!node.isRoot()) {
-				double rate = clockModel.getRateForBranch(node);
-				double p = model.getLogTransitionProbability(node, node.getParent().getHeight(), node.getHeight(), rate);
-				if (Double.isNaN(p) || Double.isInfinite(p)) {
-					p = -1000;
-				}
-				partialLogP[node.getNr()] = p;				
-				logP += p;
+				rates[nr] = clockModel.getRateForBranch(node);
+				dirtyNodes[count++] = node;
 			} else {
-				// handle root location
-				double p = model.getLogRootFrequency(node);
-				partialLogP[node.getNr()] = p;				
-				logP += p;
+				Arrays.fill(branchStats, nr * statCount, (nr + 1) * statCount, 0.0);
+			}
+		}
+		evaluateBranches(count);
+		resum();
+		needsFullRecalculation = false;
+	}
+
+	/** calculate sums from branch statistics from scratch **/
+	private void resum() {
+		updateCount = 0;
+		Arrays.fill(sums, 0.0);
+		for (int i = 0; i < branchStats.length; i += statCount) {
+			for (int j = 0; j < statCount; j++) {
+				sums[j] += branchStats[i + j];
+			}
+		}
+	}
+
+	/** evaluate statistics of branches above the first count nodes of dirtyNodes with rates in rates, 
+	 * and add their changes to sums. From PARALLEL_THRESHOLD branches on, changes are summed per chunk of 
+	 * CHUNK_SIZE branches, and chunks are added up in order, whether they were evaluated by the calling thread 
+	 * or split over threads. So the result does not depend on the number of threads, or on how they are scheduled. **/
+	private void evaluateBranches(int count) {
+		if (count < PARALLEL_THRESHOLD) {
+			evaluateBranches(0, count, sums, 0);
+			return;
+		}
+		int chunks = (count + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		Arrays.fill(chunkDeltas, 0, chunks * statCount, 0.0);
+		if (pool == null) {
+			evaluateChunks(0, chunks, count);
+		} else {
+			List<Callable<Void>> tasks = new ArrayList<>(threads);
+			for (int t = 0; t < threads; t++) {
+				final int from = chunks * t / threads;
+				final int too = chunks * (t + 1) / threads;
+				tasks.add(() -> {
+					evaluateChunks(from, too, count);
+					return null;
+				});
+			}
+			try {
+				for (Future<Void> future : pool.invokeAll(tasks)) {
+					future.get();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			} catch (ExecutionException e) {
+				throw new RuntimeException(e.getCause());
+			}
+		}
+		for (int c = 0; c < chunks; c++) {
+			for (int j = 0; j < statCount; j++) {
+				sums[j] += chunkDeltas[c * statCount + j];
 			}
 		}
-		return logP;
+	}
+
+	/** evaluate chunks from to too of the first count nodes of dirtyNodes, with changes going into chunkDeltas **/
+	private void evaluateChunks(int from, int too, int count) {
+		for (int c = from; c < too; c++) {
+			evaluateBranches(c * CHUNK_SIZE, Math.min(count, (c + 1) * CHUNK_SIZE), chunkDeltas, c * statCount);
+		}
+	}
+
+	/** evaluate branches from to too of dirtyNodes, adding changes in their statistics to delta from deltaOffset. 
+	 * Locations come from locations, so worker threads do not read the location parameter. **/
+	private void evaluateBranches(int from, int too, double [] delta, int deltaOffset) {
+		for (int k = from; k < too; k++) {
+			Node node = dirtyNodes[k];
+			int nr = node.getNr();
+			int offset = nr * statCount;
+			for (int j = 0; j < statCount; j++) {
+				delta[deltaOffset + j] -= branchStats[offset + j];
+			}
+			double time = (node.getParent().getHeight() - node.getHeight()) * rates[nr];
+			model.getBranchStatistics(locations[node.getParent().getNr()], locations[nr], time, branchStats, offset);
+			for (int j = 0; j < statCount; j++) {
+				delta[deltaOffset + j] += branchStats[offset + j];
+			}
+		}
+	}
+
+	/** set statistics of node to zero, updating sums **/
+	private void clearStatistics(int nr) {
+		int offset = nr * statCount;
+		for (int j = 0; j < statCount; j++) {
+			if (branchStats[offset + j] != 0) {
+				record(nr);
+				sums[j] -= branchStats[offset + j];
+				branchStats[offset + j] = 0;
+			}
+		}
+	}
+
+	/** add node to journal before changing any of its values **/
+	private void record(int nr) {
+		if (!fullyRecalculated && journalStamp[nr] != epoch) {
+			journalStamp[nr] = epoch;
+			journal[journalSize] = nr;
+			System.arraycopy(branchStats, nr * statCount, journalStats, journalSize * statCount, statCount);
+			journalLocation[journalSize] = locations[nr];
+			journalRate[journalSize] = rates[nr];
+			journalSize++;
+		}
+	}
+
+	/** start a new journal **/
+	private void clearJournal() {
+		journalSize = 0;
+		fullyRecalculated = false;
+		if (++epoch == Integer.MAX_VALUE) {
+			Arrays.fill(journalStamp, 0);
+			epoch = 1;
+		}
 	}
 
 	@Override
 	public void store() {
-		System.arraycopy(partialLogP, 0, storedPartialLogP, 0, partialLogP.length);
+		clearJournal();
+		System.arraycopy(sums, 0, storedSums, 0, statCount);
 		super.store();
 	}
 	
 	@Override
 	public void restore() {
-		double [] tmp = partialLogP; partialLogP = storedPartialLogP; storedPartialLogP = tmp;
+		if (fullyRecalculated) {
+			double [] tmp = branchStats; branchStats = storedBranchStats; storedBranchStats = tmp;
+			int [] tmpLocations = locations; locations = storedLocations; storedLocations = tmpLocations;
+			tmp = rates; rates = storedRates; storedRates = tmp;
+			needsFullRecalculation = storedNeedsFullRecalculation;
+		} else {
+			for (int k = 0; k < journalSize; k++) {
+				int nr = journal[k];
+				System.arraycopy(journalStats, k * statCount, branchStats, nr * statCount, statCount);
+				locations[nr] = journalLocation[k];
+				rates[nr] = journalRate[k];
+			}
+		}
+		System.arraycopy(storedSums, 0, sums, 0, statCount);
+		clearJournal();
 		super.restore();
 	}
 
@@ -0,0 +1,54 @@
+package breakaway.geo;
+
+import java.util.Arrays;
+
+/**
+ * State of a single source search, to be reused for many searches by the same thread.
+ * Instead of clearing arrays between searches, entries are stamped with the number of the search that
+ * set them, so reset() does not depend on the size of the graph, only on the number of nodes still queued.
+ * Graph.getWorkspaces() hands out workspaces per thread.
+ */
+class SearchWorkspace {
+	final double [] dist;
+	final int [] prev;
+	final IndexedMinHeap heap;
+	private final int [] stamp;
+	private int epoch;
+
+	SearchWorkspace(int n) {
+		dist = new double[n];
+		prev = new int[n];
+		stamp = new int[n];
+		heap = new IndexedMinHeap(n);
+	}
+
+	int capacity() {
+		return dist.length;
+	}
+
+	/** forget all nodes reached by the previous search **/
+	void reset() {
+		if (++epoch == Integer.MAX_VALUE) {
+			Arrays.fill(stamp, 0);
+			epoch = 1;
+		}
+		heap.clear();
+	}
+
+	/** whether v was reached since the last reset() **/
+	boolean isReached(int v) {
+		return stamp[v] == epoch;
+	}
+
+	/** distance to v, or positive infinity if v was not reached since the last reset() **/
+	double getDistance(int v) {
+		return stamp[v] == epoch ? dist[v] : Double.POSITIVE_INFINITY;
+	}
+
+	/** record v is reached at distance d through node from **/
+	void reach(int v, double d, int from) {
+		stamp[v] = epoch;
+		dist[v] = d;
+		prev[v] = from;
+	}
+}
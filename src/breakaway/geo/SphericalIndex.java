@@ -0,0 +1,326 @@
+package breakaway.geo;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import beast.base.core.Description;
+
+/**
+ * k-d tree over node centres as points on the unit sphere in Cartesian coordinates.
+ * Since the chord between two points on the sphere grows with the great circle distance,
+ * the node with the nearest centre in 3D is also nearest along the surface, so lookups are exact,
+ * also near the poles and across the antimeridian.
+ *
+ * The tree is implicit: range [lo, hi) has its splitting point at the median (lo + hi) / 2, with
+ * smaller coordinates on the split axis before and larger after it, so memory is a few arrays of
+ * length n, and lookups take O(log n) on average. Halves of large ranges are built in parallel.
+ */
+@Description("index for finding the graph node with centre closest to a point on the sphere")
+public class SphericalIndex {
+	/** ranges smaller than this are built by the thread that split them **/
+	final static int PARALLEL_THRESHOLD = 1 << 14;
+	/** number of points looked up by one task in batch lookups **/
+	final static int BATCH_CHUNK = 4096;
+
+	/** node ids in tree order **/
+	final int [] ids;
+	/** coordinates in tree order **/
+	final double [] px, py, pz;
+	/** split axis (0, 1, 2 for x, y, z) of the range with its median at position i **/
+	final byte [] axis;
+	/** tree position of every node id **/
+	final int [] position;
+
+	SphericalIndex(CompactGraph graph) {
+		this(graph.x, graph.y, graph.z);
+	}
+
+	SphericalIndex(double [] x, double [] y, double [] z) {
+		int n = x.length;
+		ids = new int[n];
+		px = x.clone();
+		py = y.clone();
+		pz = z.clone();
+		axis = new byte[n];
+		for (int i = 0; i < n; i++) {
+			ids[i] = i;
+		}
+		if (n > PARALLEL_THRESHOLD) {
+			ForkJoinPool.commonPool().invoke(new BuildTask(0, n));
+		} else {
+			build(0, n);
+		}
+		position = new int[n];
+		for (int i = 0; i < n; i++) {
+			position[ids[i]] = i;
+		}
+	}
+
+	/** index with tree order and split axes as stored by GraphSnapshot, for points x, y, z by node id **/
+	SphericalIndex(int [] ids, byte [] axis, double [] x, double [] y, double [] z) {
+		int n = ids.length;
+		this.ids = ids;
+		this.axis = axis;
+		px = new double[n];
+		py = new double[n];
+		pz = new double[n];
+		position = new int[n];
+		for (int i = 0; i < n; i++) {
+			int id = ids[i];
+			px[i] = x[id];
+			py[i] = y[id];
+			pz[i] = z[id];
+			position[id] = i;
+		}
+	}
+
+	/** builds range lo to hi, with halves as separate tasks while they are large **/
+	private class BuildTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		final int lo, hi;
+
+		BuildTask(int lo, int hi) {
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		@Override
+		protected void compute() {
+			if (hi - lo <= PARALLEL_THRESHOLD) {
+				build(lo, hi);
+				return;
+			}
+			int mid = split(lo, hi);
+			invokeAll(new BuildTask(lo, mid), new BuildTask(mid + 1, hi));
+		}
+	}
+
+	private void build(int lo, int hi) {
+		while (hi - lo > 1) {
+			int mid = split(lo, hi);
+			// recurse on smaller half, loop on larger half
+			if (mid - lo < hi - mid - 1) {
+				build(lo, mid);
+				lo = mid + 1;
+			} else {
+				build(mid + 1, hi);
+				hi = mid;
+			}
+		}
+	}
+
+	/** choose axis with largest spread over range lo to hi, and partition range around its median
+	 * @return position of median **/
+	private int split(int lo, int hi) {
+		double minX = Double.POSITIVE_INFINITY, maxX = Double.NEGATIVE_INFINITY;
+		double minY = Double.POSITIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+		double minZ = Double.POSITIVE_INFINITY, maxZ = Double.NEGATIVE_INFINITY;
+		for (int i = lo; i < hi; i++) {
+			minX = Math.min(minX, px[i]);
+			maxX = Math.max(maxX, px[i]);
+			minY = Math.min(minY, py[i]);
+			maxY = Math.max(maxY, py[i]);
+			minZ = Math.min(minZ, pz[i]);
+			maxZ = Math.max(maxZ, pz[i]);
+		}
+		double spreadX = maxX - minX, spreadY = maxY - minY, spreadZ = maxZ - minZ;
+		int a = spreadX >= spreadY && spreadX >= spreadZ ? 0 : (spreadY >= spreadZ ? 1 : 2);
+		double [] p = a == 0 ? px : (a == 1 ? py : pz);
+		int mid = (lo + hi) >>> 1;
+		select(p, lo, hi - 1, mid);
+		axis[mid] = (byte) a;
+		return mid;
+	}
+
+	/** quickselect: reorder range left to right (inclusive) so position k holds the k-th smallest p **/
+	private void select(double [] p, int left, int right, int k) {
+		while (right > left) {
+			// median of three as pivot guards against sorted input
+			int mid = (left + right) >>> 1;
+			if (p[mid] < p[left]) {
+				swap(mid, left);
+			}
+			if (p[right] < p[left]) {
+				swap(right, left);
+			}
+			if (p[right] < p[mid]) {
+				swap(right, mid);
+			}
+			double pivot = p[mid];
+			int i = left, j = right;
+			while (i <= j) {
+				while (p[i] < pivot) {
+					i++;
+				}
+				while (p[j] > pivot) {
+					j--;
+				}
+				if (i <= j) {
+					swap(i, j);
+					i++;
+					j--;
+				}
+			}
+			if (k <= j) {
+				right = j;
+			} else if (k >= i) {
+				left = i;
+			} else {
+				return;
+			}
+		}
+	}
+
+	private void swap(int i, int j) {
+		int id = ids[i]; ids[i] = ids[j]; ids[j] = id;
+		double t = px[i]; px[i] = px[j]; px[j] = t;
+		t = py[i]; py[i] = py[j]; py[j] = t;
+		t = pz[i]; pz[i] = pz[j]; pz[j] = t;
+	}
+
+	public int size() {
+		return ids.length;
+	}
+
+	/** id of node with centre closest to given latitude and longitude in degrees, or -1 if the index is empty **/
+	public int nearest(double latitude, double longitude) {
+		double [] cart = SphericalMath.spherical2Cartesian(latitude, longitude);
+		return nearest(cart[0], cart[1], cart[2]);
+	}
+
+	/** id of node with centre closest to point (qx, qy, qz) on the unit sphere, or -1 if the index is empty **/
+	int nearest(double qx, double qy, double qz) {
+		Nearest best = new Nearest();
+		search(0, ids.length, qx, qy, qz, best);
+		return best.id;
+	}
+
+	/** as nearest(qx, qy, qz), but starting with node hint as best match, which prunes most of the tree 
+	 * when the hint is close, e.g. the answer for a nearby point **/
+	int nearest(double qx, double qy, double qz, int hint, Nearest best) {
+		int i = position[hint];
+		double dx = px[i] - qx, dy = py[i] - qy, dz = pz[i] - qz;
+		best.id = hint;
+		best.dist2 = dx * dx + dy * dy + dz * dz;
+		search(0, ids.length, qx, qy, qz, best);
+		return best.id;
+	}
+
+	/** ids of nodes closest to every point given by latitudes and longitudes in degrees.
+	 * Points are sorted along a space filling curve, so consecutive lookups visit the same part of the tree 
+	 * and the previous answer is a good hint for the next one. Chunks of sorted points are looked up in parallel. **/
+	public int [] nearest(double [] latitudes, double [] longitudes) {
+		final int m = latitudes.length;
+		if (longitudes.length != m) {
+			throw new IllegalArgumentException("Expected as many longitudes as latitudes, but got " + longitudes.length + " and " + m);
+		}
+		final int [] result = new int[m];
+		if (ids.length == 0) {
+			Arrays.fill(result, -1);
+			return result;
+		}
+		final double [] qx = new double[m], qy = new double[m], qz = new double[m];
+		// Morton code over the cube around the sphere in the upper bits, point index in the lower 32 bits
+		final long [] order = new long[m];
+		for (int k = 0; k < m; k++) {
+			double [] cart = SphericalMath.spherical2Cartesian(latitudes[k], longitudes[k]);
+			qx[k] = cart[0];
+			qy[k] = cart[1];
+			qz[k] = cart[2];
+			order[k] = (morton(cart[0], cart[1], cart[2]) << 32) | k;
+		}
+		Arrays.parallelSort(order);
+
+		/** looks up sorted points from to too, splitting the range till chunks of BATCH_CHUNK remain **/
+		class LookupTask extends RecursiveAction {
+			private static final long serialVersionUID = 1L;
+			final int from, too;
+
+			LookupTask(int from, int too) {
+				this.from = from;
+				this.too = too;
+			}
+
+			@Override
+			protected void compute() {
+				if (too - from > BATCH_CHUNK) {
+					int mid = (from + too) >>> 1;
+					invokeAll(new LookupTask(from, mid), new LookupTask(mid, too));
+					return;
+				}
+				Nearest best = new Nearest();
+				int hint = -1;
+				for (int i = from; i < too; i++) {
+					int k = (int) order[i];
+					if (hint < 0) {
+						best.id = -1;
+						best.dist2 = Double.POSITIVE_INFINITY;
+						search(0, ids.length, qx[k], qy[k], qz[k], best);
+						hint = best.id;
+					} else {
+						hint = nearest(qx[k], qy[k], qz[k], hint, best);
+					}
+					result[k] = hint;
+				}
+			}
+		}
+		if (m > BATCH_CHUNK) {
+			ForkJoinPool.commonPool().invoke(new LookupTask(0, m));
+		} else {
+			new LookupTask(0, m).compute();
+		}
+		return result;
+	}
+
+	/** interleaved bits of x, y, z in [-1,1] quantised to 10 bits each **/
+	private static long morton(double x, double y, double z) {
+		return spread(quantise(x)) | (spread(quantise(y)) << 1) | (spread(quantise(z)) << 2);
+	}
+
+	private static long quantise(double c) {
+		return Math.max(0, Math.min(1023, (long) ((c + 1) * 512)));
+	}
+
+	/** put 10 bits of v in every third bit **/
+	private static long spread(long v) {
+		long r = 0;
+		for (int b = 0; b < 10; b++) {
+			r |= ((v >> b) & 1) << (3 * b);
+		}
+		return r;
+	}
+
+	/** best match so far of a lookup **/
+	static class Nearest {
+		int id = -1;
+		double dist2 = Double.POSITIVE_INFINITY;
+	}
+
+	void search(int lo, int hi, double qx, double qy, double qz, Nearest best) {
+		while (hi > lo) {
+			int mid = (lo + hi) >>> 1;
+			double dx = px[mid] - qx, dy = py[mid] - qy, dz = pz[mid] - qz;
+			double d2 = dx * dx + dy * dy + dz * dz;
+			if (d2 < best.dist2) {
+				best.dist2 = d2;
+				best.id = ids[mid];
+			}
+			double diff = axis[mid] == 0 ? qx - px[mid] : (axis[mid] == 1 ? qy - py[mid] : qz - pz[mid]);
+			// descend into the half containing the query first, the other one only if it can be closer
+			if (diff < 0) {
+				search(lo, mid, qx, qy, qz, best);
+				if (diff * diff >= best.dist2) {
+					return;
+				}
+				lo = mid + 1;
+			} else {
+				search(mid + 1, hi, qx, qy, qz, best);
+				if (diff * diff >= best.dist2) {
+					return;
+				}
+				hi = mid;
+			}
+		}
+	}
+}
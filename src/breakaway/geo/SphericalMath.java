@@ -29,6 +29,7 @@ package breakaway.geo;
 
 
 import beast.base.core.Description;
+import sphericalGeo.GreatCircleDistance;
 
 @Description("math on a sphere")
 public class SphericalMath  {
@@ -119,4 +120,56 @@ public class SphericalMath  {
 		return point;
 	} // map
     
+
+	/** unit vectors for latitudes and longitudes in degrees, stored per coordinate in x, y and z **/
+	public static void spherical2Cartesian(double [] latitudes, double [] longitudes, double [] x, double [] y, double [] z) {
+		for (int i = 0; i < latitudes.length; i++) {
+			double phi = longitudes[i] * Math.PI / 180.0;
+			double theta = (90 - latitudes[i]) * Math.PI / 180.0;
+			double sinTheta = Math.sin(theta);
+			x[i] = sinTheta * Math.cos(phi);
+			y[i] = sinTheta * Math.sin(phi);
+			z[i] = Math.cos(theta);
+		}
+	}
+
+	/** distance per radian of GreatCircleDistance.pairwiseDistance(), see greatCircleDistances() **/
+	private static double greatCircleScale = Double.NaN;
+
+	public static double getGreatCircleScale() {
+		if (Double.isNaN(greatCircleScale)) {
+			// a quarter of the equator
+			greatCircleScale = GreatCircleDistance.pairwiseDistance(new double[]{0, 0}, new double[]{0, 90}) / (Math.PI / 2);
+		}
+		return greatCircleScale;
+	}
+
+	/** great circle distances, in units of GreatCircleDistance.pairwiseDistance(), from unit vector (xi, yi, zi) 
+	 * to unit vectors from to too - 1 in x, y and z, stored in out starting at offset.
+	 * Angles are calculated as atan2(|a x b|, a . b) which, unlike the arc cosine of the dot product, 
+	 * stays accurate for nearby points. Uses the JDK Vector API when BEAST runs with 
+	 * --add-modules jdk.incubator.vector, see KernelLoader, and otherwise a loop without branches that the JIT can unroll. **/
+	public static void greatCircleDistances(double xi, double yi, double zi, double [] x, double [] y, double [] z, 
+			int from, int too, double [] out, int offset) {
+		GREAT_CIRCLE_KERNEL.distances(getGreatCircleScale(), xi, yi, zi, x, y, z, from, too, out, offset);
+	}
+
+	/** row of great circle distances in radians times scale, see greatCircleDistances() **/
+	interface GreatCircleKernel {
+		void distances(double scale, double xi, double yi, double zi, double [] x, double [] y, double [] z, 
+				int from, int too, double [] out, int offset);
+	}
+
+	final static GreatCircleKernel SCALAR_GREAT_CIRCLE_KERNEL = (scale, xi, yi, zi, x, y, z, from, too, out, offset) -> {
+		for (int j = from; j < too; j++) {
+			double dot = xi * x[j] + yi * y[j] + zi * z[j];
+			double cx = yi * z[j] - zi * y[j];
+			double cy = zi * x[j] - xi * z[j];
+			double cz = xi * y[j] - yi * x[j];
+			out[offset + j - from] = scale * Math.atan2(Math.sqrt(cx * cx + cy * cy + cz * cz), dot);
+		}
+	};
+
+	final static GreatCircleKernel GREAT_CIRCLE_KERNEL = KernelLoader.load("breakaway.geo.VectorGreatCircleKernel", 
+			GreatCircleKernel.class, SCALAR_GREAT_CIRCLE_KERNEL);
 }
@@ -0,0 +1,83 @@
+package breakaway.geo;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+import beast.base.core.Description;
+
+/**
+ * Distances from a subset S of the graph nodes, e.g. tip locations and their candidate ancestors,
+ * either to the nodes in S only (|S| x |S|) or to all nodes (|S| x n).
+ * Row i holds distances from graph node getNodeID(i), and indexOf() maps graph node ids back to rows.
+ * Unreachable nodes have distance 0, as in DistanceMatrix.
+ */
+@Description("distances among a subset of graph nodes, with mapping between graph node ids and rows")
+public class SubsetDistanceMatrix implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	/** graph node id of every row **/
+	final int [] nodeIDs;
+	/** row of every graph node, -1 if it is not in the subset **/
+	final int [] index;
+	/** whether rows contain distances to all graph nodes, or only to the subset **/
+	final boolean allTargets;
+	final double [][] rows;
+
+	SubsetDistanceMatrix(int [] nodeIDs, int graphSize, boolean allTargets) {
+		this.nodeIDs = nodeIDs.clone();
+		this.allTargets = allTargets;
+		index = new int[graphSize];
+		Arrays.fill(index, -1);
+		// with duplicate ids, the first occurrence is used
+		for (int i = nodeIDs.length - 1; i >= 0; i--) {
+			index[nodeIDs[i]] = i;
+		}
+		rows = new double[nodeIDs.length][];
+	}
+
+	/** number of nodes in the subset **/
+	public int getSize() {
+		return nodeIDs.length;
+	}
+
+	public int getNodeID(int i) {
+		return nodeIDs[i];
+	}
+
+	/** row of graph node, or -1 if it is not in the subset **/
+	public int indexOf(int nodeID) {
+		return index[nodeID];
+	}
+
+	public boolean hasAllTargets() {
+		return allTargets;
+	}
+
+	/** distance from i-th to j-th node of the subset **/
+	public double getDistance(int i, int j) {
+		return allTargets ? rows[i][nodeIDs[j]] : rows[i][j];
+	}
+
+	/** distance between graph nodes. The source needs to be in the subset, and so does
+	 * the target unless the matrix has all targets.
+	 * @throws IllegalArgumentException if a node is not covered by the matrix **/
+	public double getNodeDistance(int fromNodeID, int toNodeID) {
+		int i = index[fromNodeID];
+		if (i < 0) {
+			throw new IllegalArgumentException("Node " + fromNodeID + " is not in the subset");
+		}
+		if (allTargets) {
+			return rows[i][toNodeID];
+		}
+		int j = index[toNodeID];
+		if (j < 0) {
+			throw new IllegalArgumentException("Node " + toNodeID + " is not in the subset");
+		}
+		return rows[i][j];
+	}
+
+	/** copy of row i: distances to the subset, or to all graph nodes if the matrix has all targets **/
+	public double [] getRow(int i) {
+		return rows[i].clone();
+	}
+}
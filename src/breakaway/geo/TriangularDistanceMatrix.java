@@ -0,0 +1,146 @@
+package breakaway.geo;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+
+import beast.base.core.Description;
+
+/**
+ * Only entries (i,j) with i < j are stored, row after row, in a single array of n(n-1)/2 doubles.
+ * The diagonal is zero, and (j,i) is looked up as (i,j), which halves memory compared to a full
+ * matrix, but assumes distances are symmetric. This is checked when the matrix is built.
+ */
+@Description("symmetric distance matrix stored as packed upper triangle")
+public class TriangularDistanceMatrix extends DistanceMatrix {
+	private static final long serialVersionUID = 1L;
+
+	/** relative tolerance for accepting d(i,j) and d(j,i) as equal **/
+	final static double SYMMETRY_TOLERANCE = 1e-9;
+
+	final int n;
+	final double [] packed;
+
+	/** atomic access to entries of packed, used to check symmetry while the matrix is being built **/
+	private static final VarHandle ENTRY = MethodHandles.arrayElementVarHandle(double [].class);
+	/** whether putRow() checks symmetry, which is the case until doneBuilding() **/
+	transient private boolean building;
+
+	/** empty matrix of given size, to be filled with putRow() or set() **/
+	TriangularDistanceMatrix(int n) {
+		long size = (long) n * (n - 1) / 2;
+		if (size > Integer.MAX_VALUE - 8) {
+			throw new IllegalArgumentException("Too many nodes (" + n + ") for a triangular distance matrix: use lazy distances instead");
+		}
+		this.n = n;
+		packed = new double[(int) size];
+		// entries not put yet are NaN, see putRow()
+		Arrays.fill(packed, Double.NaN);
+		building = true;
+	}
+
+	/** pack full matrix, throws IllegalArgumentException if it is not symmetric **/
+	TriangularDistanceMatrix(double [][] distances) {
+		this(distances.length);
+		for (int i = 0; i < n; i++) {
+			putRow(i, distances[i]);
+		}
+		doneBuilding();
+	}
+
+	/** position of (i,j) in packed array for i < j **/
+	final int index(int i, int j) {
+		return (int) ((long) i * (2 * n - i - 1) / 2) + j - i - 1;
+	}
+
+	@Override
+	public int getSize() {
+		return n;
+	}
+
+	@Override
+	public double getDistance(int i, int j) {
+		if (i < j) {
+			return packed[index(i, j)];
+		} else if (i > j) {
+			return packed[index(j, i)];
+		}
+		return 0;
+	}
+
+	@Override
+	public double [] getRow(int i, double [] row) {
+		if (row == null) {
+			row = new double[n];
+		}
+		for (int j = 0; j < i; j++) {
+			row[j] = packed[index(j, i)];
+		}
+		row[i] = 0;
+		int offset = index(i, i + 1) - (i + 1);
+		for (int j = i + 1; j < n; j++) {
+			row[j] = packed[offset + j];
+		}
+		return row;
+	}
+
+	/** sets both (i,j) and (j,i) for all j, so the matrix stays symmetric **/
+	@Override
+	public void setRow(int i, double [] row) {
+		for (int j = 0; j < n; j++) {
+			set(i, j, row[j]);
+		}
+	}
+
+	/** sets both (i,j) and (j,i) **/
+	public void set(int i, int j, double distance) {
+		if (i < j) {
+			packed[index(i, j)] = distance;
+		} else if (i > j) {
+			packed[index(j, i)] = distance;
+		}
+	}
+
+	/** store upper part of row i, and check the whole row against rows put earlier.
+	 * The first of rows i and j to be put stores its value for (i,j) in the still empty (NaN) entry, and
+	 * the second compares its value with it, so every pair is checked once whatever order rows are put in.
+	 * The entry ends up with the value from the row with the smaller index, as without checking.
+	 * Safe to call from multiple threads for different rows.
+	 * @throws IllegalArgumentException if the row does not match the transpose of an earlier row **/
+	@Override
+	void putRow(int i, double [] row) {
+		int offset = index(i, i + 1) - (i + 1);
+		if (!building) {
+			for (int j = i + 1; j < n; j++) {
+				packed[offset + j] = row[j];
+			}
+			return;
+		}
+		for (int j = 0; j < i; j++) {
+			double d = (double) ENTRY.compareAndExchange(packed, index(j, i), Double.NaN, row[j]);
+			if (d == d) {
+				checkSymmetry(j, i, d, row[j]);
+			}
+		}
+		for (int j = i + 1; j < n; j++) {
+			double d = (double) ENTRY.compareAndExchange(packed, offset + j, Double.NaN, row[j]);
+			if (d == d) {
+				checkSymmetry(j, i, d, row[j]);
+				ENTRY.setVolatile(packed, offset + j, row[j]);
+			}
+		}
+	}
+
+	/** @throws IllegalArgumentException if d(j,i) and d(i,j) differ by more than SYMMETRY_TOLERANCE **/
+	private static void checkSymmetry(int j, int i, double dji, double dij) {
+		if (Math.abs(dji - dij) > SYMMETRY_TOLERANCE * Math.max(1.0, Math.abs(dji))) {
+			throw new IllegalArgumentException("Distances are not symmetric: d(" + j + "," + i + ")=" + dji + " but d(" + i + "," + j + ")=" + dij);
+		}
+	}
+
+	/** stop checking symmetry in putRow() **/
+	@Override
+	void doneBuilding() {
+		building = false;
+	}
+}
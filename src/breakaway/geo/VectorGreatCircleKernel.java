@@ -0,0 +1,28 @@
+package breakaway.geo;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/** SphericalMath.GreatCircleKernel using the JDK Vector API, loaded through KernelLoader **/
+class VectorGreatCircleKernel implements SphericalMath.GreatCircleKernel {
+	final static VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+	@Override
+	public void distances(double scale, double xi, double yi, double zi, double [] x, double [] y, double [] z,
+			int from, int too, double [] out, int offset) {
+		int j = from;
+		for (int upper = from + SPECIES.loopBound(too - from); j < upper; j += SPECIES.length()) {
+			DoubleVector xj = DoubleVector.fromArray(SPECIES, x, j);
+			DoubleVector yj = DoubleVector.fromArray(SPECIES, y, j);
+			DoubleVector zj = DoubleVector.fromArray(SPECIES, z, j);
+			DoubleVector dot = xj.mul(xi).add(yj.mul(yi)).add(zj.mul(zi));
+			DoubleVector cx = zj.mul(yi).sub(yj.mul(zi));
+			DoubleVector cy = xj.mul(zi).sub(zj.mul(xi));
+			DoubleVector cz = yj.mul(xi).sub(xj.mul(yi));
+			DoubleVector cross = cx.mul(cx).add(cy.mul(cy)).add(cz.mul(cz)).sqrt();
+			cross.lanewise(VectorOperators.ATAN2, dot).mul(scale).intoArray(out, offset + j - from);
+		}
+		SphericalMath.SCALAR_GREAT_CIRCLE_KERNEL.distances(scale, xi, yi, zi, x, y, z, j, too, out, offset + j - from);
+	}
+}
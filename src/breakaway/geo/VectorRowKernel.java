@@ -0,0 +1,70 @@
+package breakaway.geo;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/** GraphSubstitutionModel.RowKernel using the JDK Vector API, loaded through KernelLoader.
+ * Sums are accumulated per lane, so they can differ from the scalar kernel in the last bits. **/
+class VectorRowKernel implements GraphSubstitutionModel.RowKernel {
+	final static VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+	@Override
+	public void expNormalise(double [] logP, double max) {
+		int n = logP.length;
+		DoubleVector sums = DoubleVector.zero(SPECIES);
+		int i = 0;
+		for (int upper = SPECIES.loopBound(n); i < upper; i += SPECIES.length()) {
+			DoubleVector d = DoubleVector.fromArray(SPECIES, logP, i);
+			// NaNs give zero probability
+			DoubleVector p = d.sub(max).lanewise(VectorOperators.EXP).blend(0.0, d.test(VectorOperators.IS_NAN));
+			p.intoArray(logP, i);
+			sums = sums.add(p);
+		}
+		double sum = sums.reduceLanes(VectorOperators.ADD);
+		for (; i < n; i++) {
+			double d = logP[i];
+			double p = d == d ? Math.exp(d - max) : 0.0;
+			logP[i] = p;
+			sum += p;
+		}
+		// normalise probabilities so they sum to unity
+		double scale = 1.0 / sum;
+		i = 0;
+		for (int upper = SPECIES.loopBound(n); i < upper; i += SPECIES.length()) {
+			DoubleVector.fromArray(SPECIES, logP, i).mul(scale).intoArray(logP, i);
+		}
+		for (; i < n; i++) {
+			logP[i] *= scale;
+		}
+	}
+
+	@Override
+	public double logNormalRow(double [] row, double minDistance, double inverseVariance, double halfLogInverseVariance) {
+		int n = row.length;
+		double halfInverseVariance = 0.5 * inverseVariance;
+		DoubleVector maxs = DoubleVector.broadcast(SPECIES, Double.NEGATIVE_INFINITY);
+		int i = 0;
+		for (int upper = SPECIES.loopBound(n); i < upper; i += SPECIES.length()) {
+			DoubleVector distance = DoubleVector.fromArray(SPECIES, row, i);
+			distance = distance.blend(minDistance, distance.eq(0.0));
+			DoubleVector logP = distance.lanewise(VectorOperators.LOG).add(halfLogInverseVariance)
+					.sub(distance.mul(distance).mul(halfInverseVariance));
+			logP.intoArray(row, i);
+			// unreachable nodes have infinite distance, and so NaN log probability, which should not be the maximum
+			VectorMask<Double> isNaN = logP.test(VectorOperators.IS_NAN);
+			maxs = maxs.max(logP.blend(Double.NEGATIVE_INFINITY, isNaN));
+		}
+		double max = maxs.reduceLanes(VectorOperators.MAX);
+		for (; i < n; i++) {
+			double distance = row[i] == 0 ? minDistance : row[i];
+			double logP = Math.log(distance) + halfLogInverseVariance -0.5 * distance * distance * inverseVariance;
+			row[i] = logP;
+			if (logP > max) {
+				max = logP;
+			}
+		}
+		return max;
+	}
+}
@@ -0,0 +1,151 @@
+package test.breakaway.geo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import beast.base.inference.parameter.IntegerParameter;
+import breakaway.geo.CoarseGraph;
+import breakaway.geo.Graph;
+
+/** super-nodes of a coarse graph should partition the fine nodes consistently over levels, locations should map
+ * between levels without loss, and coarse distances should approximate fine ones for distant nodes **/
+public class CoarseGraphTest {
+
+	@Test
+	public void testLevels() {
+		GridGraph grid = new GridGraph(25, 10, 91);
+		CoarseGraph coarse = coarsen(grid.toGraph(), 3);
+		assertEquals(3, coarse.getLevelCount());
+
+		// nodes of every level are numbered 0 ... count - 1, and each contains one or two nodes of the level below
+		int [] ids = new int[grid.n];
+		for (int i = 0; i < grid.n; i++) {
+			ids[i] = i;
+		}
+		int count = grid.n;
+		for (int l = 0; l < coarse.getLevelCount(); l++) {
+			int [] children = new int[count];
+			int parentCount = 0;
+			for (int i = 0; i < count; i++) {
+				int parent = coarse.getParent(l, i);
+				assertTrue(parent >= 0 && parent < count);
+				children[parent]++;
+				parentCount = Math.max(parentCount, parent + 1);
+			}
+			for (int c = 0; c < parentCount; c++) {
+				assertTrue("node " + c + " at level " + (l + 1) + " has " + children[c] + " children", children[c] == 1 || children[c] == 2);
+			}
+			if (l == 0) {
+				// pairs are adjacent in the fine graph
+				for (int i = 0; i < grid.n; i++) {
+					for (int j = i + 1; j < grid.n; j++) {
+						if (coarse.getParent(0, i) == coarse.getParent(0, j)) {
+							assertTrue(grid.neighbourIndex(i, j) >= 0);
+						}
+					}
+				}
+			}
+			for (int i = 0; i < grid.n; i++) {
+				ids[i] = coarse.getParent(l, ids[i]);
+			}
+			count = parentCount;
+		}
+		assertEquals(count, coarse.getSize());
+
+		// following parents from the fine graph leads to the super-node, whose fine nodes partition the fine graph
+		Set<Integer> seen = new HashSet<>();
+		for (int i = 0; i < grid.n; i++) {
+			assertEquals(ids[i], coarse.getCoarseNode(i));
+		}
+		for (int c = 0; c < coarse.getSize(); c++) {
+			int [] fineNodes = coarse.getFineNodes(c);
+			assertTrue(fineNodes.length >= 1 && fineNodes.length <= 8);
+			boolean hasRepresentative = false;
+			for (int i : fineNodes) {
+				assertEquals(c, coarse.getCoarseNode(i));
+				assertTrue(seen.add(i));
+				hasRepresentative |= i == coarse.getRepresentative(c);
+			}
+			assertTrue(hasRepresentative);
+		}
+		assertEquals(grid.n, seen.size());
+	}
+
+	@Test
+	public void testCoarsenAndRefine() {
+		GridGraph grid = new GridGraph(20, 10, 92);
+		CoarseGraph coarse = coarsen(grid.toGraph(), 2);
+		Random random = new Random(93);
+		int dimension = 50;
+		IntegerParameter fine = new IntegerParameter(new Integer[dimension]);
+		IntegerParameter coarseLocations = new IntegerParameter(new Integer[dimension]);
+		for (int k = 0; k < dimension; k++) {
+			fine.setValue(k, random.nextInt(grid.n));
+		}
+		Integer [] original = fine.getValues();
+
+		// fine locations inside their super-node are kept
+		coarse.coarsen(fine, coarseLocations);
+		for (int k = 0; k < dimension; k++) {
+			assertEquals(coarse.getCoarseNode(original[k]), (int) coarseLocations.getValue(k));
+		}
+		coarse.refine(coarseLocations, fine);
+		for (int k = 0; k < dimension; k++) {
+			assertEquals(original[k], fine.getValue(k));
+		}
+
+		// new coarse locations move fine locations into their super-node, and coarsen back to the same
+		for (int k = 0; k < dimension; k++) {
+			coarseLocations.setValue(k, random.nextInt(coarse.getSize()));
+		}
+		Integer [] coarseValues = coarseLocations.getValues();
+		coarse.refine(coarseLocations, fine);
+		for (int k = 0; k < dimension; k++) {
+			int c = coarseValues[k];
+			int f = fine.getValue(k);
+			assertEquals(c, coarse.getCoarseNode(f));
+			assertEquals(coarse.getCoarseNode(original[k]) == c ? (int) original[k] : coarse.getRepresentative(c), f);
+		}
+		coarse.coarsen(fine, coarseLocations);
+		for (int k = 0; k < dimension; k++) {
+			assertEquals(coarseValues[k], coarseLocations.getValue(k));
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRefineInvalidLocation() {
+		GridGraph grid = new GridGraph(10, 10, 94);
+		CoarseGraph coarse = coarsen(grid.toGraph(), 1);
+		IntegerParameter fine = new IntegerParameter(new Integer[] {0});
+		coarse.refine(new IntegerParameter(new Integer[] {coarse.getSize()}), fine);
+	}
+
+	@Test
+	public void testDistancesOfDistantNodes() {
+		GridGraph grid = new GridGraph(30, 10, 95);
+		CoarseGraph coarse = coarsen(grid.toGraph(), 1);
+		coarse.setUpLazyDistances(1 << 24);
+		double span = grid.dijkstra(0)[grid.n - 1];
+		for (int s = 0; s < grid.n; s += 11) {
+			double [] expected = grid.dijkstra(s);
+			for (int t = 0; t < grid.n; t++) {
+				if (expected[t] > span / 4) {
+					double ratio = coarse.getDistance(coarse.getCoarseNode(s), coarse.getCoarseNode(t)) / expected[t];
+					assertTrue("ratio " + ratio + " from " + s + " to " + t, ratio > 0.5 && ratio < 2);
+				}
+			}
+		}
+	}
+
+	static CoarseGraph coarsen(Graph fine, int levels) {
+		CoarseGraph coarse = new CoarseGraph();
+		coarse.initByName("fineGraph", fine, "levels", levels);
+		return coarse;
+	}
+}
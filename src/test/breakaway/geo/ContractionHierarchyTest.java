@@ -0,0 +1,177 @@
+package test.breakaway.geo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import breakaway.geo.ContractionHierarchy;
+import breakaway.geo.Graph;
+import breakaway.geo.GraphNode;
+
+/** distances and paths from a contraction hierarchy should match Dijkstra searches on the original graph,
+ * and corrupt hierarchies should be rejected when loading **/
+public class ContractionHierarchyTest {
+	final static double EPSILON = 1e-9;
+
+	@Test
+	public void testDistancesMatchDijkstra() {
+		GridGraph grid = new GridGraph(20, 10, 7);
+		Graph graph = grid.toGraph();
+		ContractionHierarchy hierarchy = graph.buildContractionHierarchy();
+		checkDistances(grid, graph, hierarchy, new Random(8));
+	}
+
+	@Test
+	public void testPathsMatchDijkstra() {
+		GridGraph grid = new GridGraph(20, 10, 9);
+		Graph graph = grid.toGraph();
+		graph.buildContractionHierarchy();
+		Random random = new Random(10);
+		for (int q = 0; q < 100; q++) {
+			int s = random.nextInt(grid.n);
+			int t = random.nextInt(grid.n);
+			List<GraphNode> path = new ArrayList<>();
+			graph.shortestPath(graph.nodes.get(s), graph.nodes.get(t), path);
+			assertEquals(grid.dijkstra(s)[t], ShortestPathTest.checkPath(grid, path, s, t), EPSILON);
+		}
+	}
+
+	@Test
+	public void testDirectedWeights() {
+		GridGraph grid = new GridGraph(15, 10, 11);
+		Graph graph = grid.toGraph();
+		Random random = new Random(12);
+		// make some edges cheaper in one direction only
+		int [] nodeIDs = new int[50];
+		int [] neighbourIndices = new int[50];
+		double [] scales = new double[50];
+		for (int k = 0; k < nodeIDs.length; k++) {
+			nodeIDs[k] = random.nextInt(grid.n);
+			neighbourIndices[k] = random.nextInt(grid.edges.get(nodeIDs[k]).size());
+			scales[k] = 0.1;
+			grid.scale(nodeIDs[k], neighbourIndices[k], scales[k]);
+		}
+		graph.scaleDistances(nodeIDs, neighbourIndices, scales);
+		ContractionHierarchy hierarchy = graph.buildContractionHierarchy();
+		checkDistances(grid, graph, hierarchy, random);
+	}
+
+	@Test
+	public void testSaveAndLoad() throws IOException {
+		GridGraph grid = new GridGraph(15, 10, 13);
+		Graph graph = grid.toGraph();
+		graph.buildContractionHierarchy();
+		File file = File.createTempFile("hierarchy", ".bin");
+		file.deleteOnExit();
+		graph.saveContractionHierarchy(file);
+
+		Graph other = grid.toGraph();
+		ContractionHierarchy hierarchy = other.loadContractionHierarchy(file);
+		checkDistances(grid, other, hierarchy, new Random(14));
+	}
+
+	@Test
+	public void testLoadRejectsCorruptHierarchy() throws IOException {
+		GridGraph grid = new GridGraph(10, 10, 15);
+		Graph graph = grid.toGraph();
+		ContractionHierarchy hierarchy = graph.buildContractionHierarchy();
+		File file = File.createTempFile("hierarchy", ".bin");
+		file.deleteOnExit();
+		graph.saveContractionHierarchy(file);
+		byte [] bytes = Files.readAllBytes(file.toPath());
+		int edgeCount = grid.sources.length + hierarchy.getShortcutCount();
+
+		// repeated level
+		checkRejected(file, bytes, RANK, 1, getInt(bytes, RANK, 0));
+		// shortcut that refers to itself, which would never finish unpacking
+		checkRejected(file, bytes, EDGE_FIRST, edgeCount - 1, edgeCount - 1);
+		// edge to a node that does not exist
+		checkRejected(file, bytes, EDGE_TO, 0, grid.n);
+		// upward edge that does not exist
+		checkRejected(file, bytes, UP_EDGES, 0, edgeCount);
+		// upward edge of another node
+		checkRejected(file, bytes, UP_EDGES, 0, getInt(bytes, DOWN_EDGES, 0));
+	}
+
+	/** int arrays of a serialised ContractionHierarchy, in the order they are written **/
+	final static int DOWN_EDGES = 0, EDGE_FIRST = 2, EDGE_TO = 5, RANK = 7, UP_EDGES = 8;
+
+	private void checkRejected(File file, byte [] bytes, int array, int index, int value) throws IOException {
+		byte [] corrupt = bytes.clone();
+		ByteBuffer.wrap(corrupt).putInt(arrayPosition(corrupt, array) + 4 * index, value);
+		Files.write(file.toPath(), corrupt);
+		try {
+			grid().loadContractionHierarchy(file);
+			fail("corrupt contraction hierarchy was loaded");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	private static Graph grid() {
+		return new GridGraph(10, 10, 15).toGraph();
+	}
+
+	private static int getInt(byte [] bytes, int array, int index) {
+		return ByteBuffer.wrap(bytes).getInt(arrayPosition(bytes, array) + 4 * index);
+	}
+
+	/** position of the first element of the array-th array field. Fields are written in order of their names
+	 * after the primitive ones, each array as TC_ARRAY, a class description or a reference to one, length and elements **/
+	private static int arrayPosition(byte [] bytes, int array) {
+		ByteBuffer buf = ByteBuffer.wrap(bytes);
+		// the first array comes with the first description of int []
+		int position = indexOf(bytes, new byte[] {0x75, 0x72, 0, 2, '[', 'I'});
+		for (int k = 0; ; k++) {
+			buf.position(position + 1);
+			char type;
+			if (buf.get() == 0x72) {
+				byte [] name = new byte[buf.getShort()];
+				buf.get(name);
+				type = (char) name[1];
+				// serialVersionUID, flags, no fields, end of block data, no super class
+				buf.position(buf.position() + 8 + 1 + 2 + 1 + 1);
+			} else {
+				// reference to a description, which is a double [] for the only array that is not an int []
+				buf.getInt();
+				type = k == 6 ? 'D' : 'I';
+			}
+			int length = buf.getInt();
+			if (k == array) {
+				return buf.position();
+			}
+			position = buf.position() + length * (type == 'D' ? 8 : 4);
+		}
+	}
+
+	private static int indexOf(byte [] bytes, byte [] pattern) {
+		for (int i = 0; i + pattern.length <= bytes.length; i++) {
+			if (Arrays.equals(Arrays.copyOfRange(bytes, i, i + pattern.length), pattern)) {
+				return i;
+			}
+		}
+		throw new IllegalArgumentException("pattern not found");
+	}
+
+	private void checkDistances(GridGraph grid, Graph graph, ContractionHierarchy hierarchy, Random random) {
+		for (int q = 0; q < 20; q++) {
+			int s = random.nextInt(grid.n);
+			double [] expected = grid.dijkstra(s);
+			for (int t = 0; t < grid.n; t++) {
+				assertEquals("d(" + s + "," + t + ")", expected[t], hierarchy.getDistance(s, t), EPSILON);
+				// without distance matrix, the graph answers from the hierarchy
+				assertEquals("d(" + s + "," + t + ")", expected[t], graph.getDistance(s, t), EPSILON);
+			}
+		}
+	}
+}
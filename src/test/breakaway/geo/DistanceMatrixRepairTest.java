@@ -0,0 +1,150 @@
+package test.breakaway.geo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import breakaway.geo.DistanceMatrix;
+import breakaway.geo.Graph;
+
+/** distances repaired by Graph.scaleDistances(), or after GraphNode.scaleDistance() by Graph.updateDistances(),
+ * should match distances calculated from scratch **/
+public class DistanceMatrixRepairTest {
+	final static double EPSILON = 1e-9;
+
+	@Test
+	public void testRepairMatchesRecalculation() {
+		checkRepair(DistanceMatrix.Precision.float64, false, EPSILON, 0.5);
+	}
+
+	@Test
+	public void testRepairOfCompressedMatrixStaysWithinStorageError() {
+		// int16 quantises rows of distances up to about 30 into 65535 levels
+		checkRepair(DistanceMatrix.Precision.int16, false, 1e-3, 0.5);
+	}
+
+	@Test
+	public void testRepairOfTriangularMatrix() {
+		// rows share entries with columns, so writing one row changes what later rows see
+		checkRepair(DistanceMatrix.Precision.float64, true, EPSILON, 0.5);
+		checkRepair(DistanceMatrix.Precision.float64, true, EPSILON, 1.0);
+	}
+
+	/** scale a few edges at a time, increasing and decreasing weights, and compare all distances with Dijkstra 
+	 * @param decreaseFraction probability of an edge getting a lower weight **/
+	private void checkRepair(DistanceMatrix.Precision precision, boolean symmetric, double tolerance, double decreaseFraction) {
+		GridGraph grid = new GridGraph(15, 10, 1);
+		Graph graph = grid.toGraph();
+		graph.distancePrecisionInput.setValue(precision, graph);
+		graph.symmetricInput.setValue(symmetric, graph);
+		DistanceMatrix matrix = graph.distances(1);
+		Random random = new Random(2);
+		for (int round = 0; round < 20; round++) {
+			int count = 1 + random.nextInt(4);
+			int [] nodeIDs = new int[2 * count];
+			int [] neighbourIndices = new int[2 * count];
+			double [] scales = new double[2 * count];
+			for (int k = 0; k < count; k++) {
+				int u = random.nextInt(grid.n);
+				int i = random.nextInt(grid.edges.get(u).size());
+				int v = grid.targets[grid.edges.get(u).get(i)];
+				double scale = random.nextDouble() < decreaseFraction ? 0.1 + 0.8 * random.nextDouble() : 1.5 + 5 * random.nextDouble();
+				// both directions, so the graph stays symmetric
+				nodeIDs[2 * k] = u;
+				neighbourIndices[2 * k] = i;
+				nodeIDs[2 * k + 1] = v;
+				neighbourIndices[2 * k + 1] = grid.neighbourIndex(v, u);
+				scales[2 * k] = scales[2 * k + 1] = scale;
+			}
+			for (int k = 0; k < nodeIDs.length; k++) {
+				grid.scale(nodeIDs[k], neighbourIndices[k], scales[k]);
+			}
+			int recalculated = graph.scaleDistances(nodeIDs, neighbourIndices, scales);
+			assertTrue(recalculated <= grid.n);
+			for (int s = 0; s < grid.n; s++) {
+				double [] expected = grid.dijkstra(s);
+				for (int t = 0; t < grid.n; t++) {
+					assertEquals("d(" + s + "," + t + ") in round " + round, expected[t], matrix.getDistance(s, t), 
+							tolerance * Math.max(1, expected[t]));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testScalingNodesAfterSearching() {
+		GridGraph grid = new GridGraph(12, 10, 4);
+		Graph graph = grid.toGraph();
+		// bounds of A* depend on edge weights
+		graph.pathSearchInput.setValue(Graph.PathSearch.alt, graph);
+		DistanceMatrix matrix = graph.distances(1);
+		ShortestPathTest.checkRandomPaths(grid, graph, new Random(7), 5);
+		Random random = new Random(5);
+		for (int round = 0; round < 10; round++) {
+			// the same edge twice, so a pending change is updated, in both directions so the graph stays symmetric
+			int u = random.nextInt(grid.n);
+			int i = random.nextInt(grid.edges.get(u).size());
+			int v = grid.targets[grid.edges.get(u).get(i)];
+			int j = grid.neighbourIndex(v, u);
+			for (double scale : new double[] {3 + random.nextDouble(), 0.2 + 0.5 * random.nextDouble()}) {
+				grid.scale(u, i, scale);
+				grid.scale(v, j, scale);
+				graph.nodes.get(u).scaleDistance(scale, i);
+				graph.nodes.get(v).scaleDistance(scale, j);
+			}
+			// and all edges of a node, in both directions
+			int w = random.nextInt(grid.n);
+			double scale = 0.5 + random.nextDouble();
+			graph.nodes.get(w).scaleDistance(scale);
+			for (int k = 0; k < grid.edges.get(w).size(); k++) {
+				int x = grid.targets[grid.edges.get(w).get(k)];
+				grid.scale(w, k, scale);
+				grid.scale(x, grid.neighbourIndex(x, w), scale);
+				graph.nodes.get(x).scaleDistance(scale, grid.neighbourIndex(x, w));
+			}
+
+			// searches see new weights straight away
+			ShortestPathTest.checkRandomPaths(grid, graph, random, 20);
+			graph.updateDistances();
+			for (int s = 0; s < grid.n; s++) {
+				double [] expected = grid.dijkstra(s);
+				for (int t = 0; t < grid.n; t++) {
+					assertEquals("d(" + s + "," + t + ") in round " + round, expected[t], matrix.getDistance(s, t), 
+							EPSILON * Math.max(1, expected[t]));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testScalingNodesDropsLazyRows() {
+		GridGraph grid = new GridGraph(10, 10, 6);
+		Graph graph = grid.toGraph();
+		graph.setUpLazyDistances(1 << 20);
+		assertEquals(grid.dijkstra(0)[grid.n - 1], graph.getDistance(0, grid.n - 1), EPSILON);
+		for (int u = 0; u < grid.n; u++) {
+			for (int k = 0; k < grid.edges.get(u).size(); k++) {
+				int v = grid.targets[grid.edges.get(u).get(k)];
+				if ((u + v) % 3 == 0) {
+					grid.scale(u, k, 2.5);
+					graph.nodes.get(u).scaleDistance(2.5, k);
+				}
+			}
+		}
+		double [] expected = grid.dijkstra(0);
+		for (int t = 0; t < grid.n; t++) {
+			assertEquals(expected[t], graph.getDistance(0, t), EPSILON * Math.max(1, expected[t]));
+		}
+	}
+
+	@Test
+	public void testUnchangedWeightsRecalculateNothing() {
+		GridGraph grid = new GridGraph(10, 10, 3);
+		Graph graph = grid.toGraph();
+		graph.distances(1);
+		assertEquals(0, graph.scaleDistances(new int[] {0}, new int[] {0}, new double[] {1.0}));
+	}
+}
@@ -0,0 +1,24 @@
+package test.breakaway.geo;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+import breakaway.geo.DistanceMatrix;
+import breakaway.geo.Graph;
+
+/** all pairs distances calculated by Graph.distances(int threads) **/
+public class GraphDistancesTest {
+
+	@Test
+	public void testEmptyGraph() {
+		Graph graph = new Graph();
+		graph.nodes = new ArrayList<>();
+		for (int threads = 1; threads <= 3; threads++) {
+			DistanceMatrix matrix = graph.distances(threads);
+			assertEquals(0, matrix.getSize());
+		}
+	}
+}
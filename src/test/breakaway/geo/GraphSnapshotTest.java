@@ -0,0 +1,142 @@
+package test.breakaway.geo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+import org.junit.Test;
+
+import breakaway.geo.Graph;
+
+/** a graph loaded from a snapshot should find the same nearest nodes and distances as the graph it was saved from,
+ * and corrupt snapshots should be rejected when loading **/
+public class GraphSnapshotTest {
+	final static double EPSILON = 1e-10;
+	final static int HEADER_SIZE = 64;
+
+	@Test
+	public void testSaveAndLoad() throws IOException {
+		GridGraph grid = new GridGraph(20, 10, 81);
+		Graph graph = grid.toGraph();
+		File file = snapshot(graph);
+
+		Graph loaded = new Graph();
+		loaded.loadSnapshot(file);
+		assertEquals(grid.n, loaded.getSize());
+		Random random = new Random(82);
+		for (int q = 0; q < 200; q++) {
+			double lat = -6 + 12 * random.nextDouble();
+			double long_ = -6 + 12 * random.nextDouble();
+			assertEquals(graph.mapLatLongToGraphNode(lat, long_).id, loaded.mapLatLongToGraphNode(lat, long_).id);
+		}
+		loaded.setUpLazyDistances(1 << 20);
+		for (int q = 0; q < 10; q++) {
+			int s = random.nextInt(grid.n);
+			double [] expected = grid.dijkstra(s);
+			for (int t = 0; t < grid.n; t++) {
+				assertEquals("d(" + s + "," + t + ")", expected[t], loaded.getDistance(s, t), EPSILON);
+			}
+		}
+	}
+
+	@Test
+	public void testLoadingDropsDistancesOfPreviousGraph() throws IOException {
+		GridGraph grid = new GridGraph(10, 10, 83);
+		GridGraph other = new GridGraph(10, 10, 84);
+		Graph graph = other.toGraph();
+		graph.distances(2);
+		graph.loadSnapshot(snapshot(grid.toGraph()));
+		// answers distance queries if there is no distance matrix
+		graph.buildContractionHierarchy();
+		double [] expected = grid.dijkstra(5);
+		for (int t = 0; t < grid.n; t++) {
+			assertEquals(expected[t], graph.getDistance(5, t), EPSILON);
+		}
+	}
+
+	@Test
+	public void testTargetOutOfRange() throws IOException {
+		GridGraph grid = new GridGraph(5, 10, 85);
+		File file = snapshot(grid.toGraph());
+		putInt(file, targetsPosition(grid) + 4 * 7, grid.n);
+		checkRejected(file);
+		putInt(file, targetsPosition(grid) + 4 * 7, -1);
+		checkRejected(file);
+	}
+
+	@Test
+	public void testDecreasingOffsets() throws IOException {
+		GridGraph grid = new GridGraph(5, 10, 86);
+		File file = snapshot(grid.toGraph());
+		putInt(file, offsetsPosition(grid) + 4 * 3, 0);
+		checkRejected(file);
+	}
+
+	@Test
+	public void testOffsetsBeyondEdges() throws IOException {
+		GridGraph grid = new GridGraph(5, 10, 87);
+		File file = snapshot(grid.toGraph());
+		putInt(file, offsetsPosition(grid) + 4 * grid.n, grid.sources.length + 1);
+		checkRejected(file);
+	}
+
+	@Test
+	public void testRepeatedIndexId() throws IOException {
+		GridGraph grid = new GridGraph(5, 10, 88);
+		File file = snapshot(grid.toGraph());
+		long ids = targetsPosition(grid) + 12L * grid.sources.length;
+		ByteBuffer first = read(file, ids, 4);
+		putInt(file, ids + 4, first.getInt());
+		checkRejected(file);
+	}
+
+	static File snapshot(Graph graph) throws IOException {
+		File file = File.createTempFile("graph", ".snapshot");
+		file.deleteOnExit();
+		graph.saveSnapshot(file);
+		return file;
+	}
+
+	/** position of the edge offsets, after the header, five coordinate arrays and node types **/
+	static long offsetsPosition(GridGraph grid) {
+		return HEADER_SIZE + 44L * grid.n;
+	}
+
+	static long targetsPosition(GridGraph grid) {
+		return offsetsPosition(grid) + 4L * (grid.n + 1);
+	}
+
+	static void checkRejected(File file) {
+		try {
+			new Graph().loadSnapshot(file);
+			fail("corrupt snapshot was loaded");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	static void putInt(File file, long position, int value) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+			ByteBuffer buf = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+			buf.putInt(value);
+			buf.flip();
+			channel.write(buf, position);
+		}
+	}
+
+	static ByteBuffer read(File file, long position, int bytes) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer buf = ByteBuffer.allocate(bytes).order(ByteOrder.LITTLE_ENDIAN);
+			channel.read(buf, position);
+			buf.flip();
+			return buf;
+		}
+	}
+}
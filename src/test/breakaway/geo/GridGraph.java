@@ -0,0 +1,132 @@
+package test.breakaway.geo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import breakaway.geo.CompactGraph;
+import breakaway.geo.Graph;
+
+/**
+ * Square grid of nodes, each connected to its (up to) eight neighbours, with edge weights randomly
+ * stretched by up to a factor 2 so shortest paths are not trivial. Edges come in both directions with 
+ * the same weight. Keeps its own copy of the edges, so distances can be checked by a plain Dijkstra search 
+ * that does not use any of the code under test.
+ */
+public class GridGraph {
+	final int side;
+	final int n;
+	final double [] latitude;
+	final double [] longitude;
+	final int [] sources;
+	final int [] targets;
+	final double [] weights;
+	/** edges of node i, in the order of its neighbours in the Graph **/
+	final List<List<Integer>> edges = new ArrayList<>();
+
+	/** side x side grid covering span degrees around latitude and longitude 0 **/
+	public GridGraph(int side, double span, long seed) {
+		this.side = side;
+		n = side * side;
+		latitude = new double[n];
+		longitude = new double[n];
+		for (int i = 0; i < side; i++) {
+			for (int j = 0; j < side; j++) {
+				latitude[i * side + j] = -span / 2 + span * i / (side - 1);
+				longitude[i * side + j] = -span / 2 + span * j / (side - 1);
+			}
+		}
+		Random random = new Random(seed);
+		List<int []> pairs = new ArrayList<>();
+		List<Double> pairWeights = new ArrayList<>();
+		for (int i = 0; i < side; i++) {
+			for (int j = 0; j < side; j++) {
+				for (int [] d : new int[][] {{0, 1}, {1, -1}, {1, 0}, {1, 1}}) {
+					int a = i + d[0], b = j + d[1];
+					if (a < side && b >= 0 && b < side) {
+						double length = Math.sqrt(d[0] * d[0] + d[1] * d[1]) * span / (side - 1);
+						pairs.add(new int[] {i * side + j, a * side + b});
+						pairWeights.add(length * (1 + random.nextDouble()));
+					}
+				}
+			}
+		}
+		sources = new int[2 * pairs.size()];
+		targets = new int[2 * pairs.size()];
+		weights = new double[2 * pairs.size()];
+		for (int i = 0; i < n; i++) {
+			edges.add(new ArrayList<>());
+		}
+		for (int k = 0; k < pairs.size(); k++) {
+			sources[2 * k] = targets[2 * k + 1] = pairs.get(k)[0];
+			targets[2 * k] = sources[2 * k + 1] = pairs.get(k)[1];
+			weights[2 * k] = weights[2 * k + 1] = pairWeights.get(k);
+			edges.get(sources[2 * k]).add(2 * k);
+			edges.get(sources[2 * k + 1]).add(2 * k + 1);
+		}
+	}
+
+	/** graph with the nodes and edges of the grid **/
+	public Graph toGraph() {
+		Graph graph = new Graph();
+		graph.setCompactGraph(toCompactGraph());
+		return graph;
+	}
+
+	public CompactGraph toCompactGraph() {
+		return CompactGraph.fromEdges(latitude, longitude, sources, targets, weights);
+	}
+
+	/** index of the edge from node to target among the neighbours of node, or -1 if there is none **/
+	int neighbourIndex(int node, int target) {
+		List<Integer> list = edges.get(node);
+		for (int k = 0; k < list.size(); k++) {
+			if (targets[list.get(k)] == target) {
+				return k;
+			}
+		}
+		return -1;
+	}
+
+	/** weight of the k-th edge of node **/
+	double weight(int node, int k) {
+		return weights[edges.get(node).get(k)];
+	}
+
+	/** multiply weight of k-th edge of node **/
+	void scale(int node, int k, double scale) {
+		weights[edges.get(node).get(k)] *= scale;
+	}
+
+	/** weight of the edge from u to v, or infinity if there is none **/
+	double weightBetween(int u, int v) {
+		int k = neighbourIndex(u, v);
+		return k < 0 ? Double.POSITIVE_INFINITY : weight(u, k);
+	}
+
+	/** shortest distances from source by a textbook Dijkstra search over the edge lists **/
+	double [] dijkstra(int source) {
+		double [] dist = new double[n];
+		Arrays.fill(dist, Double.POSITIVE_INFINITY);
+		dist[source] = 0;
+		PriorityQueue<double []> queue = new PriorityQueue<>((a, b) -> Double.compare(a[0], b[0]));
+		queue.add(new double[] {0, source});
+		while (!queue.isEmpty()) {
+			double [] top = queue.poll();
+			int u = (int) top[1];
+			if (top[0] > dist[u]) {
+				continue;
+			}
+			for (int e : edges.get(u)) {
+				double d = dist[u] + weights[e];
+				if (d < dist[targets[e]]) {
+					dist[targets[e]] = d;
+					queue.add(new double[] {d, targets[e]});
+				}
+			}
+		}
+		return dist;
+	}
+}
@@ -0,0 +1,174 @@
+package test.breakaway.geo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import beast.base.evolution.alignment.Taxon;
+import beast.base.evolution.alignment.TaxonSet;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.inference.parameter.RealParameter;
+import breakaway.geo.DistanceBasedDiffusionModel;
+import breakaway.geo.Graph;
+import breakaway.geo.GraphNode;
+import breakaway.geo.MAPPathReconstructor;
+
+/** paths with halfway nodes restricted to a corridor should match those of GraphSubstitutionModel.calcMAPPath(),
+ * which considers every node of the graph **/
+public class MAPPathReconstructorTest {
+	/** modal distances as fractions of the distance between the ends for which paths stay near the shortest path.
+	 * On longer branches paths wander over the whole graph, leaving any corridor, and once every node is on the path
+	 * both methods jump to the target. **/
+	final static double [] SHORT_BRANCHES = {0.1, 0.25, 0.5};
+
+	/** diffusion model over a grid graph, with a two tip tree whose root and first tip are the ends of a branch **/
+	static class Setup {
+		final GridGraph grid;
+		final Graph graph;
+		final RealParameter precision;
+		final IntegerParameter location;
+		final DistanceBasedDiffusionModel model;
+		final Node tip;
+
+		Setup(int side, long seed) {
+			grid = new GridGraph(side, 10, seed);
+			graph = grid.toGraph();
+			Node tip0 = new Node();
+			tip0.setNr(0);
+			tip0.setID("t0");
+			Node tip1 = new Node();
+			tip1.setNr(1);
+			tip1.setID("t1");
+			Node root = new Node();
+			root.setNr(2);
+			root.addChild(tip0);
+			root.addChild(tip1);
+			root.setHeight(1);
+			Tree tree = new Tree(root);
+			tip = tip0;
+
+			precision = new RealParameter(new Double[] {1.0});
+			location = new IntegerParameter(new Integer[3]);
+			model = new DistanceBasedDiffusionModel();
+			model.initByName("precision", precision, "init", location,
+					"value", "t0=" + grid.latitude[0] + " " + grid.longitude[0] + ",t1=" + grid.latitude[1] + " " + grid.longitude[1],
+					"taxonset", new TaxonSet(Arrays.asList(new Taxon("t0"), new Taxon("t1"))), "tree", tree, "location", location, "graph", graph);
+		}
+
+		/** path for a branch from source to target in given time by GraphSubstitutionModel.calcMAPPath() **/
+		List<GraphNode> unrestrictedPath(int source, int target, double time) {
+			setEnds(source, target);
+			return model.calcMAPPath(tip, tip, 0, time, 1.0);
+		}
+
+		List<GraphNode> corridorPath(MAPPathReconstructor reconstructor, int source, int target, double time) {
+			setEnds(source, target);
+			return reconstructor.calcMAPPath(tip, tip, 0, time, 1.0);
+		}
+
+		private void setEnds(int source, int target) {
+			location.setValue(2, source);
+			location.setValue(0, target);
+		}
+
+		/** time for which the modal distance is factor times the shortest distance between source and target **/
+		double time(int source, int target, double factor) {
+			double distance = factor * grid.dijkstra(source)[target];
+			return distance * distance * precision.getValue(0);
+		}
+	}
+
+	@Test
+	public void testWideCorridorMatchesUnrestricted() {
+		Setup setup = new Setup(15, 51);
+		// a corridor covering the whole graph, so even paths of long branches that wander
+		// over the whole graph should be the same
+		MAPPathReconstructor reconstructor = new MAPPathReconstructor(setup.model, 100);
+		checkRandomPaths(setup, reconstructor, new Random(52), 40, new double[] {0.1, 0.5, 1, 2});
+	}
+
+	@Test
+	public void testCorridorMatchesUnrestricted() {
+		Setup setup = new Setup(15, 53);
+		MAPPathReconstructor reconstructor = new MAPPathReconstructor(setup.model, 0.25);
+		checkRandomPaths(setup, reconstructor, new Random(54), 40, SHORT_BRANCHES);
+	}
+
+	@Test
+	public void testEvictionDoesNotChangePaths() {
+		Setup setup = new Setup(15, 55);
+		// room for a few rows only, so most are searched again
+		MAPPathReconstructor reconstructor = new MAPPathReconstructor(setup.model, 0.25, 4096);
+		checkRandomPaths(setup, reconstructor, new Random(56), 40, SHORT_BRANCHES);
+	}
+
+	@Test
+	public void testClearAfterPrecisionChange() {
+		Setup setup = new Setup(12, 57);
+		MAPPathReconstructor reconstructor = new MAPPathReconstructor(setup.model, 0.25);
+		checkRandomPaths(setup, reconstructor, new Random(58), 10, SHORT_BRANCHES);
+		setup.precision.setValue(0, 4.0);
+		reconstructor.clear();
+		checkRandomPaths(setup, reconstructor, new Random(58), 10, SHORT_BRANCHES);
+	}
+
+	@Test
+	public void testSameEnds() {
+		Setup setup = new Setup(10, 59);
+		MAPPathReconstructor reconstructor = new MAPPathReconstructor(setup.model, 0.25);
+		List<GraphNode> path = setup.corridorPath(reconstructor, 17, 17, 1.0);
+		assertEquals(1, path.size());
+		assertEquals(17, path.get(0).id);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNegativeSlack() {
+		Setup setup = new Setup(5, 60);
+		new MAPPathReconstructor(setup.model, -0.1);
+	}
+
+	/** compare paths between random ends over times with modal distances of the given fractions of the distance
+	 * between the ends, and check that paths with modal distances below that distance run over edges **/
+	static void checkRandomPaths(Setup setup, MAPPathReconstructor reconstructor, Random random, int count, double [] factors) {
+		for (int k = 0; k < count; k++) {
+			int source = random.nextInt(setup.grid.n);
+			int target = random.nextInt(setup.grid.n);
+			if (source == target) {
+				continue;
+			}
+			double factor = factors[k % factors.length];
+			double time = setup.time(source, target, factor);
+			List<GraphNode> expected = setup.unrestrictedPath(source, target, time);
+			List<GraphNode> path = setup.corridorPath(reconstructor, source, target, time);
+			assertEquals("path from " + source + " to " + target + " in time " + time, ids(expected), ids(path));
+			assertEquals(source, path.get(0).id);
+			assertEquals(target, path.get(path.size() - 1).id);
+			if (factor < 1) {
+				checkEdges(setup.grid, path);
+			}
+		}
+	}
+
+	/** path should only run over edges **/
+	static void checkEdges(GridGraph grid, List<GraphNode> path) {
+		for (int i = 1; i < path.size(); i++) {
+			assertTrue("no edge from " + path.get(i - 1).id + " to " + path.get(i).id, grid.neighbourIndex(path.get(i - 1).id, path.get(i).id) >= 0);
+		}
+	}
+
+	static List<Integer> ids(List<GraphNode> path) {
+		List<Integer> ids = new ArrayList<>();
+		for (GraphNode node : path) {
+			ids.add(node.id);
+		}
+		return ids;
+	}
+}
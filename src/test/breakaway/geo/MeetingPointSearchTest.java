@@ -0,0 +1,110 @@
+package test.breakaway.geo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import breakaway.geo.CompactGraph;
+import breakaway.geo.Graph;
+import breakaway.geo.GraphNode;
+
+/** paths to the meeting point of k sources found by Graph.shortestPath() should follow Dijkstra's shortest paths **/
+public class MeetingPointSearchTest {
+	final static double EPSILON = 1e-9;
+
+	@Test
+	public void testPathsFollowShortestPaths() {
+		GridGraph grid = new GridGraph(20, 10, 18);
+		Graph graph = grid.toGraph();
+		Random random = new Random(19);
+		for (int k : new int[] {2, 3, 5, 70}) {
+			for (int q = 0; q < 10; q++) {
+				int [] ids = new int[k];
+				double [] weights = new double[k];
+				for (int i = 0; i < k; i++) {
+					ids[i] = random.nextInt(grid.n);
+					weights[i] = 0.5 + random.nextDouble();
+				}
+				checkMeetingPoint(grid, graph, ids, weights);
+			}
+		}
+	}
+
+	/** a source that hardly moves is met at or next to its own node **/
+	@Test
+	public void testWeightsDetermineSpeed() {
+		GridGraph grid = new GridGraph(20, 10, 20);
+		Graph graph = grid.toGraph();
+		int [] ids = {0, grid.n - 1};
+		int meeting = checkMeetingPoint(grid, graph, ids, new double[] {1, 1e-9});
+		assertTrue(meeting == ids[1] || grid.neighbourIndex(ids[1], meeting) >= 0);
+		meeting = checkMeetingPoint(grid, graph, ids, new double[] {1e-9, 1});
+		assertTrue(meeting == ids[0] || grid.neighbourIndex(ids[0], meeting) >= 0);
+	}
+
+	/** the two and three source versions are the k source version for k = 2 and 3 **/
+	@Test
+	public void testTwoAndThreeSources() {
+		GridGraph grid = new GridGraph(15, 10, 21);
+		Graph graph = grid.toGraph();
+		GraphNode a = graph.nodes.get(3), b = graph.nodes.get(100), c = graph.nodes.get(200);
+		List<GraphNode> pa = new ArrayList<>(), pb = new ArrayList<>(), pc = new ArrayList<>();
+		int meeting = graph.shortestPath(a, 1.0, b, 2.0, pa, pb);
+		List<List<GraphNode>> paths = Arrays.asList(new ArrayList<>(), new ArrayList<>());
+		assertEquals(meeting, graph.shortestPath(new GraphNode[] {a, b}, new double[] {1.0, 2.0}, paths));
+		assertEquals(pa, paths.get(0));
+		assertEquals(pb, paths.get(1));
+
+		pa.clear();
+		pb.clear();
+		meeting = graph.shortestPath(a, 1.0, b, 2.0, c, 0.5, pa, pb, pc);
+		paths = Arrays.asList(new ArrayList<>(), new ArrayList<>(), new ArrayList<>());
+		assertEquals(meeting, graph.shortestPath(new GraphNode[] {a, b, c}, new double[] {1.0, 2.0, 0.5}, paths));
+		assertEquals(pa, paths.get(0));
+		assertEquals(pb, paths.get(1));
+		assertEquals(pc, paths.get(2));
+	}
+
+	@Test
+	public void testDisconnectedSources() {
+		double [] latitude = {0, 0, 1, 1};
+		double [] longitude = {0, 1, 0, 1};
+		Graph graph = new Graph();
+		graph.setCompactGraph(CompactGraph.fromEdges(latitude, longitude, new int[] {0, 1, 2, 3}, new int[] {1, 0, 3, 2}, new double[] {1, 1, 1, 1}));
+		List<List<GraphNode>> paths = Arrays.asList(new ArrayList<>(), new ArrayList<>());
+		assertEquals(-1, graph.shortestPath(new GraphNode[] {graph.nodes.get(0), graph.nodes.get(2)}, new double[] {1, 1}, paths));
+		assertTrue(paths.get(0).isEmpty() && paths.get(1).isEmpty());
+	}
+
+	/** check paths run from each source to the meeting point over edges, and that every node on a path
+	 * apart from the meeting point is at its Dijkstra distance from the source
+	 * @return meeting point **/
+	private int checkMeetingPoint(GridGraph grid, Graph graph, int [] ids, double [] weights) {
+		GraphNode [] sources = new GraphNode[ids.length];
+		List<List<GraphNode>> paths = new ArrayList<>();
+		for (int i = 0; i < ids.length; i++) {
+			sources[i] = graph.nodes.get(ids[i]);
+			paths.add(new ArrayList<>());
+		}
+		int meeting = graph.shortestPath(sources, weights, paths);
+		assertTrue("grid is connected, so sources should meet", meeting >= 0);
+		for (int i = 0; i < ids.length; i++) {
+			List<GraphNode> path = paths.get(i);
+			double length = ShortestPathTest.checkPath(grid, path, ids[i], meeting);
+			double [] expected = grid.dijkstra(ids[i]);
+			assertTrue(length >= expected[meeting] - EPSILON);
+			double prefix = 0;
+			for (int j = 1; j < path.size() - 1; j++) {
+				prefix += grid.weightBetween(path.get(j - 1).id, path.get(j).id);
+				assertEquals(expected[path.get(j).id], prefix, EPSILON);
+			}
+		}
+		return meeting;
+	}
+}
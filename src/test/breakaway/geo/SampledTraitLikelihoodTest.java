@@ -0,0 +1,400 @@
+package test.breakaway.geo;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import beast.base.evolution.alignment.Taxon;
+import beast.base.evolution.alignment.TaxonSet;
+import beast.base.evolution.branchratemodel.BranchRateModel;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.inference.parameter.RealParameter;
+import beast.base.util.Randomizer;
+import breakaway.geo.DistanceBasedDiffusionModel;
+import breakaway.geo.Graph;
+import breakaway.geo.GraphNode;
+import breakaway.geo.GraphSubstitutionModel;
+import breakaway.geo.IslandHopLocationParameter;
+import breakaway.geo.SampledTraitLikelihood;
+
+/**
+ * SampledTraitLikelihood only evaluates branches that changed, and keeps sums of branch statistics
+ * across store() and restore(). Along a chain of random changes in heights, locations, rates and precision,
+ * some of which change every branch, each accepted or rejected at random as in MCMC, its log-likelihood should 
+ * match that of a new SampledTraitLikelihood evaluating every branch in the same state. With several threads, 
+ * the log-likelihood should be the same to the last bit as with one.
+ */
+public class SampledTraitLikelihoodTest {
+	final static double EPSILON = 1e-9;
+
+	@Test
+	public void testIncrementalMatchesFullRecalculation() {
+		Setup setup = new Setup(60, 41, false);
+		setup.run(3000, 42, 1);
+	}
+
+	@Test
+	public void testIncrementalMatchesFullRecalculationIslandHop() {
+		Setup setup = new Setup(60, 43, true);
+		setup.run(3000, 44, 1);
+	}
+
+	@Test
+	public void testIncrementalMatchesFullRecalculationWithThreads() {
+		// enough branches for moves that change every branch to be split over threads
+		Setup setup = new Setup(300, 47, false);
+		setup.run(300, 48, 4);
+	}
+
+	@Test
+	public void testThreadsDoNotChangeResult() {
+		Setup setup = new Setup(300, 45, false);
+		SampledTraitLikelihood [] likelihoods = {setup.newLikelihood(1), setup.newLikelihood(3), setup.newLikelihood(4)};
+		Random random = new Random(46);
+		for (int step = 0; step < 50; step++) {
+			for (SampledTraitLikelihood likelihood : likelihoods) {
+				likelihood.store();
+			}
+			double [] heights = setup.getHeights();
+			double [] rates = setup.clockModel.rates.clone();
+			// every branch changes
+			setup.scaleAll(random);
+			double logP = likelihoods[0].calculateLogP();
+			for (int k = 1; k < likelihoods.length; k++) {
+				assertEquals("step " + step, logP, likelihoods[k].calculateLogP(), 0.0);
+			}
+			setup.clearDirty();
+			if (random.nextBoolean()) {
+				for (SampledTraitLikelihood likelihood : likelihoods) {
+					likelihood.restore();
+				}
+				setup.setHeights(heights);
+				System.arraycopy(rates, 0, setup.clockModel.rates, 0, rates.length);
+				setup.clearDirty();
+			}
+		}
+		for (SampledTraitLikelihood likelihood : likelihoods) {
+			likelihood.close();
+		}
+	}
+
+	@Test
+	public void testDefaultStatisticsMatchPerBranchFormula() {
+		Setup setup = new Setup(60, 49, false);
+		Random random = new Random(50);
+		// some branches with the same location at both ends
+		for (int i = setup.tipCount; i < setup.nodeCount; i += 3) {
+			setup.choices.setValue(i, setup.choices.getValue(setup.tree.getNode(i).getLeft().getNr()));
+		}
+		setup.clearDirty();
+		DefaultStatisticsModel model = new DefaultStatisticsModel(setup.model, setup.location);
+		SampledTraitLikelihood likelihood = new SampledTraitLikelihood();
+		likelihood.initByName("model", model, "tree", setup.tree, "branchRateModel", setup.clockModel);
+		for (int step = 0; step < 100; step++) {
+			double expected = setup.perBranchLogP();
+			assertEquals("step " + step, expected, likelihood.calculateLogP(), EPSILON * Math.abs(expected));
+			setup.clearDirty();
+			likelihood.store();
+			setup.choices.setValue(setup.tipCount + random.nextInt(setup.nodeCount - setup.tipCount), random.nextInt(setup.tipCount));
+		}
+	}
+
+	/** model with the default branch statistics of GraphSubstitutionModel, and log-likelihoods of a diffusion model **/
+	static class DefaultStatisticsModel extends GraphSubstitutionModel {
+		final DistanceBasedDiffusionModel model;
+
+		DefaultStatisticsModel(DistanceBasedDiffusionModel model, IntegerParameter location) {
+			this.model = model;
+			this.location = location;
+		}
+
+		@Override
+		public void initAndValidate() {
+		}
+
+		@Override
+		public double getLogLikelihood(int source, int target, double time) {
+			return model.getLogLikelihood(source, target, time);
+		}
+
+		@Override
+		public double getLogRootFrequency(Node node) {
+			return model.getLogRootFrequency(node);
+		}
+
+		@Override
+		public double getLogTransitionProbability(Node node, double fStartTime, double fEndTime, double fRate) {
+			return model.getLogTransitionProbability(node, fStartTime, fEndTime, fRate);
+		}
+
+		@Override
+		public double [] getTransitionProbabilities(GraphNode node, double distance) {
+			return model.getTransitionProbabilities(node, distance);
+		}
+
+		@Override
+		public double getTransitionProbabilities(int [] origRange, int [] destRange, double time, double [] probabilities) {
+			return model.getTransitionProbabilities(origRange, destRange, time, probabilities);
+		}
+
+		@Override
+		public double [] getLogTransitionProbabilities(GraphNode startNode, double time) {
+			return model.getLogTransitionProbabilities(startNode, time);
+		}
+
+		@Override
+		public void getTransitionProbabilities(Node node, double fStartTime, double fEndTime, double fRate, double [] matrix) {
+			model.getTransitionProbabilities(node, fStartTime, fEndTime, fRate, matrix);
+		}
+	}
+
+	/** branch rates by node nr, with a flag standing in for the MCMC marking the clock model dirty **/
+	static class TestClockModel extends BranchRateModel.Base {
+		final double [] rates;
+		boolean changed;
+
+		TestClockModel(int nodeCount) {
+			rates = new double[nodeCount];
+			Arrays.fill(rates, 1.0);
+		}
+
+		@Override
+		public void initAndValidate() {
+		}
+
+		@Override
+		public double getRateForBranch(Node node) {
+			return rates[node.getNr()];
+		}
+
+		@Override
+		public boolean isDirtyCalculation() {
+			return changed;
+		}
+	}
+
+	/** random tree with taxa at nodes of a grid graph, and a diffusion model with either a location per node,
+	 * or locations chosen from children by an IslandHopLocationParameter **/
+	static class Setup {
+		final int tipCount;
+		final int nodeCount;
+		final Tree tree;
+		final RealParameter precision;
+		final IntegerParameter location;
+		final IntegerParameter choices;
+		final DistanceBasedDiffusionModel model;
+		final TestClockModel clockModel;
+
+		Setup(int tipCount, long seed, boolean islandHop) {
+			this.tipCount = tipCount;
+			nodeCount = 2 * tipCount - 1;
+			Random random = new Random(seed);
+			Randomizer.setSeed(seed);
+			tree = randomTree(tipCount, random);
+
+			int side = (int) Math.ceil(Math.sqrt(tipCount));
+			GridGraph grid = new GridGraph(side, 10, seed);
+			Graph graph = grid.toGraph();
+			List<Taxon> taxa = new ArrayList<>();
+			StringBuilder positions = new StringBuilder();
+			for (int i = 0; i < tipCount; i++) {
+				taxa.add(new Taxon("t" + i));
+				positions.append((i > 0 ? "," : "") + "t" + i + "=" + grid.latitude[i] + " " + grid.longitude[i]);
+			}
+
+			precision = new RealParameter(new Double[] {2.0});
+			choices = new IntegerParameter(new Integer[nodeCount]);
+			if (islandHop) {
+				IslandHopLocationParameter islandHopLocation = new IslandHopLocationParameter();
+				islandHopLocation.initByName("tree", tree, "location", choices, "alwaysUpdate", true);
+				location = islandHopLocation;
+			} else {
+				location = choices;
+			}
+			model = new DistanceBasedDiffusionModel();
+			model.initByName("precision", precision, "init", choices, "value", positions.toString(),
+					"taxonset", new TaxonSet(taxa), "tree", tree, "location", location, "graph", graph);
+			if (!islandHop) {
+				// tips stay at their taxon, internal nodes are anywhere
+				for (int i = tipCount; i < nodeCount; i++) {
+					choices.setValue(i, random.nextInt(tipCount));
+				}
+			}
+			clockModel = new TestClockModel(nodeCount);
+			clearDirty();
+		}
+
+		SampledTraitLikelihood newLikelihood(int threads) {
+			SampledTraitLikelihood likelihood = new SampledTraitLikelihood();
+			likelihood.initByName("model", model, "tree", tree, "branchRateModel", clockModel, "threads", threads);
+			return likelihood;
+		}
+
+		/** log-likelihood as SampledTraitLikelihood calculated it before it kept branch statistics: 0 for branches 
+		 * with the same location at both ends, and otherwise the log-likelihood of the branch, or -1000 if that is not finite **/
+		double perBranchLogP() {
+			double logP = 0;
+			for (Node node : tree.getNodesAsArray()) {
+				if (node.isRoot()) {
+					logP += model.getLogRootFrequency(node);
+					continue;
+				}
+				int source = location.getValue(node.getParent().getNr());
+				int target = location.getValue(node.getNr());
+				if (source != target) {
+					double time = (node.getParent().getHeight() - node.getHeight()) * clockModel.getRateForBranch(node);
+					double p = model.getLogLikelihood(source, target, time);
+					logP += Double.isNaN(p) || Double.isInfinite(p) ? -1000 : p;
+				}
+			}
+			return logP;
+		}
+
+		/** log-likelihood evaluating every branch **/
+		double fullLogP() {
+			return newLikelihood(1).calculateLogP();
+		}
+
+		/** propose changes, compare with a full recalculation, and accept or reject at random **/
+		void run(int steps, long seed, int threads) {
+			Random random = new Random(seed);
+			SampledTraitLikelihood likelihood = newLikelihood(threads);
+			double logP = likelihood.calculateLogP();
+			assertEquals(fullLogP(), logP, EPSILON * Math.max(1, Math.abs(logP)));
+			for (int step = 0; step < steps; step++) {
+				likelihood.store();
+				double [] heights = getHeights();
+				Integer [] values = new Integer[nodeCount];
+				for (int i = 0; i < nodeCount; i++) {
+					values[i] = choices.getValue(i);
+				}
+				double [] rates = clockModel.rates.clone();
+				double oldPrecision = precision.getValue(0);
+
+				propose(random);
+				double newLogP = likelihood.calculateLogP();
+				double full = fullLogP();
+				assertEquals("step " + step, full, newLogP, EPSILON * Math.max(1, Math.abs(full)));
+				clearDirty();
+
+				if (random.nextBoolean()) {
+					logP = newLogP;
+				} else {
+					likelihood.restore();
+					setHeights(heights);
+					for (int i = 0; i < nodeCount; i++) {
+						if (!choices.getValue(i).equals(values[i])) {
+							choices.setValue(i, values[i]);
+						}
+					}
+					System.arraycopy(rates, 0, clockModel.rates, 0, nodeCount);
+					precision.setValue(0, oldPrecision);
+					clearDirty();
+					// nothing is dirty, so the restored sums give the log-likelihood before the change
+					assertEquals("restore at step " + step, logP, likelihood.calculateLogP(), EPSILON * Math.max(1, Math.abs(logP)));
+				}
+			}
+			likelihood.close();
+		}
+
+		private void propose(Random random) {
+			int kind = random.nextInt(22);
+			if (kind < 6) {
+				Node node = tree.getNode(tipCount + random.nextInt(nodeCount - tipCount));
+				double lower = Math.max(node.getLeft().getHeight(), node.getRight().getHeight());
+				double upper = node.isRoot() ? lower + 1 : node.getParent().getHeight();
+				node.setHeight(lower + (upper - lower) * random.nextDouble());
+				tree.setSomethingIsDirty(true);
+			} else if (kind < 14) {
+				int count = 1 + random.nextInt(3);
+				for (int k = 0; k < count; k++) {
+					if (location == choices) {
+						choices.setValue(random.nextInt(nodeCount), random.nextInt(tipCount));
+					} else {
+						// choose the other child
+						Node node = tree.getNode(tipCount + random.nextInt(nodeCount - tipCount));
+						int other = choices.getValue(node.getNr()) == node.getLeft().getNr() ? node.getRight().getNr() : node.getLeft().getNr();
+						choices.setValue(node.getNr(), other);
+					}
+				}
+			} else if (kind < 17) {
+				clockModel.rates[random.nextInt(nodeCount)] *= Math.exp(0.2 * random.nextGaussian());
+				clockModel.changed = true;
+			} else if (kind < 20) {
+				precision.setValue(0, precision.getValue(0) * Math.exp(0.2 * random.nextGaussian()));
+			} else {
+				scaleAll(random);
+			}
+		}
+
+		/** scale either all branch rates, or all internal node heights, which changes every branch **/
+		void scaleAll(Random random) {
+			double scale = Math.exp(0.1 * random.nextGaussian());
+			if (random.nextBoolean()) {
+				for (int i = 0; i < nodeCount; i++) {
+					clockModel.rates[i] *= scale;
+				}
+				clockModel.changed = true;
+			} else {
+				for (int i = tipCount; i < nodeCount; i++) {
+					Node node = tree.getNode(i);
+					node.setHeight(node.getHeight() * scale);
+				}
+				tree.setSomethingIsDirty(true);
+			}
+		}
+
+		double [] getHeights() {
+			double [] heights = new double[nodeCount];
+			for (int i = 0; i < nodeCount; i++) {
+				heights[i] = tree.getNode(i).getHeight();
+			}
+			return heights;
+		}
+
+		void setHeights(double [] heights) {
+			for (int i = 0; i < nodeCount; i++) {
+				if (tree.getNode(i).getHeight() != heights[i]) {
+					tree.getNode(i).setHeight(heights[i]);
+				}
+			}
+		}
+
+		void clearDirty() {
+			tree.setEverythingDirty(false);
+			choices.setEverythingDirty(false);
+			precision.setEverythingDirty(false);
+			clockModel.changed = false;
+		}
+	}
+
+	/** tips 0 ... tipCount - 1 at height 0, joined in random order by internal nodes numbered upwards **/
+	static Tree randomTree(int tipCount, Random random) {
+		List<Node> pool = new ArrayList<>();
+		for (int i = 0; i < tipCount; i++) {
+			Node tip = new Node();
+			tip.setNr(i);
+			tip.setID("t" + i);
+			tip.setHeight(0);
+			pool.add(tip);
+		}
+		for (int nr = tipCount; pool.size() > 1; nr++) {
+			Node left = pool.remove(random.nextInt(pool.size()));
+			Node right = pool.remove(random.nextInt(pool.size()));
+			Node parent = new Node();
+			parent.setNr(nr);
+			parent.addChild(left);
+			parent.addChild(right);
+			parent.setHeight(Math.max(left.getHeight(), right.getHeight()) + 0.1 + random.nextDouble());
+			pool.add(parent);
+		}
+		return new Tree(pool.get(0));
+	}
+}
@@ -0,0 +1,97 @@
+package test.breakaway.geo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import breakaway.geo.Graph;
+import breakaway.geo.GraphNode;
+
+/** goal directed point to point searches of Graph.shortestPath() should find paths as short as Dijkstra's **/
+public class ShortestPathTest {
+	final static double EPSILON = 1e-9;
+
+	@Test
+	public void testAStarMatchesDijkstra() {
+		checkPaths(Graph.PathSearch.astar);
+	}
+
+	@Test
+	public void testALTMatchesDijkstra() {
+		checkPaths(Graph.PathSearch.alt);
+	}
+
+	private void checkPaths(Graph.PathSearch pathSearch) {
+		GridGraph grid = new GridGraph(20, 10, 5);
+		Graph graph = grid.toGraph();
+		graph.pathSearchInput.setValue(pathSearch, graph);
+		Random random = new Random(6);
+		checkRandomPaths(grid, graph, random, 50);
+
+		// scaling edges below their great circle length should not make the search miss shorter paths
+		int [] nodeIDs = new int[40];
+		int [] neighbourIndices = new int[40];
+		double [] scales = new double[40];
+		for (int k = 0; k < 20; k++) {
+			int u = random.nextInt(grid.n);
+			int i = random.nextInt(grid.edges.get(u).size());
+			int v = grid.targets[grid.edges.get(u).get(i)];
+			nodeIDs[2 * k] = u;
+			neighbourIndices[2 * k] = i;
+			nodeIDs[2 * k + 1] = v;
+			neighbourIndices[2 * k + 1] = grid.neighbourIndex(v, u);
+			scales[2 * k] = scales[2 * k + 1] = 0.05;
+		}
+		for (int k = 0; k < nodeIDs.length; k++) {
+			grid.scale(nodeIDs[k], neighbourIndices[k], scales[k]);
+		}
+		graph.scaleDistances(nodeIDs, neighbourIndices, scales);
+		checkRandomPaths(grid, graph, random, 50);
+	}
+
+	/** search state is reused between queries of a thread, also when the graph is replaced by one of another size **/
+	@Test
+	public void testWorkspacesReusedBetweenQueries() {
+		GridGraph small = new GridGraph(10, 10, 15);
+		GridGraph large = new GridGraph(25, 10, 16);
+		Graph graph = small.toGraph();
+		graph.pathSearchInput.setValue(Graph.PathSearch.astar, graph);
+		Random random = new Random(17);
+		checkRandomPaths(small, graph, random, 200);
+		graph.setCompactGraph(large.toCompactGraph());
+		checkRandomPaths(large, graph, random, 200);
+		graph.setCompactGraph(small.toCompactGraph());
+		checkRandomPaths(small, graph, random, 200);
+	}
+
+	/** paths between random pairs of nodes should connect them through edges, with the length of a shortest path **/
+	static void checkRandomPaths(GridGraph grid, Graph graph, Random random, int count) {
+		for (int q = 0; q < count; q++) {
+			int s = random.nextInt(grid.n);
+			int t = random.nextInt(grid.n);
+			List<GraphNode> path = new ArrayList<>();
+			graph.shortestPath(graph.nodes.get(s), graph.nodes.get(t), path);
+			assertEquals(grid.dijkstra(s)[t], checkPath(grid, path, s, t), EPSILON);
+		}
+	}
+
+	/** check path runs from s to t over edges of the grid
+	 * @return length of path **/
+	static double checkPath(GridGraph grid, List<GraphNode> path, int s, int t) {
+		assertTrue("path should not be empty", path.size() > 0);
+		assertEquals(s, path.get(0).id);
+		assertEquals(t, path.get(path.size() - 1).id);
+		double length = 0;
+		for (int i = 1; i < path.size(); i++) {
+			double w = grid.weightBetween(path.get(i - 1).id, path.get(i).id);
+			assertTrue("no edge from " + path.get(i - 1).id + " to " + path.get(i).id, w < Double.POSITIVE_INFINITY);
+			length += w;
+		}
+		return length;
+	}
+}
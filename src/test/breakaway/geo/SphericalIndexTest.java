@@ -0,0 +1,110 @@
+package test.breakaway.geo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import breakaway.geo.CompactGraph;
+import breakaway.geo.Graph;
+
+/** nodes found by Graph.mapLatLongToGraphNode() should be nearest along the surface, as found by a brute force scan **/
+public class SphericalIndexTest {
+	final static double EPSILON = 1e-12;
+
+	@Test
+	public void testNearestNodes() {
+		// more nodes than SphericalIndex builds with a single thread
+		double [][] points = randomPoints(20000, 31);
+		Graph graph = toGraph(points[0], points[1]);
+		double [][] queries = randomPoints(300, 32);
+		for (int i = 0; i < queries[0].length; i++) {
+			checkNearest(points, graph.mapLatLongToGraphNode(queries[0][i], queries[1][i]).id, queries[0][i], queries[1][i]);
+		}
+	}
+
+	@Test
+	public void testPolesAndAntimeridian() {
+		// nodes on both sides of the antimeridian and around the poles, where latitude and longitude
+		// distances are far from great circle distances
+		double [] latitudes = {0, 0, 10, 10, 89.9, 89.9, -89.9, -89.9, 45, -45};
+		double [] longitudes = {179.9, -179.8, -179.95, 170, 0, 180, 90, -90, 0, 0};
+		double [][] points = {latitudes, longitudes};
+		Graph graph = toGraph(latitudes, longitudes);
+		double [][] queries = {
+				{0, 0, 10, 10, 89.99, 90, 89.95, -90, -89.95, -89.99},
+				{-179.99, 179.85, 179.99, -179.9, -170, 0, 100, 0, 180, -45}};
+		for (int i = 0; i < queries[0].length; i++) {
+			checkNearest(points, graph.mapLatLongToGraphNode(queries[0][i], queries[1][i]).id, queries[0][i], queries[1][i]);
+		}
+		// longitudes given outside -180 ... 180
+		assertEquals(graph.mapLatLongToGraphNode(0, -179.99).id, graph.mapLatLongToGraphNode(0, 180.01).id);
+	}
+
+	@Test
+	public void testBatchMatchesSingleLookups() {
+		double [][] points = randomPoints(5000, 33);
+		Graph graph = toGraph(points[0], points[1]);
+		// more queries than a single batch chunk, including duplicates
+		double [][] queries = randomPoints(10000, 34);
+		queries[0][9999] = queries[0][0];
+		queries[1][9999] = queries[1][0];
+		int [] ids = graph.mapLatLongToGraphNodes(queries[0], queries[1]);
+		assertEquals(queries[0].length, ids.length);
+		for (int i = 0; i < ids.length; i++) {
+			assertEquals(graph.mapLatLongToGraphNode(queries[0][i], queries[1][i]).id, ids[i]);
+		}
+	}
+
+	@Test
+	public void testEmptyGraph() {
+		Graph graph = toGraph(new double[0], new double[0]);
+		assertNull(graph.mapLatLongToGraphNode(10, 10));
+		int [] ids = graph.mapLatLongToGraphNodes(new double[] {10, 20}, new double[] {10, 20});
+		assertEquals(-1, ids[0]);
+		assertEquals(-1, ids[1]);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBatchLengthMismatch() {
+		double [][] points = randomPoints(10, 35);
+		toGraph(points[0], points[1]).mapLatLongToGraphNodes(new double[2], new double[3]);
+	}
+
+	/** found node should be at the smallest distance from the query of all nodes, allowing for ties **/
+	static void checkNearest(double [][] points, int found, double lat, double long_) {
+		double best = Double.POSITIVE_INFINITY;
+		for (int i = 0; i < points[0].length; i++) {
+			best = Math.min(best, haversine(lat, long_, points[0][i], points[1][i]));
+		}
+		assertEquals("nearest node to " + lat + "," + long_, best, haversine(lat, long_, points[0][found], points[1][found]), EPSILON);
+	}
+
+	/** great circle distance in radians on the unit sphere **/
+	static double haversine(double lat1, double long1, double lat2, double long2) {
+		double dLat = Math.toRadians(lat2 - lat1);
+		double dLong = Math.toRadians(long2 - long1);
+		double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+				+ Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * Math.sin(dLong / 2) * Math.sin(dLong / 2);
+		return 2 * Math.asin(Math.min(1, Math.sqrt(a)));
+	}
+
+	/** latitudes and longitudes of points spread uniformly over the sphere **/
+	static double [][] randomPoints(int n, long seed) {
+		Random random = new Random(seed);
+		double [][] points = new double[2][n];
+		for (int i = 0; i < n; i++) {
+			points[0][i] = Math.toDegrees(Math.asin(2 * random.nextDouble() - 1));
+			points[1][i] = 360 * random.nextDouble() - 180;
+		}
+		return points;
+	}
+
+	static Graph toGraph(double [] latitudes, double [] longitudes) {
+		Graph graph = new Graph();
+		graph.setCompactGraph(CompactGraph.fromEdges(latitudes, longitudes, new int[0], new int[0], new double[0]));
+		return graph;
+	}
+}
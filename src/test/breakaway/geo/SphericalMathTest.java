@@ -0,0 +1,67 @@
+package test.breakaway.geo;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import breakaway.geo.SphericalMath;
+import sphericalGeo.GreatCircleDistance;
+
+/** batch great circle kernels should match conversions and distances of single points **/
+public class SphericalMathTest {
+	final static double EPSILON = 1e-12;
+
+	@Test
+	public void testBatchUnitVectors() {
+		double [][] points = SphericalIndexTest.randomPoints(101, 71);
+		int n = points[0].length;
+		double [] x = new double[n], y = new double[n], z = new double[n];
+		SphericalMath.spherical2Cartesian(points[0], points[1], x, y, z);
+		for (int i = 0; i < n; i++) {
+			double [] cart = SphericalMath.spherical2Cartesian(points[0][i], points[1][i]);
+			assertEquals(cart[0], x[i], 0.0);
+			assertEquals(cart[1], y[i], 0.0);
+			assertEquals(cart[2], z[i], 0.0);
+		}
+	}
+
+	@Test
+	public void testRowsMatchPairwiseDistances() {
+		double [][] points = SphericalIndexTest.randomPoints(203, 72);
+		int n = points[0].length;
+		double [] x = new double[n], y = new double[n], z = new double[n];
+		SphericalMath.spherical2Cartesian(points[0], points[1], x, y, z);
+		double halfCircle = GreatCircleDistance.pairwiseDistance(new double[] {0, 0}, new double[] {0, 180});
+		// rows of varying length starting at varying offsets, so vector loops end with a partial vector
+		for (int i = 0; i < n; i += 7) {
+			int from = i % 5, too = n - i / 3;
+			double [] out = new double[3 + too - from];
+			SphericalMath.greatCircleDistances(x[i], y[i], z[i], x, y, z, from, too, out, 3);
+			for (int j = from; j < too; j++) {
+				double expected = GreatCircleDistance.pairwiseDistance(new double[] {points[0][i], points[1][i]}, new double[] {points[0][j], points[1][j]});
+				// the arc cosine in pairwiseDistance loses precision for nearby points
+				assertEquals("distance from " + i + " to " + j, expected, out[3 + j - from], 1e-7 * halfCircle);
+			}
+			if (from <= i && i < too) {
+				assertEquals(0.0, out[3 + i - from], EPSILON * halfCircle);
+			}
+		}
+	}
+
+	@Test
+	public void testNearbyAndAntipodalPoints() {
+		double [] latitudes = {10, 10 + 1e-9, -10, 0, 0};
+		double [] longitudes = {20, 20, -160, 0, 180};
+		double [] x = new double[5], y = new double[5], z = new double[5];
+		SphericalMath.spherical2Cartesian(latitudes, longitudes, x, y, z);
+		double [] out = new double[5];
+		double halfCircle = GreatCircleDistance.pairwiseDistance(new double[] {0, 0}, new double[] {0, 180});
+		SphericalMath.greatCircleDistances(x[0], y[0], z[0], x, y, z, 0, 5, out, 0);
+		assertEquals(0.0, out[0], 0.0);
+		// an arc cosine would be off by about 1e-8 radians here
+		assertEquals(Math.toRadians(1e-9) / Math.PI * halfCircle, out[1], 1e-4 * Math.toRadians(1e-9) / Math.PI * halfCircle);
+		assertEquals(halfCircle, out[2], EPSILON * halfCircle);
+		SphericalMath.greatCircleDistances(x[3], y[3], z[3], x, y, z, 4, 5, out, 0);
+		assertEquals(halfCircle, out[0], EPSILON * halfCircle);
+	}
+}
@@ -0,0 +1,119 @@
+package test.breakaway.geo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+import breakaway.geo.CompactGraph;
+import breakaway.geo.Graph;
+import breakaway.geo.SubsetDistanceMatrix;
+
+/** distances among a subset of nodes should match Dijkstra distances in the whole graph **/
+public class SubsetDistanceMatrixTest {
+	final static double EPSILON = 1e-9;
+
+	@Test
+	public void testSubsetDistances() {
+		GridGraph grid = new GridGraph(20, 10, 22);
+		Graph graph = grid.toGraph();
+		// a cluster of nearby nodes, so searches stop early, a far away node and a duplicate
+		int [] nodeIDs = {21, 22, 41, 43, 61, 399, 22};
+		SubsetDistanceMatrix matrix = graph.distances(nodeIDs, false, 2);
+		assertFalse(matrix.hasAllTargets());
+		assertEquals(nodeIDs.length, matrix.getSize());
+		for (int i = 0; i < nodeIDs.length; i++) {
+			assertEquals(nodeIDs[i], matrix.getNodeID(i));
+			double [] expected = grid.dijkstra(nodeIDs[i]);
+			for (int j = 0; j < nodeIDs.length; j++) {
+				assertEquals(expected[nodeIDs[j]], matrix.getDistance(i, j), EPSILON);
+				assertEquals(expected[nodeIDs[j]], matrix.getNodeDistance(nodeIDs[i], nodeIDs[j]), EPSILON);
+			}
+		}
+		// duplicates map to their first occurrence
+		assertEquals(1, matrix.indexOf(22));
+		assertEquals(-1, matrix.indexOf(0));
+	}
+
+	@Test
+	public void testAllTargets() {
+		GridGraph grid = new GridGraph(15, 10, 23);
+		Graph graph = grid.toGraph();
+		Random random = new Random(24);
+		int [] nodeIDs = new int[10];
+		for (int i = 0; i < nodeIDs.length; i++) {
+			nodeIDs[i] = random.nextInt(grid.n);
+		}
+		SubsetDistanceMatrix matrix = graph.distances(nodeIDs, true, 3);
+		assertTrue(matrix.hasAllTargets());
+		for (int i = 0; i < nodeIDs.length; i++) {
+			double [] expected = grid.dijkstra(nodeIDs[i]);
+			double [] row = matrix.getRow(i);
+			assertEquals(grid.n, row.length);
+			for (int t = 0; t < grid.n; t++) {
+				assertEquals(expected[t], row[t], EPSILON);
+				assertEquals(expected[t], matrix.getNodeDistance(nodeIDs[i], t), EPSILON);
+			}
+		}
+	}
+
+	/** calls with the same number of threads run on the same workers, and give the same distances **/
+	@Test
+	public void testRepeatedCalls() {
+		GridGraph grid = new GridGraph(15, 10, 25);
+		Graph graph = grid.toGraph();
+		int [] nodeIDs = {3, 50, 51, 120, 224};
+		Set<String> before = poolNames();
+		SubsetDistanceMatrix first = graph.distances(nodeIDs, false, 3);
+		// workers of the graph stay around for the next call
+		Set<String> created = poolNames();
+		for (int call = 0; call < 10; call++) {
+			SubsetDistanceMatrix matrix = graph.distances(nodeIDs, call % 2 == 0, 3);
+			created.addAll(poolNames());
+			for (int i = 0; i < nodeIDs.length; i++) {
+				for (int j = 0; j < nodeIDs.length; j++) {
+					assertEquals(first.getDistance(i, j), matrix.getDistance(i, j), 0.0);
+				}
+			}
+		}
+		created.removeAll(before);
+		assertEquals("pools created: " + created, 1, created.size());
+	}
+
+	/** names of fork/join pools with live workers, other than the common pool **/
+	private static Set<String> poolNames() {
+		Set<String> names = new HashSet<>();
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			Matcher matcher = Pattern.compile("(ForkJoinPool-\\d+)-worker-\\d+").matcher(thread.getName());
+			if (matcher.matches()) {
+				names.add(matcher.group(1));
+			}
+		}
+		return names;
+	}
+
+	/** unreachable nodes have distance 0, as in the full distance matrix **/
+	@Test
+	public void testUnreachableNodes() {
+		Graph graph = new Graph();
+		graph.setCompactGraph(CompactGraph.fromEdges(new double[] {0, 0, 1}, new double[] {0, 1, 0}, 
+				new int[] {0, 1}, new int[] {1, 0}, new double[] {2, 2}));
+		SubsetDistanceMatrix matrix = graph.distances(new int[] {0, 1, 2}, false, 1);
+		assertEquals(2, matrix.getDistance(0, 1), EPSILON);
+		assertEquals(0, matrix.getDistance(0, 2), EPSILON);
+		assertEquals(0, matrix.getDistance(2, 0), EPSILON);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNodeOutsideSubset() {
+		GridGraph grid = new GridGraph(5, 10, 25);
+		grid.toGraph().distances(new int[] {1, 2}, false, 1).getNodeDistance(1, 3);
+	}
+}
@@ -0,0 +1,207 @@
+package test.breakaway.geo;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import beast.base.evolution.alignment.Taxon;
+import beast.base.evolution.alignment.TaxonSet;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.inference.parameter.RealParameter;
+import breakaway.geo.CompactGraph;
+import breakaway.geo.DistanceBasedDiffusionModel;
+import breakaway.geo.Graph;
+import breakaway.geo.GraphNode;
+import breakaway.geo.GraphSubstitutionModel;
+
+/** batch range transition probabilities should match those of branches evaluated one at a time, 
+ * and whole graph rows should match the diffusion density of shortest path distances **/
+public class TransitionProbabilitiesTest {
+	final static int TAXON_COUNT = 30;
+
+	@Test
+	public void testBatchMatchesSingleBranches() {
+		DistanceBasedDiffusionModel model = newModel(61);
+		Random random = new Random(62);
+		int count = 20;
+		// buffers longer than count, reused for two batches
+		double [] times = new double[count + 5];
+		int [][] origRanges = new int[count + 5][];
+		int [][] destRanges = new int[count + 5][];
+		double [][] probabilities = new double[count + 5][];
+		double [] logScales = new double[count + 5];
+		for (int repeat = 0; repeat < 2; repeat++) {
+			for (int b = 0; b < count; b++) {
+				times[b] = 0.01 + 5 * random.nextDouble();
+				origRanges[b] = randomRange(random);
+				destRanges[b] = randomRange(random);
+				// some matrices have room beyond the ranges
+				probabilities[b] = new double[origRanges[b].length * destRanges[b].length + random.nextInt(3)];
+			}
+			model.getTransitionProbabilities(count, times, origRanges, destRanges, probabilities, logScales);
+			for (int b = 0; b < count; b++) {
+				double [] expected = new double[probabilities[b].length];
+				double logScale = model.getTransitionProbabilities(origRanges[b], destRanges[b], times[b], expected);
+				assertEquals(logScale, logScales[b], 0.0);
+				for (int k = 0; k < expected.length; k++) {
+					assertEquals(expected[k], probabilities[b][k], 0.0);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testBranchesByHeight() {
+		DistanceBasedDiffusionModel model = newModel(63);
+		Random random = new Random(64);
+		int count = 10;
+		double [] heights = new double[count], parentHeights = new double[count], rates = new double[count];
+		int [][] nodeRanges = new int[count][], parentRanges = new int[count][];
+		double [][] matrices = new double[count][];
+		double [] times = new double[count], logScales = new double[count];
+		for (int b = 0; b < count; b++) {
+			heights[b] = random.nextDouble();
+			parentHeights[b] = heights[b] + 0.1 + random.nextDouble();
+			rates[b] = 0.5 + random.nextDouble();
+			nodeRanges[b] = randomRange(random);
+			parentRanges[b] = randomRange(random);
+			matrices[b] = new double[nodeRanges[b].length * parentRanges[b].length];
+		}
+		model.getTransitionProbabilities(count, heights, parentHeights, rates, nodeRanges, parentRanges, matrices, times, logScales);
+		for (int b = 0; b < count; b++) {
+			double [] expected = new double[matrices[b].length];
+			double logScale = model.getTransitionProbabilities(null, heights[b], parentHeights[b], rates[b], nodeRanges[b], parentRanges[b], expected);
+			assertEquals(logScale, logScales[b], 0.0);
+			for (int k = 0; k < expected.length; k++) {
+				assertEquals(expected[k], matrices[b][k], 0.0);
+			}
+			// largest probability is scaled to 1
+			double max = 0;
+			for (double p : expected) {
+				max = Math.max(max, p);
+			}
+			assertEquals(1.0, max, 1e-15);
+		}
+	}
+
+	@Test
+	public void testWholeRows() {
+		// a grid with a few unconnected nodes at the end, which get distance 0, with rows long enough for vector loops
+		GridGraph grid = new GridGraph(21, 10, 65);
+		int extra = 3, n = grid.n + extra;
+		double [] latitudes = Arrays.copyOf(grid.latitude, n), longitudes = Arrays.copyOf(grid.longitude, n);
+		Graph graph = new Graph();
+		graph.setCompactGraph(CompactGraph.fromEdges(latitudes, longitudes, grid.sources, grid.targets, grid.weights));
+		double precision = 2.0;
+		DistanceBasedDiffusionModel model = newModel(66, graph, precision);
+		Random random = new Random(67);
+		for (int k = 0; k < 10; k++) {
+			int start = random.nextInt(grid.n);
+			double time = 0.01 + random.nextDouble();
+			double [] distances = Arrays.copyOf(grid.dijkstra(start), n);
+			double [] expected = new double[n];
+			double max = Double.NEGATIVE_INFINITY;
+			for (int i = 0; i < n; i++) {
+				double distance = distances[i] == 0 ? 1e-5 : distances[i];
+				expected[i] = Math.log(distance) + 0.5 * Math.log(precision / time) - 0.5 * distance * distance * precision / time;
+				max = Math.max(max, expected[i]);
+			}
+			GraphNode node = graph.nodes.get(start);
+			double [] logP = model.getLogTransitionProbabilities(node, time);
+			for (int i = 0; i < n; i++) {
+				assertEquals(expected[i], logP[i], 1e-9 * Math.max(1, Math.abs(expected[i])));
+			}
+			double sum = 0;
+			for (int i = 0; i < n; i++) {
+				sum += Math.exp(expected[i] - max);
+			}
+			double [] p = model.getTransitionProbabilities(node, time);
+			double total = 0;
+			for (int i = 0; i < n; i++) {
+				double e = Math.exp(expected[i] - max) / sum;
+				assertEquals(e, p[i], 1e-9 * e);
+				total += p[i];
+			}
+			assertEquals(1.0, total, 1e-12);
+		}
+	}
+
+	@Test
+	public void testLogPtoP() {
+		Random random = new Random(68);
+		// lengths around multiples of vector sizes
+		for (int n = 1; n < 40; n++) {
+			double [] logP = new double[n];
+			for (int i = 0; i < n; i++) {
+				logP[i] = -20 * random.nextDouble();
+			}
+			// NaNs and negative infinities get probability 0
+			logP[random.nextInt(n)] = Double.NaN;
+			logP[random.nextInt(n)] = Double.NEGATIVE_INFINITY;
+			double [] p = logP.clone();
+			GraphSubstitutionModel.logPtoP(p);
+			double sum = 0;
+			for (double d : logP) {
+				sum += d == d ? Math.exp(d) : 0;
+			}
+			double total = 0;
+			for (int i = 0; i < n; i++) {
+				double e = logP[i] == logP[i] ? Math.exp(logP[i]) / sum : 0;
+				assertEquals(e, p[i], 1e-12 * e);
+				total += p[i];
+			}
+			if (sum > 0) {
+				assertEquals(1.0, total, 1e-12);
+			}
+		}
+	}
+
+	static int [] randomRange(Random random) {
+		int [] range = new int[1 + random.nextInt(4)];
+		for (int i = 0; i < range.length; i++) {
+			range[i] = random.nextInt(TAXON_COUNT);
+		}
+		return range;
+	}
+
+	static DistanceBasedDiffusionModel newModel(long seed) {
+		return newModel(seed, null, 2.0);
+	}
+
+	/** model over taxa at random positions, with a caterpillar tree over them, and optionally a graph **/
+	static DistanceBasedDiffusionModel newModel(long seed, Graph graph, double precision) {
+		Random random = new Random(seed);
+		List<Taxon> taxa = new ArrayList<>();
+		StringBuilder positions = new StringBuilder();
+		Node root = null;
+		for (int i = 0; i < TAXON_COUNT; i++) {
+			taxa.add(new Taxon("t" + i));
+			positions.append((i > 0 ? "," : "") + "t" + i + "=" + (20 * random.nextDouble()) + " " + (20 * random.nextDouble()));
+			Node tip = new Node();
+			tip.setNr(i);
+			tip.setID("t" + i);
+			if (root == null) {
+				root = tip;
+			} else {
+				Node parent = new Node();
+				parent.setNr(TAXON_COUNT + i - 1);
+				parent.addChild(root);
+				parent.addChild(tip);
+				parent.setHeight(i);
+				root = parent;
+			}
+		}
+		IntegerParameter location = new IntegerParameter(new Integer[2 * TAXON_COUNT - 1]);
+		DistanceBasedDiffusionModel model = new DistanceBasedDiffusionModel();
+		model.initByName("precision", new RealParameter(new Double[] {precision}), "init", location, "value", positions.toString(),
+				"taxonset", new TaxonSet(taxa), "tree", new Tree(root), "location", location, "graph", graph);
+		return model;
+	}
+}